@@ -0,0 +1,31 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/**
+ * A Prevalent System that keeps track of the parts of itself that Transactions have changed, so that most snapshots
+ * only need to contain those parts instead of the whole system.
+ * <br>
+ * <br>Both methods are called while no Transaction is executing. A delta may contain more than what actually changed,
+ * as long as applying it brings the system up to date: a system that only records which parts changed, and copies
+ * their current values into the delta, is always safe.
+ *
+ * @param <D> The type of the changes reported. It must be serializable by the snapshot serializer.
+ * @see org.prevayler.PrevaylerFactory#configureDeltaSnapshots(int)
+ */
+public interface DeltaSnapshots<D> {
+
+  /**
+   * Returns the changes since the previous call to this method, and starts keeping track of changes anew.
+   * <br>The first call after recovery must also include any changes made while recovering.
+   */
+  public D takeDelta();
+
+  /**
+   * Applies changes returned by takeDelta(), in the order they were taken, upon recovery.
+   */
+  public void applyDelta(D delta);
+
+}
@@ -0,0 +1,29 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a Transaction, RootTransaction or TransactionWithQuery class whose instances never change, nor does anything
+ * they refer to, neither when executed nor afterwards. Such transactions are executed as they are given, instead of
+ * as deep copies, even if PrevaylerFactory.configureTransactionDeepCopy() is <code>true</code>. They are still
+ * journaled as usual.
+ * <br>
+ * <br>Only the exact class marked is affected, not its subclasses, which may add state of their own. Classes that
+ * can't be marked can be registered with PrevaylerFactory.configureImmutableTransactionType() instead.
+ * <br>
+ * <br>Since the transaction itself is executed, the prevalent system may end up referring to objects it refers to.
+ * Make sure they are immutable as well, or the prevalent system will differ from the one recovered from the journal.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Immutable {
+}
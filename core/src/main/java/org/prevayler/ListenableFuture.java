@@ -0,0 +1,21 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+import java.util.concurrent.Future;
+
+/**
+ * A Future that also tells when it is done, so that nobody has to block on get() to find out.
+ *
+ * @see Prevayler#executeAsync(Transaction)
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+  /**
+   * Runs the given listener once this Future is done: right away on the calling thread if it already is, otherwise on the thread that completes it. Listeners should be quick, since they hold up the completion of the transactions after theirs.
+   */
+  public void addListener(Runnable listener);
+
+}
@@ -0,0 +1,21 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/**
+ * A Query that may be executed without taking any lock when concurrent queries are configured. If a Transaction was
+ * executed at the same time, the result is thrown away and the query is executed again under the read lock.
+ * <br>
+ * <br>An OptimisticQuery must therefore only read the Prevalent System, never change it or anything else, and must
+ * cope with seeing it half way through a Transaction: any Exception it throws while doing so is discarded as well,
+ * but it must not loop forever on data that is inconsistent.
+ *
+ * @param <P> The type or any supertype of the Prevalent System you intend to perform the query upon. <br>
+ * @param <R> The type of object which should be returned. <br>
+ * @see org.prevayler.PrevaylerFactory#configureConcurrentQueries(boolean)
+ */
+public interface OptimisticQuery<P, R> extends Query<P, R> {
+
+}
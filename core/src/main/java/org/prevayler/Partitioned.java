@@ -0,0 +1,30 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/**
+ * A Prevalent System made of independent sections, which snapshots serialize and deserialize in parallel, each one
+ * into its own segment of the snapshot file.
+ * <br>
+ * <br>The Prevalent System itself is serialized into a segment of its own, so it must not refer to its sections in
+ * any way that gets serialized (through transient fields, for example), and no section may refer to another section
+ * or to the Prevalent System. Objects reachable from more than one of them would be duplicated upon recovery.
+ *
+ * @see org.prevayler.Prevayler#takeSnapshot()
+ */
+public interface Partitioned {
+
+  /**
+   * Returns the sections to be serialized, each one independently of the others.
+   */
+  public Object[] sections();
+
+  /**
+   * Called upon recovery on the deserialized Prevalent System, with its deserialized sections in the order
+   * sections() returned them.
+   */
+  public void restoreSections(Object[] sections);
+
+}
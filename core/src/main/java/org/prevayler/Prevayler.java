@@ -6,6 +6,7 @@ package org.prevayler;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 
 /**
@@ -35,6 +36,20 @@ public interface Prevayler<P> {
    */
   public void execute(Transaction<? super P> transaction);
 
+  /**
+   * Executes the given transactions on the prevalentSystem(), in order, as a single Transaction: they are journaled together and no other Transaction, Query or snapshot gets in between them. This is much cheaper than executing them one by one, for bulk loads for example.
+   * If one of them throws a RuntimeException, those after it are not executed, neither now nor during recovery, and the RuntimeException is thrown by this method.
+   */
+  public void execute(List<? extends Transaction<? super P>> transactions);
+
+  /**
+   * Executes the given RootTransaction, replacing the prevalentSystem() with the one it returns. It is journaled and executed one at a time together with all other transactions, just like a Transaction.
+   * With an immutable prevalent system configured, this is the only way of changing it, and queries and snapshots then never wait for transactions: each one simply uses the prevalentSystem() that is current when it starts.
+   *
+   * @see org.prevayler.PrevaylerFactory#configureImmutablePrevalentSystem(boolean)
+   */
+  public void executeRoot(RootTransaction<P> rootTransaction);
+
   /**
    * Executes the given sensitiveQuery on the prevalentSystem(). A sensitiveQuery is a Query that would be affected by the concurrent execution of a Transaction or other sensitiveQuery. This method synchronizes on the prevalentSystem() to execute the sensitiveQuery. It is therefore guaranteed that no other Transaction or sensitiveQuery is executed at the same time.
    * <br> Robust Queries (queries that do not affect other operations and that are not affected by them) can be executed directly as plain old method calls on the prevalentSystem() without the need of being implemented as Query objects. Examples of Robust Queries are queries that read the value of a single field or historical queries such as: "What was this account's balance at mid-night?".
@@ -61,6 +76,17 @@ public interface Prevayler<P> {
    */
   public <R> R execute(SureTransactionWithQuery<? super P, R> sureTransactionWithQuery);
 
+  /**
+   * Executes the given Transaction just like execute(Transaction) does, but returns as soon as the transaction has been written to the journal, without waiting for it to be synced and executed. The returned ListenableFuture is done once it has been, and tells its listeners. If the transaction could not be journaled, Future.get() throws an ExecutionException with the cause.
+   * Transactions executed asynchronously are still executed one at a time, in the order in which they are journaled, together with those executed synchronously. No thread is held up on behalf of each one, and those journaled at about the same time share a single journal sync.
+   */
+  public ListenableFuture<Void> executeAsync(Transaction<? super P> transaction);
+
+  /**
+   * Executes the given transactionWithQuery just like execute(TransactionWithQuery) does, but returns as soon as it has been written to the journal, like executeAsync(Transaction). The returned ListenableFuture is done once the transactionWithQuery has been synced and executed on the prevalentSystem(), and Future.get() returns its result or throws an ExecutionException with the Exception it threw.
+   */
+  public <R> ListenableFuture<R> executeAsyncWithQuery(TransactionWithQuery<? super P, R> transactionWithQuery);
+
   /**
    * Produces a complete serialized image of the underlying PrevalentSystem.
    * This will accelerate future system startups. Taking a snapshot once a day is enough for most applications.
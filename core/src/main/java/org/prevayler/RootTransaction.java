@@ -0,0 +1,31 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * An atomic transaction that, instead of changing the Prevalent System, returns a new one to replace it. Meant for
+ * Prevalent Systems that are immutable values sharing most of their structure from one version to the next.
+ * <br>
+ * <br>The same rules apply as for a Transaction: everything that makes up the new Prevalent System must be derived
+ * from the given <code>prevalentSystem</code> and from the fields of this RootTransaction.
+ *
+ * @param <P> The type of the Prevalent System you intend to perform the transaction upon. <br>
+ * @see org.prevayler.PrevaylerFactory#configureImmutablePrevalentSystem(boolean)
+ */
+public interface RootTransaction<P> extends Serializable {
+
+  /**
+   * This method is called by Prevayler.executeRoot(RootTransaction) to execute this RootTransaction on the given Prevalent System.
+   *
+   * @param prevalentSystem The current Prevalent System.
+   * @param executionTime   The time at which this RootTransaction is being executed.
+   * @return The Prevalent System that replaces the given one. Returning the given one itself means no change.
+   */
+  public P executeOn(P prevalentSystem, Date executionTime);
+
+}
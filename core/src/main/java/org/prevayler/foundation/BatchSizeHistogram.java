@@ -0,0 +1,69 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+/**
+ * Counts how many objects each sync of a DurableOutput covered, in power-of-two buckets: 1, 2, 3-4, 5-8 and so on.
+ */
+public class BatchSizeHistogram {
+
+  private static final int BUCKETS = 32;
+
+  private final long[] _counts = new long[BUCKETS];
+  private long _batches = 0;
+  private long _objects = 0;
+  private int _largest = 0;
+
+  public synchronized void record(int batchSize) {
+    if (batchSize <= 0) return;
+    _counts[bucket(batchSize)]++;
+    _batches++;
+    _objects += batchSize;
+    if (batchSize > _largest) _largest = batchSize;
+  }
+
+  private static int bucket(int batchSize) {
+    return 32 - Integer.numberOfLeadingZeros(batchSize - 1);
+  }
+
+  public synchronized long batches() {
+    return _batches;
+  }
+
+  public synchronized long objects() {
+    return _objects;
+  }
+
+  /**
+   * How many recorded batches had a size in the range (2^(bucket-1), 2^bucket].
+   */
+  public synchronized long count(int bucket) {
+    return _counts[bucket];
+  }
+
+  public synchronized double mean() {
+    return _batches == 0 ? 0 : (double) _objects / _batches;
+  }
+
+  public synchronized int largest() {
+    return _largest;
+  }
+
+  public synchronized String toString() {
+    StringBuffer result = new StringBuffer();
+    result.append(_batches).append(" syncs of ").append(_objects).append(" objects, mean ");
+    result.append(Math.round(mean() * 100) / 100.0).append(", largest ").append(_largest).append(":");
+    for (int i = 0; i < BUCKETS; i++) {
+      if (_counts[i] == 0) continue;
+      long high = 1L << i;
+      long low = i == 0 ? 1 : (high >> 1) + 1;
+      result.append(' ');
+      result.append(low == high ? String.valueOf(high) : low + "-" + high);
+      result.append('=').append(_counts[i]);
+    }
+    return result.toString();
+  }
+
+}
@@ -0,0 +1,43 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+/**
+ * A chunk in the binary journal format. Unlike Chunk, which carries arbitrary string parameters, a BinaryChunk
+ * carries a fixed header of primitive fields.
+ *
+ * @see BinaryChunking
+ */
+public class BinaryChunk {
+
+  private final byte _type;
+  private final long _version;
+  private final long _timestamp;
+  private final byte[] _bytes;
+
+  public BinaryChunk(byte type, long version, long timestamp, byte[] bytes) {
+    _type = type;
+    _version = version;
+    _timestamp = timestamp;
+    _bytes = bytes;
+  }
+
+  public byte getType() {
+    return _type;
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  public long getTimestamp() {
+    return _timestamp;
+  }
+
+  public byte[] getBytes() {
+    return _bytes;
+  }
+
+}
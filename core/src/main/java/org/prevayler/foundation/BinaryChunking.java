@@ -0,0 +1,149 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Writes and reads chunks in the binary journal format:
+ * <pre>
+ *   format   1 byte, always FORMAT_VERSION
+ *   type     1 byte
+ *   version  8 bytes, big-endian
+ *   time     8 bytes, big-endian
+ *   length   unsigned varint, 1 to 5 bytes
+ *   bytes    length bytes
+ *   crc      4 bytes, big-endian CRC-32C of everything from format through bytes
+ * </pre>
+ * A zero byte where a chunk should start marks the end of the written part of a preallocated journal file.
+ */
+public class BinaryChunking {
+
+  public static final byte FORMAT_VERSION = 1;
+
+  private static final int HEADER_LENGTH = 18;
+  private static final int MAX_VARINT_LENGTH = 5;
+
+  public static void writeChunk(OutputStream stream, BinaryChunk chunk) throws IOException {
+    byte[] bytes = chunk.getBytes();
+    byte[] header = new byte[HEADER_LENGTH + MAX_VARINT_LENGTH];
+    header[0] = FORMAT_VERSION;
+    header[1] = chunk.getType();
+    putLong(header, 2, chunk.getVersion());
+    putLong(header, 10, chunk.getTimestamp());
+    int headerLength = putVarint(header, HEADER_LENGTH, bytes.length);
+
+    Crc32c crc = new Crc32c();
+    crc.update(header, 0, headerLength);
+    crc.update(bytes, 0, bytes.length);
+
+    byte[] trailer = new byte[4];
+    putInt(trailer, 0, (int) crc.getValue());
+
+    stream.write(header, 0, headerLength);
+    stream.write(bytes);
+    stream.write(trailer);
+  }
+
+  /**
+   * @return The next chunk, or null if the stream ended (or preallocated space started) exactly where a chunk should start.
+   * @throws EOFException             if the stream ended in the middle of a chunk.
+   * @throws StreamCorruptedException if the chunk failed its checksum.
+   */
+  public static BinaryChunk readChunk(InputStream stream) throws IOException {
+    int format = stream.read();
+    if (format == -1 || format == 0) {
+      return null;
+    }
+    if (format != FORMAT_VERSION) {
+      throw new IOException("Unsupported binary chunk format " + format);
+    }
+
+    byte[] header = new byte[HEADER_LENGTH + MAX_VARINT_LENGTH];
+    header[0] = (byte) format;
+    readFully(stream, header, 1, HEADER_LENGTH - 1, "header");
+
+    int headerLength = HEADER_LENGTH;
+    int size = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (headerLength == header.length) {
+        throw new StreamCorruptedException("Chunk length corrupted");
+      }
+      int b = stream.read();
+      if (b == -1) {
+        throw new EOFException("Unexpected end of stream in chunk header");
+      }
+      header[headerLength++] = (byte) b;
+      size |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) break;
+    }
+    if (size < 0) {
+      throw new StreamCorruptedException("Chunk length corrupted");
+    }
+
+    byte[] bytes = new byte[size];
+    readFully(stream, bytes, 0, size, "data");
+
+    byte[] trailer = new byte[4];
+    readFully(stream, trailer, 0, 4, "trailer");
+
+    Crc32c crc = new Crc32c();
+    crc.update(header, 0, headerLength);
+    crc.update(bytes, 0, size);
+    if (getInt(trailer, 0) != (int) crc.getValue()) {
+      throw new StreamCorruptedException("Chunk checksum mismatch");
+    }
+
+    return new BinaryChunk(header[1], getLong(header, 2), getLong(header, 10), bytes);
+  }
+
+  private static void readFully(InputStream stream, byte[] bytes, int offset, int length, String part) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int read = stream.read(bytes, offset + total, length - total);
+      if (read == -1) {
+        throw new EOFException("Unexpected end of stream in chunk " + part);
+      }
+      total += read;
+    }
+  }
+
+  private static int putVarint(byte[] bytes, int offset, int value) {
+    while ((value & ~0x7F) != 0) {
+      bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[offset++] = (byte) value;
+    return offset;
+  }
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    putInt(bytes, offset, (int) (value >>> 32));
+    putInt(bytes, offset + 4, (int) value);
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static long getLong(byte[] bytes, int offset) {
+    return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24)
+        | ((bytes[offset + 1] & 0xFF) << 16)
+        | ((bytes[offset + 2] & 0xFF) << 8)
+        | (bytes[offset + 3] & 0xFF);
+  }
+
+}
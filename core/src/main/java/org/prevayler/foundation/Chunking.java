@@ -88,6 +88,12 @@ public class Chunking {
   }
 
   private static String readLine(InputStream stream) throws IOException {
+    if (stream instanceof ReadAheadInputStream) {
+      byte[] line = ((ReadAheadInputStream) stream).readThrough((byte) '\n');
+      if (line == null) return null;
+      return new String(line, ASCII);
+    }
+
     ByteArrayOutputStream header = new ByteArrayOutputStream();
     while (true) {
       int b = stream.read();
@@ -1,5 +1,6 @@
 package org.prevayler.foundation;
 
+import java.util.concurrent.locks.Condition;
 
 /**
  * Cool things that are often needed.
@@ -14,6 +15,18 @@ public class Cool {
     }
   }
 
+  /**
+   * Like wait(Object), for threads holding a Lock instead of a monitor. Unlike Object.wait(), this doesn't pin a
+   * virtual thread to its carrier thread.
+   */
+  public static void await(Condition condition) {
+    try {
+      condition.await();
+    } catch (InterruptedException e) {
+      unexpected(e);
+    }
+  }
+
   public static void sleep(long milliseconds) {
     try {
       Thread.sleep(milliseconds);
@@ -0,0 +1,49 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32C (Castagnoli) checksum, as used by iSCSI and ext4. Its polynomial detects more of the error patterns
+ * typical of storage than the CRC-32 in java.util.zip.
+ */
+public class Crc32c implements Checksum {
+
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+      }
+      TABLE[i] = crc;
+    }
+  }
+
+  private int _crc = 0xFFFFFFFF;
+
+  public void update(int b) {
+    _crc = (_crc >>> 8) ^ TABLE[(_crc ^ b) & 0xFF];
+  }
+
+  public void update(byte[] bytes, int offset, int length) {
+    int crc = _crc;
+    for (int i = offset; i < offset + length; i++) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ bytes[i]) & 0xFF];
+    }
+    _crc = crc;
+  }
+
+  public long getValue() {
+    return (~_crc) & 0xFFFFFFFFL;
+  }
+
+  public void reset() {
+    _crc = 0xFFFFFFFF;
+  }
+
+}
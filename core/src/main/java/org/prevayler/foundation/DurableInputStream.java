@@ -23,12 +23,40 @@ public class DurableInputStream {
     _fileStream = new BufferedInputStream(new FileInputStream(file));
   }
 
+  /**
+   * @param bufferSize How many bytes are read from the file at a time.
+   */
+  public DurableInputStream(File file, Monitor monitor, int bufferSize) throws IOException {
+    _monitor = monitor;
+    _file = file;
+    _fileStream = new BufferedInputStream(new FileInputStream(file), bufferSize);
+  }
+
+  /**
+   * @param fileStream Already open on the file, a ReadAheadInputStream for example.
+   */
+  public DurableInputStream(File file, Monitor monitor, InputStream fileStream) {
+    _monitor = monitor;
+    _file = file;
+    _fileStream = fileStream;
+  }
+
 
   public Chunk readChunk() throws IOException {
+    return (Chunk) read(false);
+  }
+
+
+  public BinaryChunk readBinaryChunk() throws IOException {
+    return (BinaryChunk) read(true);
+  }
+
+
+  private Object read(boolean binary) throws IOException {
     if (_EOF) throw new EOFException();
 
     try {
-      Chunk chunk = Chunking.readChunk(_fileStream);
+      Object chunk = binary ? (Object) BinaryChunking.readChunk(_fileStream) : Chunking.readChunk(_fileStream);
       if (chunk != null) return chunk;
     } catch (EOFException eofx) {
       // Do nothing.
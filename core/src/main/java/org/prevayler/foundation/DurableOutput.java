@@ -0,0 +1,49 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A journal file to which Guided objects are written and synced in turn.
+ *
+ * @see DurableOutputStream
+ * @see MappedDurableOutputStream
+ */
+public interface DurableOutput {
+
+  /**
+   * Writes the given guide in its turn and returns only after it has been synced (or at least flushed to the
+   * operating system if disk sync is disabled).
+   */
+  public void sync(Guided guide) throws IOException;
+
+  /**
+   * Writes the given guide in its turn, like sync(), but returns without waiting for it to be synced.
+   *
+   * @return The number to pass to waitUntilSynced().
+   */
+  public int write(Guided guide) throws IOException;
+
+  /**
+   * Returns only after the object written by the given call to write() has been synced, like sync().
+   */
+  public void waitUntilSynced(int write) throws IOException;
+
+  public void close() throws IOException;
+
+  public File file();
+
+  public int fileSyncCount();
+
+  /**
+   * The number of objects covered by each sync so far.
+   */
+  public BatchSizeHistogram batchSizes();
+
+  public boolean reallyClosed();
+
+}
@@ -7,8 +7,10 @@ package org.prevayler.foundation;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class DurableOutputStream {
+public class DurableOutputStream implements DurableOutput {
   static final int JOURNAL_PREALLOCATE_LENGTH = 1024 * 1024;
 
   /**
@@ -17,10 +19,11 @@ public class DurableOutputStream {
    * the buffer and syncing to disk on the other hand, to proceed
    * concurrently. Note that where both locks are required, we always
    * acquire the _syncLock before acquiring the _writeLock to avoid
-   * deadlock.
+   * deadlock. They are Locks rather than monitors so that virtual
+   * threads waiting for a sync don't pin their carrier threads.
    */
-  private final Object _writeLock = new Object();
-  private final Object _syncLock = new Object();
+  private final ReentrantLock _writeLock = new ReentrantLock();
+  private final ReentrantLock _syncLock = new ReentrantLock();
 
   /**
    * The File object is only stashed for the sake of the file() getter.
@@ -43,6 +46,21 @@ public class DurableOutputStream {
    */
   private final boolean _journalDiskSync;
 
+  /**
+   * Immutable.
+   */
+  private final GroupCommitPolicy _groupCommitPolicy;
+
+  /**
+   * Thread-safe on its own; only written while holding _syncLock.
+   */
+  private final BatchSizeHistogram _batchSizes = new BatchSizeHistogram();
+
+  /**
+   * The thread holding _syncLock while it waits for more objects to be written, if any.
+   */
+  private volatile Thread _waitingSyncer = null;
+
   /**
    * All access guarded by _writeLock.
    */
@@ -74,6 +92,10 @@ public class DurableOutputStream {
   private int _fileSyncCount = 0;
 
   public DurableOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold) throws IOException {
+    this(file, journalDiskSync, journalSizeThreshold, GroupCommitPolicy.NONE);
+  }
+
+  public DurableOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold, GroupCommitPolicy groupCommitPolicy) throws IOException {
     _file = file;
     _fileOutputStream = new FileOutputStream(file);
     _fileChannel = _fileOutputStream.getChannel();
@@ -81,6 +103,7 @@ public class DurableOutputStream {
         JOURNAL_PREALLOCATE_LENGTH :
           (int) Math.min(journalSizeThreshold-1, JOURNAL_PREALLOCATE_LENGTH);
     _journalDiskSync = journalDiskSync;
+    _groupCommitPolicy = groupCommitPolicy;
   }
 
   private void preallocate() throws IOException {
@@ -103,6 +126,15 @@ public class DurableOutputStream {
   }
 
   public void sync(Guided guide) throws IOException {
+    int thisWrite = write(guide);
+
+    // Now, having ended the turn, the next thread is allowed to come in
+    // and try to write its object before we get to the sync.
+
+    waitUntilSynced(thisWrite);
+  }
+
+  public int write(Guided guide) throws IOException {
     int thisWrite;
 
     // When a thread arrives here, all we care about at first is that it
@@ -114,15 +146,13 @@ public class DurableOutputStream {
     } finally {
       guide.endTurn();
     }
-
-    // Now, having ended the turn, the next thread is allowed to come in
-    // and try to write its object before we get to the sync.
-
-    waitUntilSynced(thisWrite);
+    return thisWrite;
   }
 
   private int writeObject(Guided guide) throws IOException {
-    synchronized (_writeLock) {
+    int thisWrite;
+    _writeLock.lock();
+    try {
       if (_closed) {
         throw new IOException("already closed");
       }
@@ -135,11 +165,18 @@ public class DurableOutputStream {
       }
 
       _objectsWritten++;
-      return _objectsWritten;
+      thisWrite = _objectsWritten;
+    } finally {
+      _writeLock.unlock();
     }
+
+    Thread syncer = _waitingSyncer;
+    if (syncer != null) LockSupport.unpark(syncer);
+
+    return thisWrite;
   }
 
-  private void waitUntilSynced(int thisWrite) throws IOException {
+  public void waitUntilSynced(int thisWrite) throws IOException {
     // Here's the real magic. If this thread is the first to have written
     // an object after a period of inactivity, and there are no other
     // threads coming in, then thisWrite is trivially one greater than
@@ -166,11 +203,23 @@ public class DurableOutputStream {
     // flush and sync all 10 objects at once. Each of the 10 threads will
     // acquire _syncLock in turn and now see that their object has already
     // been synced and do nothing.
+    //
+    // Under moderate load, though, threads seldom arrive during a sync and
+    // each one ends up paying for its own. If a GroupCommitPolicy with a
+    // wait is configured, the syncing thread gives other threads up to that
+    // long to write their objects to the _active buffer before swapping,
+    // unless the batch fills up first.
 
-    synchronized (_syncLock) {
+    _syncLock.lock();
+    try {
       if (_objectsSynced < thisWrite) {
+        if (_groupCommitPolicy.waits()) {
+          waitForBatch();
+        }
+
         int objectsWritten;
-        synchronized (_writeLock) {
+        _writeLock.lock();
+        try {
           if (_closed) {
             throw new IOException("already closed");
           }
@@ -180,6 +229,8 @@ public class DurableOutputStream {
           _inactive = swap;
 
           objectsWritten = _objectsWritten;
+        } finally {
+          _writeLock.unlock();
         }
 
         try {
@@ -203,15 +254,47 @@ public class DurableOutputStream {
           throw exception;
         }
 
+        _batchSizes.record(objectsWritten - _objectsSynced);
         _objectsSynced = objectsWritten;
         _fileSyncCount++;
       }
+    } finally {
+      _syncLock.unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding _syncLock.
+   */
+  private void waitForBatch() {
+    long deadline = System.nanoTime() + _groupCommitPolicy.maxWaitNanos();
+    _waitingSyncer = Thread.currentThread();
+    try {
+      while (true) {
+        _writeLock.lock();
+        try {
+          if (_closed || _groupCommitPolicy.isFull(_objectsWritten - _objectsSynced, _active.size())) {
+            return;
+          }
+        } finally {
+          _writeLock.unlock();
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+    } finally {
+      _waitingSyncer = null;
     }
   }
 
   public void close() throws IOException {
-    synchronized (_syncLock) {
-      synchronized (_writeLock) {
+    _syncLock.lock();
+    try {
+      _writeLock.lock();
+      try {
         if (_closed) {
           return;
         }
@@ -221,15 +304,22 @@ public class DurableOutputStream {
         if (_fileChannel != null && _fileChannel.isOpen())
           _fileChannel.truncate(_fileChannel.position());
         _fileOutputStream.close();
+      } finally {
+        _writeLock.unlock();
       }
+    } finally {
+      _syncLock.unlock();
     }
   }
 
   private void internalClose() {
-    synchronized (_writeLock) {
+    _writeLock.lock();
+    try {
       _closed = true;
       _active = null;
       _inactive = null;
+    } finally {
+      _writeLock.unlock();
     }
   }
 
@@ -237,15 +327,28 @@ public class DurableOutputStream {
     return _file;
   }
 
-  public synchronized int fileSyncCount() {
-    synchronized (_syncLock) {
+  public int fileSyncCount() {
+    _syncLock.lock();
+    try {
       return _fileSyncCount;
+    } finally {
+      _syncLock.unlock();
     }
   }
 
+  /**
+   * The number of objects covered by each sync so far.
+   */
+  public BatchSizeHistogram batchSizes() {
+    return _batchSizes;
+  }
+
   public boolean reallyClosed() {
-    synchronized (_writeLock) {
+    _writeLock.lock();
+    try {
       return _closed;
+    } finally {
+      _writeLock.unlock();
     }
   }
 }
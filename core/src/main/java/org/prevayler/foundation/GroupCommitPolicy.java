@@ -0,0 +1,50 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+/**
+ * Tells a DurableOutput how long to hold a sync back so that more transactions can be written and synced along
+ * with it. Without a wait, transactions are only synced together when they happen to arrive while an earlier sync
+ * is in progress.
+ */
+public class GroupCommitPolicy {
+
+  /**
+   * Never waits: every sync starts as soon as its thread gets the chance.
+   */
+  public static final GroupCommitPolicy NONE = new GroupCommitPolicy(0, 0, 0);
+
+  private final long _maxWaitNanos;
+  private final long _maxBatchBytes;
+  private final int _maxBatchCount;
+
+  /**
+   * @param maxWaitMicros The longest a sync will wait for more transactions. Zero means never wait.
+   * @param maxBatchBytes The sync starts right away once this many bytes are waiting to be synced. Zero means no limit.
+   * @param maxBatchCount The sync starts right away once this many transactions are waiting to be synced. Zero means no limit.
+   */
+  public GroupCommitPolicy(long maxWaitMicros, long maxBatchBytes, int maxBatchCount) {
+    if (maxWaitMicros < 0 || maxBatchBytes < 0 || maxBatchCount < 0) {
+      throw new IllegalArgumentException("Group commit limits must be non-negative");
+    }
+    _maxWaitNanos = maxWaitMicros * 1000;
+    _maxBatchBytes = maxBatchBytes;
+    _maxBatchCount = maxBatchCount;
+  }
+
+  public boolean waits() {
+    return _maxWaitNanos > 0;
+  }
+
+  public long maxWaitNanos() {
+    return _maxWaitNanos;
+  }
+
+  public boolean isFull(int batchCount, long batchBytes) {
+    return (_maxBatchCount != 0 && batchCount >= _maxBatchCount)
+        || (_maxBatchBytes != 0 && batchBytes >= _maxBatchBytes);
+  }
+
+}
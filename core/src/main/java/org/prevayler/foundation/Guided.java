@@ -7,20 +7,71 @@ public abstract class Guided {
 
   private final Turn _turn;
 
+  /**
+   * Used instead of _turn when this guide was given a sequence of a TurnSequencer, in which case _stage counts the
+   * stages started so far.
+   */
+  private final TurnSequencer _sequencer;
+  private final long _sequence;
+  private int _stage = 0;
+
+  /**
+   * The guide whose turn is shared, if any.
+   */
+  private final Guided _shared;
+
   protected Guided(Turn turn) {
     _turn = turn;
+    _sequencer = null;
+    _sequence = -1;
+    _shared = null;
+  }
+
+  protected Guided(TurnSequencer sequencer, long sequence) {
+    _turn = null;
+    _sequencer = sequencer;
+    _sequence = sequence;
+    _shared = null;
+  }
+
+  /**
+   * Shares the turn of the given guide, for writing the same thing in a different way.
+   */
+  protected Guided(Guided guided) {
+    _turn = null;
+    _sequencer = null;
+    _sequence = -1;
+    _shared = guided;
   }
 
   public void startTurn() {
-    _turn.start();
+    if (_shared != null) {
+      _shared.startTurn();
+    } else if (_sequencer != null) {
+      _sequencer.start(_sequence, _stage);
+    } else {
+      _turn.start();
+    }
   }
 
   public void endTurn() {
-    _turn.end();
+    if (_shared != null) {
+      _shared.endTurn();
+    } else if (_sequencer != null) {
+      _sequencer.end(_sequence, _stage++);
+    } else {
+      _turn.end();
+    }
   }
 
   public void abortTurn(String message, Throwable cause) {
-    _turn.abort(message, cause);
+    if (_shared != null) {
+      _shared.abortTurn(message, cause);
+    } else if (_sequencer != null) {
+      _sequencer.abort(_sequence, message, cause);
+    } else {
+      _turn.abort(message, cause);
+    }
   }
 
   public abstract void writeTo(OutputStream stream) throws IOException;
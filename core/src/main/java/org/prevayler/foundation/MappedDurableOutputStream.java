@@ -0,0 +1,344 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A DurableOutput that writes straight into memory-mapped regions of the journal file instead of buffering in memory
+ * and copying to a FileOutputStream. The on-disk format is exactly the same as that of DurableOutputStream.
+ * <p/>
+ * The file is mapped one region at a time as it grows. Mapping a region beyond the end of the file extends it
+ * without writing any zeroes, and syncing forces only the regions written since the last sync. Uses the same
+ * two-lock scheme as DurableOutputStream, so that writing and syncing can proceed concurrently.
+ */
+public class MappedDurableOutputStream implements DurableOutput {
+
+  /**
+   * Regions are never mapped smaller than this, however small the journal size threshold.
+   */
+  static final int MIN_REGION_LENGTH = 4096;
+
+  private final ReentrantLock _writeLock = new ReentrantLock();
+  private final ReentrantLock _syncLock = new ReentrantLock();
+
+  /**
+   * The File object is only stashed for the sake of the file() getter.
+   */
+  private final File _file;
+
+  /**
+   * Immutable.
+   */
+  private final RandomAccessFile _randomAccessFile;
+  private final FileChannel _fileChannel;
+  private final int _regionLength;
+  private final boolean _journalDiskSync;
+  private final GroupCommitPolicy _groupCommitPolicy;
+
+  /**
+   * Thread-safe on its own; only written while holding _syncLock.
+   */
+  private final BatchSizeHistogram _batchSizes = new BatchSizeHistogram();
+
+  /**
+   * The thread holding _syncLock while it waits for more objects to be written, if any.
+   */
+  private volatile Thread _waitingSyncer = null;
+
+  /**
+   * All access guarded by _writeLock. Region i covers the file from i * _regionLength up to (i + 1) * _regionLength.
+   */
+  private final List<MappedByteBuffer> _regions = new ArrayList<MappedByteBuffer>();
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private final OutputStream _regionStream = new RegionOutputStream();
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private long _position = 0;
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private boolean _closed = false;
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private int _objectsWritten = 0;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private long _syncedPosition = 0;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private int _objectsSynced = 0;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private int _fileSyncCount = 0;
+
+  public MappedDurableOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold) throws IOException {
+    this(file, journalDiskSync, journalSizeThreshold, GroupCommitPolicy.NONE);
+  }
+
+  public MappedDurableOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold, GroupCommitPolicy groupCommitPolicy) throws IOException {
+    if (journalSizeThreshold < 0) throw new IllegalArgumentException("Invalid journal size threshold: " + journalSizeThreshold);
+    _file = file;
+    _randomAccessFile = new RandomAccessFile(file, "rw");
+    _randomAccessFile.setLength(0);
+    _fileChannel = _randomAccessFile.getChannel();
+    _regionLength = journalSizeThreshold == 0 ?
+        DurableOutputStream.JOURNAL_PREALLOCATE_LENGTH :
+          (int) Math.max(MIN_REGION_LENGTH, Math.min(journalSizeThreshold - 1, DurableOutputStream.JOURNAL_PREALLOCATE_LENGTH));
+    _journalDiskSync = journalDiskSync;
+    _groupCommitPolicy = groupCommitPolicy;
+  }
+
+  public void sync(Guided guide) throws IOException {
+    waitUntilSynced(write(guide));
+  }
+
+  public int write(Guided guide) throws IOException {
+    int thisWrite;
+
+    guide.startTurn();
+    try {
+      thisWrite = writeObject(guide);
+    } finally {
+      guide.endTurn();
+    }
+    return thisWrite;
+  }
+
+  private int writeObject(Guided guide) throws IOException {
+    int thisWrite;
+    _writeLock.lock();
+    try {
+      if (_closed) {
+        throw new IOException("already closed");
+      }
+
+      try {
+        guide.writeTo(_regionStream);
+      } catch (IOException exception) {
+        internalClose();
+        throw exception;
+      }
+
+      _objectsWritten++;
+      thisWrite = _objectsWritten;
+    } finally {
+      _writeLock.unlock();
+    }
+
+    Thread syncer = _waitingSyncer;
+    if (syncer != null) LockSupport.unpark(syncer);
+
+    return thisWrite;
+  }
+
+  public void waitUntilSynced(int thisWrite) throws IOException {
+    // See DurableOutputStream.waitUntilSynced() for how concurrent writers end up sharing a single sync. The
+    // difference here is that the bytes are already in the page cache once written, so there is no buffer to swap;
+    // we just note how far the writers have gotten and force the regions up to that point.
+
+    _syncLock.lock();
+    try {
+      if (_objectsSynced < thisWrite) {
+        if (_groupCommitPolicy.waits()) {
+          waitForBatch();
+        }
+
+        int objectsWritten;
+        long position;
+        MappedByteBuffer[] dirtyRegions;
+        _writeLock.lock();
+        try {
+          if (_closed) {
+            throw new IOException("already closed");
+          }
+
+          objectsWritten = _objectsWritten;
+          position = _position;
+          dirtyRegions = regionsBetween(_syncedPosition, position);
+        } finally {
+          _writeLock.unlock();
+        }
+
+        if (_journalDiskSync) {
+          for (int i = 0; i < dirtyRegions.length; i++) {
+            dirtyRegions[i].force();
+          }
+        }
+
+        _batchSizes.record(objectsWritten - _objectsSynced);
+        _syncedPosition = position;
+        _objectsSynced = objectsWritten;
+        _fileSyncCount++;
+      }
+    } finally {
+      _syncLock.unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding _syncLock. See DurableOutputStream.waitForBatch().
+   */
+  private void waitForBatch() {
+    long deadline = System.nanoTime() + _groupCommitPolicy.maxWaitNanos();
+    _waitingSyncer = Thread.currentThread();
+    try {
+      while (true) {
+        _writeLock.lock();
+        try {
+          if (_closed || _groupCommitPolicy.isFull(_objectsWritten - _objectsSynced, _position - _syncedPosition)) {
+            return;
+          }
+        } finally {
+          _writeLock.unlock();
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+    } finally {
+      _waitingSyncer = null;
+    }
+  }
+
+  private MappedByteBuffer[] regionsBetween(long start, long end) {
+    if (end <= start) {
+      return new MappedByteBuffer[0];
+    }
+    int first = (int) (start / _regionLength);
+    int last = (int) ((end - 1) / _regionLength);
+    MappedByteBuffer[] result = new MappedByteBuffer[last - first + 1];
+    for (int i = first; i <= last; i++) {
+      result[i - first] = _regions.get(i);
+    }
+    return result;
+  }
+
+  public void close() throws IOException {
+    _syncLock.lock();
+    try {
+      _writeLock.lock();
+      try {
+        if (_closed) {
+          return;
+        }
+
+        internalClose();
+        if (_fileChannel.isOpen()) {
+          try {
+            // Remove the unused part of the last region from the journal.
+            _fileChannel.truncate(_position);
+          } catch (IOException exception) {
+            // Some platforms refuse to truncate a file that is still mapped. The trailing zeroes are harmless:
+            // recovery treats them just like an incomplete chunk at the end of the journal.
+          }
+        }
+        _randomAccessFile.close();
+      } finally {
+        _writeLock.unlock();
+      }
+    } finally {
+      _syncLock.unlock();
+    }
+  }
+
+  private void internalClose() {
+    _writeLock.lock();
+    try {
+      _closed = true;
+      _regions.clear();
+    } finally {
+      _writeLock.unlock();
+    }
+  }
+
+  public File file() {
+    return _file;
+  }
+
+  public int fileSyncCount() {
+    _syncLock.lock();
+    try {
+      return _fileSyncCount;
+    } finally {
+      _syncLock.unlock();
+    }
+  }
+
+  public BatchSizeHistogram batchSizes() {
+    return _batchSizes;
+  }
+
+  public boolean reallyClosed() {
+    _writeLock.lock();
+    try {
+      return _closed;
+    } finally {
+      _writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes at _position, mapping new regions as needed. All access guarded by _writeLock.
+   */
+  private class RegionOutputStream extends OutputStream {
+
+    private final byte[] _single = new byte[1];
+
+    public void write(int b) throws IOException {
+      _single[0] = (byte) b;
+      write(_single, 0, 1);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        MappedByteBuffer region = regionAt(_position);
+        int regionOffset = (int) (_position % _regionLength);
+        int count = Math.min(length, _regionLength - regionOffset);
+        region.position(regionOffset);
+        region.put(bytes, offset, count);
+        _position += count;
+        offset += count;
+        length -= count;
+      }
+    }
+
+    private MappedByteBuffer regionAt(long position) throws IOException {
+      int index = (int) (position / _regionLength);
+      while (_regions.size() <= index) {
+        long regionStart = (long) _regions.size() * _regionLength;
+        _regions.add(_fileChannel.map(FileChannel.MapMode.READ_WRITE, regionStart, _regionLength));
+      }
+      return _regions.get(index);
+    }
+
+  }
+
+}
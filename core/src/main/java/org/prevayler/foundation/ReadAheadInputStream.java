@@ -0,0 +1,164 @@
+package org.prevayler.foundation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads a file sequentially through two direct buffers: while one is being consumed, the next block of the file is
+ * read into the other on a background thread. The first block starts being read as soon as the stream is created,
+ * so creating the stream for a file ahead of time prefetches it.
+ * <br>
+ * <br>Not thread-safe, unlike BufferedInputStream, so single-byte reads are cheap.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Prevayler Read-Ahead");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final FileChannel _channel;
+  private ByteBuffer _current;
+  private ByteBuffer _next;
+  private Future<Integer> _pending;
+  private boolean _EOF = false;
+
+  /**
+   * @param blockSize How many bytes are read from the file at a time.
+   */
+  public ReadAheadInputStream(File file, int blockSize) throws IOException {
+    if (blockSize <= 0) throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    _channel = new FileInputStream(file).getChannel();
+    _current = ByteBuffer.allocateDirect(blockSize);
+    _current.limit(0);
+    _next = ByteBuffer.allocateDirect(blockSize);
+    readAhead();
+  }
+
+  private void readAhead() {
+    final ByteBuffer buffer = _next;
+    buffer.clear();
+    _pending = READERS.submit(new Callable<Integer>() {
+      public Integer call() throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+          int read = _channel.read(buffer);
+          if (read < 0) break;
+          total += read;
+        }
+        buffer.flip();
+        return total;
+      }
+    });
+  }
+
+  /**
+   * Makes the block read ahead the current one and starts reading the following one.
+   *
+   * @return false if the file has ended.
+   */
+  private boolean nextBlock() throws IOException {
+    if (_EOF) return false;
+    int read = awaitPending();
+    if (read == 0) {
+      _EOF = true;
+      return false;
+    }
+    ByteBuffer consumed = _current;
+    _current = _next;
+    _next = consumed;
+    readAhead();
+    return true;
+  }
+
+  private int awaitPending() throws IOException {
+    try {
+      return _pending.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause.toString());
+    }
+  }
+
+  public int read() throws IOException {
+    if (!_current.hasRemaining() && !nextBlock()) return -1;
+    return _current.get() & 0xFF;
+  }
+
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    int total = 0;
+    while (total < length) {
+      if (!_current.hasRemaining() && !nextBlock()) break;
+      int count = Math.min(length - total, _current.remaining());
+      _current.get(bytes, offset + total, count);
+      total += count;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  /**
+   * Reads up to and including the next occurrence of the delimiter, scanning the blocks in place.
+   *
+   * @return null if the file had already ended.
+   * @throws EOFException if the file ended before the delimiter.
+   */
+  public byte[] readThrough(byte delimiter) throws IOException {
+    byte[] result = null;
+    while (true) {
+      if (!_current.hasRemaining() && !nextBlock()) {
+        if (result == null) return null;
+        throw new EOFException("Unexpected end of stream before delimiter");
+      }
+      int start = _current.position();
+      int end = start;
+      int limit = _current.limit();
+      while (end < limit && _current.get(end) != delimiter) end++;
+      boolean found = end < limit;
+      if (found) end++;
+
+      int offset = result == null ? 0 : result.length;
+      byte[] grown = new byte[offset + end - start];
+      if (result != null) System.arraycopy(result, 0, grown, 0, offset);
+      _current.get(grown, offset, end - start);
+      result = grown;
+      if (found) return result;
+    }
+  }
+
+  public int available() {
+    return _current.remaining();
+  }
+
+  public void close() throws IOException {
+    _EOF = true;
+    _current.limit(0);
+    try {
+      awaitPending();
+    } catch (IOException ignored) {
+      // The stream is being closed anyway.
+    } finally {
+      _channel.close();
+    }
+  }
+
+}
@@ -0,0 +1,168 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed number of fixed-size records of primitive fields, kept outside the Java heap. A primitive array is simply
+ * a RecordTable whose records hold one element each.
+ * <br>
+ * <br>The records are laid out one after another in blocks of at most MAX_BLOCK_SIZE bytes, little-endian, so that
+ * a snapshot serializer such as MappedSnapshotSerializer can write each block as is and map it straight back upon
+ * recovery. Java serialization copies the contents, as for any other object.
+ * <br>
+ * <br>Like the rest of the prevalent system, a RecordTable must only be changed by transactions.
+ */
+public final class RecordTable implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final int MAX_BLOCK_SIZE = 1 << 30;
+
+  private int _recordSize;
+  private long _capacity;
+  private transient int _recordsPerBlock;
+  private transient ByteBuffer[] _blocks;
+
+  /**
+   * Creates a table of <code>capacity</code> records of <code>recordSize</code> bytes each, all zeroed.
+   */
+  public RecordTable(int recordSize, long capacity) {
+    this(recordSize, capacity, allocate(recordSize, capacity));
+  }
+
+  /**
+   * Creates a table over existing blocks, laid out as blocks() returns them.
+   */
+  public RecordTable(int recordSize, long capacity, ByteBuffer[] blocks) {
+    if (blocks.length != blockCount(recordSize, capacity)) {
+      throw new IllegalArgumentException(blocks.length + " blocks given, but " + capacity + " records of " + recordSize + " bytes need " + blockCount(recordSize, capacity));
+    }
+    _recordSize = recordSize;
+    _capacity = capacity;
+    _recordsPerBlock = recordsPerBlock(recordSize);
+    _blocks = blocks;
+    for (int i = 0; i < blocks.length; i++) blocks[i].order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static ByteBuffer[] allocate(int recordSize, long capacity) {
+    ByteBuffer[] blocks = new ByteBuffer[blockCount(recordSize, capacity)];
+    for (int i = 0; i < blocks.length; i++) blocks[i] = ByteBuffer.allocateDirect(blockSize(recordSize, capacity, i));
+    return blocks;
+  }
+
+  private static int recordsPerBlock(int recordSize) {
+    if (recordSize <= 0 || recordSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException("Invalid record size: " + recordSize);
+    return MAX_BLOCK_SIZE / recordSize;
+  }
+
+  public static int blockCount(int recordSize, long capacity) {
+    if (capacity < 0) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    int recordsPerBlock = recordsPerBlock(recordSize);
+    return (int) ((capacity + recordsPerBlock - 1) / recordsPerBlock);
+  }
+
+  /**
+   * The size in bytes of the given block of a table with the given layout.
+   */
+  public static int blockSize(int recordSize, long capacity, int block) {
+    int recordsPerBlock = recordsPerBlock(recordSize);
+    long records = Math.min(recordsPerBlock, capacity - (long) block * recordsPerBlock);
+    return (int) records * recordSize;
+  }
+
+  public int recordSize() {
+    return _recordSize;
+  }
+
+  public long capacity() {
+    return _capacity;
+  }
+
+  /**
+   * Returns views of the blocks holding the records, for snapshot serializers. They must not be changed.
+   */
+  public ByteBuffer[] blocks() {
+    ByteBuffer[] result = new ByteBuffer[_blocks.length];
+    for (int i = 0; i < result.length; i++) result[i] = _blocks[i].duplicate();
+    return result;
+  }
+
+  public byte getByte(long record, int offset) {
+    return block(record).get(position(record, offset, 1));
+  }
+
+  public void putByte(long record, int offset, byte value) {
+    block(record).put(position(record, offset, 1), value);
+  }
+
+  public int getInt(long record, int offset) {
+    return block(record).getInt(position(record, offset, 4));
+  }
+
+  public void putInt(long record, int offset, int value) {
+    block(record).putInt(position(record, offset, 4), value);
+  }
+
+  public long getLong(long record, int offset) {
+    return block(record).getLong(position(record, offset, 8));
+  }
+
+  public void putLong(long record, int offset, long value) {
+    block(record).putLong(position(record, offset, 8), value);
+  }
+
+  public double getDouble(long record, int offset) {
+    return block(record).getDouble(position(record, offset, 8));
+  }
+
+  public void putDouble(long record, int offset, double value) {
+    block(record).putDouble(position(record, offset, 8), value);
+  }
+
+  private ByteBuffer block(long record) {
+    if (record < 0 || record >= _capacity) throw new IndexOutOfBoundsException("Record " + record + " of " + _capacity);
+    return _blocks[(int) (record / _recordsPerBlock)];
+  }
+
+  private int position(long record, int offset, int fieldSize) {
+    if (offset < 0 || offset + fieldSize > _recordSize) throw new IndexOutOfBoundsException("Field at " + offset + " of a " + _recordSize + " byte record");
+    return (int) (record % _recordsPerBlock) * _recordSize + offset;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    byte[] buffer = new byte[64 * 1024];
+    for (int i = 0; i < _blocks.length; i++) {
+      ByteBuffer block = _blocks[i].duplicate();
+      block.clear();
+      while (block.hasRemaining()) {
+        int length = Math.min(buffer.length, block.remaining());
+        block.get(buffer, 0, length);
+        out.write(buffer, 0, length);
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    _recordsPerBlock = recordsPerBlock(_recordSize);
+    _blocks = allocate(_recordSize, _capacity);
+    byte[] buffer = new byte[64 * 1024];
+    for (int i = 0; i < _blocks.length; i++) {
+      ByteBuffer block = _blocks[i];
+      block.order(ByteOrder.LITTLE_ENDIAN);
+      while (block.hasRemaining()) {
+        int length = Math.min(buffer.length, block.remaining());
+        in.readFully(buffer, 0, length);
+        block.put(buffer, 0, length);
+      }
+      block.clear();
+    }
+  }
+
+}
@@ -1,5 +1,8 @@
 package org.prevayler.foundation;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Used to control progression of threads through the stages of a processing
  * pipeline.
@@ -14,6 +17,12 @@ public class Turn {
     return new Turn(true);
   }
 
+  /**
+   * Guards _next and _allowed.
+   */
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _allowedChanged = _lock.newCondition();
+
   private Turn _next;
 
   private int _allowed;
@@ -29,14 +38,19 @@ public class Turn {
    *
    * @throws IllegalStateException if this or any preceding turn has been aborted.
    */
-  public synchronized Turn next() {
-    if (_allowed < 0) {
-      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+  public Turn next() {
+    _lock.lock();
+    try {
+      if (_allowed < 0) {
+        throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+      }
+      if (_next == null) {
+        _next = new Turn(false);
+      }
+      return _next;
+    } finally {
+      _lock.unlock();
     }
-    if (_next == null) {
-      _next = new Turn(false);
-    }
-    return _next;
   }
 
   /**
@@ -45,14 +59,19 @@ public class Turn {
    *
    * @throws IllegalStateException if this or any preceding turn has been aborted.
    */
-  public synchronized void start() {
-    while (_allowed == 0) {
-      Cool.wait(this);
-    }
-    if (_allowed < 0) {
-      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+  public void start() {
+    _lock.lock();
+    try {
+      while (_allowed == 0) {
+        Cool.await(_allowedChanged);
+      }
+      if (_allowed < 0) {
+        throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+      }
+      _allowed--;
+    } finally {
+      _lock.unlock();
     }
-    _allowed--;
   }
 
   /**
@@ -63,9 +82,14 @@ public class Turn {
     next().allow();
   }
 
-  private synchronized void allow() {
-    _allowed++;
-    notifyAll();
+  private void allow() {
+    _lock.lock();
+    try {
+      _allowed++;
+      _allowedChanged.signal(); // Only the thread holding this turn ever waits on it.
+    } finally {
+      _lock.unlock();
+    }
   }
 
   /**
@@ -82,10 +106,15 @@ public class Turn {
     throw new IllegalStateException(message, cause);
   }
 
-  private synchronized Turn die() {
-    _allowed = Integer.MIN_VALUE;
-    notifyAll();
-    return _next;
+  private Turn die() {
+    _lock.lock();
+    try {
+      _allowed = Integer.MIN_VALUE;
+      _allowedChanged.signalAll();
+      return _next;
+    } finally {
+      _lock.unlock();
+    }
   }
 
 }
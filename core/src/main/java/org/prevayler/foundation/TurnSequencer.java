@@ -0,0 +1,131 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Controls progression of threads through the stages of a processing pipeline, like a chain of Turns, but with one
+ * sequence barrier per stage instead of one Turn object per trip through the pipeline.
+ * <p/>
+ * Each trip is given the next sequence number, starting from zero. A trip may start a stage once the barrier of that
+ * stage has reached its sequence number, and ending the stage moves the barrier on to the next one. Waiting threads
+ * spin for a while and then park; the thread ending a stage unparks only the thread waiting for the next sequence,
+ * if any.
+ */
+public class TurnSequencer {
+
+  private static final int SPINS = 100;
+  private static final int WAITER_SLOTS = 256;
+  private static final long POLL_NANOS = 50000;
+  private static final int PADDING = 8;
+
+  /**
+   * Immutable.
+   */
+  private final int _stages;
+
+  /**
+   * The next sequence allowed to start each stage, spaced out so that barriers of different stages don't share a
+   * cache line.
+   */
+  private final AtomicLongArray _barriers;
+
+  /**
+   * The threads parked waiting for a stage, in slot (stage, sequence % WAITER_SLOTS). A thread that finds its slot
+   * taken parks for a short while at a time instead.
+   */
+  private final AtomicReferenceArray<Thread> _waiters;
+
+  private final AtomicLong _abortedFrom = new AtomicLong(Long.MAX_VALUE);
+
+  /**
+   * @param stages The number of stages in the pipeline, i.e. how many times each trip can start and end.
+   */
+  public TurnSequencer(int stages) {
+    _stages = stages;
+    _barriers = new AtomicLongArray(stages * PADDING);
+    _waiters = new AtomicReferenceArray<Thread>(stages * WAITER_SLOTS);
+  }
+
+  public int stages() {
+    return _stages;
+  }
+
+  /**
+   * Start a stage in the pipeline. Will block until the preceding sequence has ended the same stage.
+   *
+   * @throws IllegalStateException if this or any preceding sequence has been aborted.
+   */
+  public void start(long sequence, int stage) {
+    if (stage >= _stages) {
+      throw new IllegalStateException("This pipeline only has " + _stages + " stages.");
+    }
+    int barrier = stage * PADDING;
+
+    for (int spins = 0; spins < SPINS; spins++) {
+      if (_barriers.get(barrier) == sequence) {
+        checkNotAborted(sequence);
+        return;
+      }
+      checkNotAborted(sequence);
+    }
+
+    int slot = stage * WAITER_SLOTS + (int) (sequence % WAITER_SLOTS);
+    Thread me = Thread.currentThread();
+    boolean registered = _waiters.compareAndSet(slot, null, me);
+    try {
+      while (_barriers.get(barrier) != sequence) {
+        checkNotAborted(sequence);
+        if (registered) {
+          LockSupport.park(this);
+        } else {
+          LockSupport.parkNanos(this, POLL_NANOS);
+        }
+      }
+    } finally {
+      if (registered) _waiters.set(slot, null);
+    }
+    checkNotAborted(sequence);
+  }
+
+  /**
+   * End a stage in the pipeline. Allows the next sequence to start the same stage.
+   */
+  public void end(long sequence, int stage) {
+    _barriers.set(stage * PADDING, sequence + 1);
+
+    Thread next = _waiters.get(stage * WAITER_SLOTS + (int) ((sequence + 1) % WAITER_SLOTS));
+    if (next != null) LockSupport.unpark(next);
+  }
+
+  /**
+   * Abort the pipeline. Prevents this or any following sequence from continuing, but doesn't affect preceding
+   * sequences already further along in the pipeline.
+   *
+   * @throws IllegalStateException always, with the given message and cause.
+   */
+  public void abort(long sequence, String message, Throwable cause) {
+    while (true) {
+      long abortedFrom = _abortedFrom.get();
+      if (abortedFrom <= sequence || _abortedFrom.compareAndSet(abortedFrom, sequence)) break;
+    }
+    for (int i = 0; i < _waiters.length(); i++) {
+      Thread waiter = _waiters.get(i);
+      if (waiter != null) LockSupport.unpark(waiter);
+    }
+    throw new IllegalStateException(message, cause);
+  }
+
+  private void checkNotAborted(long sequence) {
+    if (sequence >= _abortedFrom.get()) {
+      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+    }
+  }
+
+}
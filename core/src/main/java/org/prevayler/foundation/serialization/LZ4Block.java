@@ -0,0 +1,167 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses blocks in the LZ4 block format: literal runs and back references of at least four
+ * bytes, found greedily through a hash table of the positions of previous four-byte sequences. It trades ratio for
+ * speed, compressing at several times the speed of Deflate.
+ * <br>
+ * <br>The bytes in front of the block, up to 64KB of them, serve as its dictionary: references may point into them,
+ * and decompression expects the same bytes in front of the block it restores.
+ */
+final class LZ4Block {
+
+  private static final int HASH_BITS = 12;
+  static final int HASH_TABLE_SIZE = 1 << HASH_BITS;
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int LAST_LITERALS = 5;
+  private static final int MATCH_FIND_LIMIT = 12;
+
+  private LZ4Block() {
+  }
+
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses src[start, end) into dest, which must hold maxCompressedLength(end - start) bytes.
+   *
+   * @param hashTable HASH_TABLE_SIZE ints, whose contents are overwritten.
+   * @return the compressed length.
+   */
+  static int compress(byte[] src, int start, int end, byte[] dest, int[] hashTable) {
+    int first = Math.max(0, start - MAX_DISTANCE);
+    int shift = 32 - hashBits(end - first);
+    Arrays.fill(hashTable, 0, 1 << (32 - shift), 0);  // Holds positions plus one, so that zero means none.
+    for (int p = first; p + MIN_MATCH <= start; p++) {
+      hashTable[hash(readInt(src, p), shift)] = p + 1;
+    }
+
+    int d = 0;
+    int anchor = start;
+    int p = start;
+    int limit = end - MATCH_FIND_LIMIT;
+    int matchLimit = end - LAST_LITERALS;
+    while (p < limit) {
+      int h = hash(readInt(src, p), shift);
+      int ref = hashTable[h] - 1;
+      hashTable[h] = p + 1;
+      if (ref < 0 || p - ref > MAX_DISTANCE || readInt(src, ref) != readInt(src, p)) {
+        p += 1 + ((p - anchor) >>> 6);  // Skips faster through data that doesn't compress.
+        continue;
+      }
+
+      while (p > anchor && ref > 0 && src[p - 1] == src[ref - 1]) {
+        p--;
+        ref--;
+      }
+      int length = MIN_MATCH;
+      while (p + length < matchLimit && src[p + length] == src[ref + length]) length++;
+
+      d = writeSequence(src, anchor, p - anchor, dest, d, p - ref, length);
+      p += length;
+      anchor = p;
+      if (p < limit) hashTable[hash(readInt(src, p - 2), shift)] = p - 2 + 1;
+    }
+    return writeSequence(src, anchor, end - anchor, dest, d, 0, 0);
+  }
+
+  private static int writeSequence(byte[] src, int literals, int literalLength, byte[] dest, int d, int distance, int matchLength) {
+    int token = d++;
+    dest[token] = (byte) (Math.min(literalLength, 15) << 4);
+    if (literalLength >= 15) d = writeLength(dest, d, literalLength - 15);
+    System.arraycopy(src, literals, dest, d, literalLength);
+    d += literalLength;
+    if (matchLength == 0) return d;  // The last literals.
+
+    dest[d++] = (byte) distance;
+    dest[d++] = (byte) (distance >>> 8);
+    int length = matchLength - MIN_MATCH;
+    dest[token] |= (byte) Math.min(length, 15);
+    if (length >= 15) d = writeLength(dest, d, length - 15);
+    return d;
+  }
+
+  private static int writeLength(byte[] dest, int d, int length) {
+    for (; length >= 255; length -= 255) dest[d++] = (byte) 255;
+    dest[d++] = (byte) length;
+    return d;
+  }
+
+  /**
+   * Decompresses src[offset, offset + length) into dest[start, end), which it must fill exactly.
+   */
+  static void decompress(byte[] src, int offset, int length, byte[] dest, int start, int end) throws IOException {
+    try {
+      int s = offset;
+      int srcEnd = offset + length;
+      int d = start;
+      while (true) {
+        int token = src[s++] & 0xFF;
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int b;
+          do {
+            b = src[s++] & 0xFF;
+            literalLength += b;
+          } while (b == 255);
+        }
+        if (s + literalLength > srcEnd || d + literalLength > end) throw corrupted();
+        System.arraycopy(src, s, dest, d, literalLength);
+        s += literalLength;
+        d += literalLength;
+        if (s == srcEnd) break;
+
+        int distance = (src[s++] & 0xFF) | (src[s++] & 0xFF) << 8;
+        int matchLength = token & 0x0F;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[s++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        int ref = d - distance;
+        if (distance == 0 || ref < 0 || d + matchLength > end) throw corrupted();
+        if (distance >= matchLength) {
+          System.arraycopy(dest, ref, dest, d, matchLength);
+          d += matchLength;
+        } else {
+          for (int i = 0; i < matchLength; i++) dest[d++] = dest[ref++];  // Overlapping: repeats the last bytes.
+        }
+      }
+      if (d != end) throw corrupted();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw corrupted();
+    }
+  }
+
+  private static IOException corrupted() {
+    return new StreamCorruptedException("Corrupted LZ4 block");
+  }
+
+  private static int readInt(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | bytes[i + 3] << 24;
+  }
+
+  /**
+   * Small inputs, such as single transactions, use part of the hash table only, so that clearing it costs less than
+   * compressing them.
+   */
+  private static int hashBits(int length) {
+    int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1));
+    return Math.max(8, Math.min(HASH_BITS, bits));
+  }
+
+  private static int hash(int value, int shift) {
+    return (value * -1640531535) >>> shift;
+  }
+
+}
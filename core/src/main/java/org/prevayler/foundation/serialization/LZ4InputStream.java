@@ -0,0 +1,105 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads what LZ4OutputStream wrote, block by block, up to the end of the stream.
+ * <br>
+ * <br>Closing this stream leaves the underlying stream open.
+ */
+class LZ4InputStream extends InputStream {
+
+  private static final int MAX_BLOCK_SIZE = 1 << 30;
+
+  private final DataInputStream _in;
+  private final byte[] _dictionary;
+
+  private byte[] _block;
+  private byte[] _compressed = new byte[0];
+  private int _position;
+  private int _limit;
+  private boolean _ended;
+
+  LZ4InputStream(InputStream in, byte[] dictionary) throws IOException {
+    _in = new DataInputStream(in);
+    _dictionary = dictionary;
+    _block = dictionary;
+    _position = _limit = dictionary.length;
+
+    int format = _in.read();
+    if (format == LZ4OutputStream.NO_DICTIONARY) {
+      if (dictionary.length != 0) throw new InvalidObjectException("Compressed without a dictionary");
+    } else if (format == LZ4OutputStream.DICTIONARY) {
+      if (dictionary.length == 0 || readVarint() != LZ4Serializer.checksum(dictionary)) {
+        throw new InvalidObjectException("Compressed with another dictionary");
+      }
+    } else {
+      throw format == -1 ? new EOFException() : new StreamCorruptedException("Not an LZ4 stream");
+    }
+  }
+
+  public int read() throws IOException {
+    if (_position == _limit && !nextBlock()) return -1;
+    return _block[_position++] & 0xFF;
+  }
+
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    if (_position == _limit && !nextBlock()) return -1;
+    int chunk = Math.min(length, _limit - _position);
+    System.arraycopy(_block, _position, bytes, offset, chunk);
+    _position += chunk;
+    return chunk;
+  }
+
+  public int available() {
+    return _limit - _position;
+  }
+
+  private boolean nextBlock() throws IOException {
+    if (_ended) return false;
+    int length = readVarint();
+    if (length == 0) {
+      _ended = true;
+      return false;
+    }
+    if (length < 0 || length > MAX_BLOCK_SIZE) throw new StreamCorruptedException("LZ4 block too large: " + length);
+    int start = _dictionary.length;
+    if (_block.length < start + length) {
+      _block = new byte[start + length];
+      System.arraycopy(_dictionary, 0, _block, 0, start);
+    }
+
+    int compressedLength = readVarint();
+    if (compressedLength == 0) {
+      _in.readFully(_block, start, length);
+    } else {
+      if (compressedLength < 0 || compressedLength > length) throw new StreamCorruptedException("LZ4 block grew when compressed");
+      if (_compressed.length < compressedLength) _compressed = new byte[compressedLength];
+      _in.readFully(_compressed, 0, compressedLength);
+      LZ4Block.decompress(_compressed, 0, compressedLength, _block, start, start + length);
+    }
+    _position = start;
+    _limit = start + length;
+    return true;
+  }
+
+  private int readVarint() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = _in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new StreamCorruptedException("Varint too long");
+  }
+
+  public void close() {
+  }
+
+}
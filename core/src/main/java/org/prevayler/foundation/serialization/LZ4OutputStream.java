@@ -0,0 +1,221 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compresses what is written to it in independent LZ4 blocks, each one preceded by its length before and after
+ * compression. Blocks that don't shrink are stored as they are. A zero length ends the stream.
+ * <br>
+ * <br>Written by a single thread, blocks are compressed as they fill up through buffers kept by that thread, so that
+ * compressing a single small transaction allocates next to nothing. Given more threads, full blocks are compressed on
+ * them while the next blocks are being filled, and written in order.
+ * <br>
+ * <br>Closing this stream finishes it but leaves the underlying stream open.
+ */
+class LZ4OutputStream extends OutputStream {
+
+  static final int NO_DICTIONARY = 0;
+  static final int DICTIONARY = 1;
+
+  /**
+   * Buffers that grew beyond this many bytes are dropped after use instead of being kept.
+   */
+  private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+  private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>();
+
+  private static final ExecutorService COMPRESSORS = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Prevayler LZ4 Compressor");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final OutputStream _out;
+  private final int _blockSize;
+  private final byte[] _dictionary;
+  private final int _threads;
+
+  private final Buffers _buffers;
+  private byte[] _block;
+  private int _count;
+  private final LinkedList<Future<byte[]>> _pending = new LinkedList<Future<byte[]>>();
+  private boolean _finished;
+
+  LZ4OutputStream(OutputStream out, int blockSize, byte[] dictionary, int threads) throws IOException {
+    _out = out;
+    _blockSize = blockSize;
+    _dictionary = dictionary;
+    _threads = threads;
+
+    Buffers buffers = BUFFERS.get();
+    if (buffers == null || buffers._inUse) {  // Compressing from within a compressed stream gets buffers of its own.
+      buffers = new Buffers();
+      if (BUFFERS.get() == null) BUFFERS.set(buffers);
+    }
+    buffers._inUse = true;
+    _buffers = buffers;
+    _block = buffers.block(dictionary, Math.min(blockSize, 1024));
+    _count = dictionary.length;
+
+    if (dictionary.length == 0) {
+      out.write(NO_DICTIONARY);
+    } else {
+      out.write(DICTIONARY);
+      writeVarint(out, LZ4Serializer.checksum(dictionary));
+    }
+  }
+
+  public void write(int b) throws IOException {
+    if (_count == limit()) makeRoom();
+    _block[_count++] = (byte) b;
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (_count == limit()) makeRoom();
+      int chunk = Math.min(length, limit() - _count);
+      System.arraycopy(bytes, offset, _block, _count, chunk);
+      _count += chunk;
+      offset += chunk;
+      length -= chunk;
+    }
+  }
+
+  private int limit() {
+    return Math.min(_block.length, _dictionary.length + _blockSize);
+  }
+
+  private void makeRoom() throws IOException {
+    int full = _dictionary.length + _blockSize;
+    if (_count < full) {
+      _block = _buffers.grow(_block, Math.min(full, _dictionary.length + (_count - _dictionary.length) * 2));
+    } else {
+      writeBlock();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (_count == _dictionary.length) return;
+    if (_threads <= 1) {
+      int length = _count - _dictionary.length;
+      byte[] compressed = _buffers.compressed(LZ4Block.maxCompressedLength(length));
+      int compressedLength = LZ4Block.compress(_block, _dictionary.length, _count, compressed, _buffers._hashTable);
+      writeBlock(_out, _block, _dictionary.length, length, compressed, compressedLength);
+      _count = _dictionary.length;
+      return;
+    }
+
+    if (_pending.size() >= _threads) _out.write(next());
+    final byte[] block = _block;
+    final int count = _count;
+    final int start = _dictionary.length;
+    _pending.add(COMPRESSORS.submit(new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        return compressBlock(block, start, count);
+      }
+    }));
+    _block = new byte[_dictionary.length + _blockSize];
+    System.arraycopy(_dictionary, 0, _block, 0, _dictionary.length);
+    _count = _dictionary.length;
+  }
+
+  private static byte[] compressBlock(byte[] block, int start, int end) throws IOException {
+    byte[] compressed = new byte[LZ4Block.maxCompressedLength(end - start)];
+    int compressedLength = LZ4Block.compress(block, start, end, compressed, new int[LZ4Block.HASH_TABLE_SIZE]);
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(compressedLength + 10);
+    writeBlock(encoded, block, start, end - start, compressed, compressedLength);
+    return encoded.toByteArray();
+  }
+
+  private static void writeBlock(OutputStream out, byte[] block, int start, int length, byte[] compressed, int compressedLength) throws IOException {
+    writeVarint(out, length);
+    if (compressedLength < length) {
+      writeVarint(out, compressedLength);
+      out.write(compressed, 0, compressedLength);
+    } else {
+      writeVarint(out, 0);
+      out.write(block, start, length);
+    }
+  }
+
+  private byte[] next() throws IOException {
+    try {
+      return _pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Writes the blocks left and the end of the stream.
+   */
+  public void close() throws IOException {
+    if (_finished) return;
+    _finished = true;
+    try {
+      writeBlock();
+      while (!_pending.isEmpty()) _out.write(next());
+      writeVarint(_out, 0);
+      _out.flush();
+    } finally {
+      for (int i = 0; i < _pending.size(); i++) _pending.get(i).cancel(false);
+      _buffers._inUse = false;
+      if (_buffers._block.length + _buffers._compressed.length > MAX_RETAINED_SIZE && BUFFERS.get() == _buffers) {
+        BUFFERS.remove();
+      }
+    }
+  }
+
+  static void writeVarint(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static class Buffers {
+    final int[] _hashTable = new int[LZ4Block.HASH_TABLE_SIZE];
+    byte[] _block = new byte[0];
+    byte[] _compressed = new byte[0];
+    byte[] _dictionary;  // The one at the front of _block.
+    boolean _inUse;
+
+    byte[] block(byte[] dictionary, int minimumLength) {
+      if (_dictionary != dictionary || _block.length < dictionary.length + minimumLength) {
+        _block = new byte[Math.max(_block.length, dictionary.length + minimumLength)];
+        System.arraycopy(dictionary, 0, _block, 0, dictionary.length);
+        _dictionary = dictionary;
+      }
+      return _block;
+    }
+
+    byte[] grow(byte[] block, int length) {
+      byte[] grown = new byte[length];
+      System.arraycopy(block, 0, grown, 0, block.length);
+      if (block == _block) _block = grown;
+      return grown;
+    }
+
+    byte[] compressed(int length) {
+      if (_compressed.length < length) _compressed = new byte[length];
+      return _compressed;
+    }
+  }
+
+}
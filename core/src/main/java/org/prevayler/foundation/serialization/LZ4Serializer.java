@@ -0,0 +1,94 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Compresses what its delegate writes with LZ4, which is several times faster than the Deflate of GZIPSerializer, at
+ * some cost in ratio. The compression is done in pure Java.
+ * <br>
+ * <br>For journals, where each transaction is compressed on its own, the default block size is enough, and a
+ * dictionary of bytes typical of transactions lets even small ones shrink: see dictionary(). For snapshots, larger
+ * blocks and a few threads compress the prevalent system in parallel as it is written.
+ */
+public class LZ4Serializer implements Serializer {
+
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * References into the dictionary reach back this many bytes at most.
+   */
+  public static final int MAX_DICTIONARY_SIZE = 64 * 1024;
+
+  private final Serializer _delegate;
+  private final int _blockSize;
+  private final byte[] _dictionary;
+  private final int _threads;
+
+  public LZ4Serializer(Serializer delegate) {
+    this(delegate, DEFAULT_BLOCK_SIZE);
+  }
+
+  public LZ4Serializer(Serializer delegate, int blockSize) {
+    this(delegate, blockSize, null, 1);
+  }
+
+  /**
+   * @param blockSize  <br>
+   *                   <br>How many bytes are compressed together. Larger blocks compress better, but cost as much
+   *                   memory per block being compressed.
+   * @param dictionary <br>
+   *                   <br>Bytes, usually returned by dictionary(), that every block may refer to as if they came
+   *                   right before it, or null. The very same bytes must be given to read what was written with
+   *                   them, so they must be kept as long as the journals or snapshots written with them are.
+   * @param threads    <br>
+   *                   <br>If greater than one, full blocks are compressed on up to this many other threads while the
+   *                   next ones are being written.
+   */
+  public LZ4Serializer(Serializer delegate, int blockSize, byte[] dictionary, int threads) {
+    if (blockSize <= 0) throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+    if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+      throw new IllegalArgumentException("Dictionary larger than " + MAX_DICTIONARY_SIZE + " bytes: " + dictionary.length);
+    }
+    _delegate = delegate;
+    _blockSize = blockSize;
+    _dictionary = dictionary == null ? new byte[0] : (byte[]) dictionary.clone();
+    _threads = threads;
+  }
+
+  public void writeObject(OutputStream stream, Object object) throws Exception {
+    LZ4OutputStream lz4 = new LZ4OutputStream(stream, _blockSize, _dictionary, _threads);
+    _delegate.writeObject(lz4, object);
+    lz4.close();
+  }
+
+  public Object readObject(InputStream stream) throws Exception {
+    return _delegate.readObject(new LZ4InputStream(stream, _dictionary));
+  }
+
+  /**
+   * Builds a dictionary out of sample objects, typically transactions like those the journal is going to hold, as
+   * written by the delegate. What the samples have in common, such as class descriptions written by Java
+   * serialization, is then written as a short reference into the dictionary.
+   *
+   * @param maxSize At most MAX_DICTIONARY_SIZE. The last samples are the ones kept when they don't all fit.
+   */
+  public static byte[] dictionary(Serializer delegate, Collection<?> samples, int maxSize) throws Exception {
+    maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (Iterator<?> iterator = samples.iterator(); iterator.hasNext(); ) {
+      delegate.writeObject(bytes, iterator.next());
+    }
+    byte[] all = bytes.toByteArray();
+    return all.length <= maxSize ? all : Arrays.copyOfRange(all, all.length - maxSize, all.length);
+  }
+
+  static int checksum(byte[] dictionary) {
+    return Arrays.hashCode(dictionary) & 0xFFFF;
+  }
+
+}
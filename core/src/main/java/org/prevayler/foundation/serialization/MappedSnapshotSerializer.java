@@ -0,0 +1,258 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.ObjectInputStreamWithClassLoader;
+import org.prevayler.foundation.RecordTable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes snapshots using Java serialization, except for the contents of every RecordTable reachable from the
+ * prevalent system, which are written as page-aligned regions after everything else. When reading a snapshot file,
+ * those regions are mapped straight back with FileChannel.map(), privately so that changes are never written to the
+ * file, instead of being deserialized: recovering them takes no time and no Java heap, and the operating system only
+ * reads pages in as they are used.
+ * <br>
+ * <br>The snapshot file is laid out as:
+ * <pre>
+ * MAGIC, long length of the serialized objects, the serialized objects
+ * int region count, for each region: long offset, long length
+ * padding up to the next page, then each region, padded up to the next page
+ * </pre>
+ * Reading a snapshot from a stream, rather than from its file, copies the regions into direct buffers instead.
+ * This serializer can only be used for snapshots.
+ */
+public class MappedSnapshotSerializer implements Serializer {
+
+  public static final int PAGE_SIZE = 4096;
+
+  private static final byte[] MAGIC = {'P', 'r', 'e', 'v', 'M', 'a', 'p', 'd'};
+
+  private final ClassLoader _loader;
+
+  public MappedSnapshotSerializer() {
+    this(null);
+  }
+
+  public MappedSnapshotSerializer(ClassLoader loader) {
+    _loader = loader;
+  }
+
+  public void writeObject(OutputStream stream, Object object) throws IOException {
+    List<ByteBuffer> regions = new ArrayList<ByteBuffer>();
+    byte[] objects = serialize(object, regions);
+
+    DataOutputStream out = new DataOutputStream(stream);
+    out.write(MAGIC);
+    out.writeLong(objects.length);
+    out.write(objects);
+    out.writeInt(regions.size());
+    long position = MAGIC.length + 8 + objects.length + 4 + regions.size() * 16L;
+    long[] offsets = new long[regions.size()];
+    for (int i = 0; i < regions.size(); i++) {
+      position = pageAligned(position);
+      offsets[i] = position;
+      out.writeLong(position);
+      out.writeLong(regions.get(i).remaining());
+      position += regions.get(i).remaining();
+    }
+
+    position = MAGIC.length + 8 + objects.length + 4 + regions.size() * 16L;
+    WritableByteChannel channel = Channels.newChannel(out);
+    for (int i = 0; i < regions.size(); i++) {
+      pad(out, offsets[i] - position);
+      out.flush();
+      ByteBuffer region = regions.get(i);
+      position = offsets[i] + region.remaining();
+      while (region.hasRemaining()) channel.write(region);
+    }
+    pad(out, pageAligned(position) - position);
+    out.flush();
+  }
+
+  private static byte[] serialize(Object object, final List<ByteBuffer> regions) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream objects = new ObjectOutputStream(bytes) {
+      private final Map<RecordTable, Region> _replaced = new IdentityHashMap<RecordTable, Region>();
+
+      {
+        enableReplaceObject(true);
+      }
+
+      protected Object replaceObject(Object object) {
+        if (!(object instanceof RecordTable)) return object;
+
+        RecordTable table = (RecordTable) object;
+        Region region = _replaced.get(table);
+        if (region == null) {
+          region = new Region(regions.size(), table.recordSize(), table.capacity());
+          ByteBuffer[] blocks = table.blocks();
+          for (int i = 0; i < blocks.length; i++) {
+            blocks[i].clear();
+            regions.add(blocks[i]);
+          }
+          _replaced.put(table, region);
+        }
+        return region;
+      }
+    };
+    objects.writeObject(object);
+    objects.close();
+    return bytes.toByteArray();
+  }
+
+  private static long pageAligned(long position) {
+    return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  /**
+   * Writes fewer than PAGE_SIZE zeroes.
+   */
+  private static void pad(OutputStream out, long length) throws IOException {
+    out.write(new byte[(int) length]);
+  }
+
+  public Object readObject(InputStream stream) throws Exception {
+    DataInputStream in = new DataInputStream(stream);
+    Header header = readHeader(in);
+
+    List<ByteBuffer> regions = new ArrayList<ByteBuffer>();
+    long position = header._regionsStart;
+    byte[] buffer = new byte[64 * 1024];
+    for (int i = 0; i < header._offsets.length; i++) {
+      skipFully(in, header._offsets[i] - position);
+      ByteBuffer region = ByteBuffer.allocateDirect((int) header._lengths[i]);
+      while (region.hasRemaining()) {
+        int length = Math.min(buffer.length, region.remaining());
+        in.readFully(buffer, 0, length);
+        region.put(buffer, 0, length);
+      }
+      region.clear();
+      regions.add(region);
+      position = header._offsets[i] + header._lengths[i];
+    }
+    skipFully(in, pageAligned(position) - position);
+    return deserialize(header._objects, regions);
+  }
+
+  /**
+   * Reads the snapshot from its file, mapping the regions instead of reading them.
+   */
+  public Object readObject(File snapshotFile) throws Exception {
+    Header header;
+    InputStream stream = new BufferedInputStream(new FileInputStream(snapshotFile));
+    try {
+      header = readHeader(new DataInputStream(stream));
+    } finally {
+      stream.close();
+    }
+
+    List<ByteBuffer> regions = new ArrayList<ByteBuffer>();
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");  // A private mapping needs a writable channel, but never writes to it.
+    try {
+      FileChannel channel = file.getChannel();
+      for (int i = 0; i < header._offsets.length; i++) {
+        regions.add(channel.map(FileChannel.MapMode.PRIVATE, header._offsets[i], header._lengths[i]));
+      }
+    } finally {
+      file.close();  // The mappings stay valid.
+    }
+    return deserialize(header._objects, regions);
+  }
+
+  private static Header readHeader(DataInputStream in) throws IOException {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (in.readByte() != MAGIC[i]) throw new IOException("Not a snapshot written by " + MappedSnapshotSerializer.class.getName());
+    }
+    Header header = new Header();
+    header._objects = new byte[(int) in.readLong()];
+    in.readFully(header._objects);
+    int count = in.readInt();
+    header._offsets = new long[count];
+    header._lengths = new long[count];
+    for (int i = 0; i < count; i++) {
+      header._offsets[i] = in.readLong();
+      header._lengths[i] = in.readLong();
+    }
+    header._regionsStart = MAGIC.length + 8 + header._objects.length + 4 + count * 16L;
+    return header;
+  }
+
+  private static void skipFully(InputStream in, long length) throws IOException {
+    while (length > 0) {
+      long skipped = in.skip(length);
+      if (skipped <= 0) {
+        if (in.read() < 0) throw new EOFException();
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+  }
+
+  private Object deserialize(byte[] bytes, final List<ByteBuffer> regions) throws IOException, ClassNotFoundException {
+    ObjectInputStream objects = new ObjectInputStreamWithClassLoader(new ByteArrayInputStream(bytes), _loader) {
+      {
+        enableResolveObject(true);
+      }
+
+      protected Object resolveObject(Object object) {
+        return object instanceof Region ? ((Region) object).table(regions) : object;
+      }
+    };
+    Object object = objects.readObject();
+    objects.close();
+    return object;
+  }
+
+  private static class Header {
+    byte[] _objects;
+    long[] _offsets;
+    long[] _lengths;
+    long _regionsStart;
+  }
+
+  /**
+   * Stands in for a RecordTable among the serialized objects.
+   */
+  private static class Region implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int _firstRegion;
+    private final int _recordSize;
+    private final long _capacity;
+
+    Region(int firstRegion, int recordSize, long capacity) {
+      _firstRegion = firstRegion;
+      _recordSize = recordSize;
+      _capacity = capacity;
+    }
+
+    RecordTable table(List<ByteBuffer> regions) {
+      ByteBuffer[] blocks = new ByteBuffer[RecordTable.blockCount(_recordSize, _capacity)];
+      for (int i = 0; i < blocks.length; i++) blocks[i] = regions.get(_firstRegion + i);
+      return new RecordTable(_recordSize, _capacity, blocks);
+    }
+  }
+
+}
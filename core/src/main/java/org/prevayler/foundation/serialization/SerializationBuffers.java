@@ -0,0 +1,92 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * Serializes objects into byte arrays through buffers kept by each thread, so that the only allocation left per
+ * object is the exactly sized array returned.
+ * <br>
+ * <br>For a plain JavaSerializer, the ObjectOutputStream is kept as well: its stream header stays at the start of
+ * the buffer, and ObjectOutputStream.reset() clears its handles before each object. The marker reset() writes is
+ * dropped, so every array holds exactly the bytes JavaSerializer.writeObject() would have written. Any other
+ * serializer writes into the kept buffer through its own writeObject().
+ */
+public final class SerializationBuffers {
+
+  /**
+   * Buffers that grew beyond this many bytes are dropped after use instead of being kept.
+   */
+  static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>();
+
+  private SerializationBuffers() {
+  }
+
+  public static byte[] serialize(Serializer serializer, Object object) throws Exception {
+    Buffers buffers = BUFFERS.get();
+    if (buffers == null || buffers._inUse) {  // Serializing from within a serializer gets buffers of its own.
+      buffers = new Buffers();
+      if (BUFFERS.get() == null) BUFFERS.set(buffers);
+    }
+
+    buffers._inUse = true;
+    boolean reusable = false;
+    try {
+      byte[] result = serializer.getClass() == JavaSerializer.class
+          ? buffers.javaSerialize(object)
+          : buffers.serialize(serializer, object);
+      reusable = buffers._bytes.capacity() <= MAX_RETAINED_SIZE;
+      return result;
+    } finally {
+      buffers._inUse = false;
+      if (!reusable && BUFFERS.get() == buffers) BUFFERS.remove();
+    }
+  }
+
+  private static class Buffers {
+    private final Buffer _bytes = new Buffer();
+    private ObjectOutputStream _objects;
+    private int _headerLength;
+    private boolean _inUse;
+
+    byte[] javaSerialize(Object object) throws IOException {
+      if (_objects == null) {
+        _bytes.reset();
+        _objects = new ObjectOutputStream(_bytes);
+        _objects.flush();
+        _headerLength = _bytes.size();
+      }
+      _objects.reset();
+      _objects.flush();
+      _bytes.truncate(_headerLength);  // Drops the reset marker along with the previous object.
+      _objects.writeObject(object);
+      _objects.flush();
+      return _bytes.toByteArray();
+    }
+
+    byte[] serialize(Serializer serializer, Object object) throws Exception {
+      _objects = null;  // Its header is about to be overwritten.
+      _bytes.reset();
+      serializer.writeObject(_bytes, object);
+      return _bytes.toByteArray();
+    }
+  }
+
+  private static class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(1024);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    void truncate(int length) {
+      count = length;
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+package org.prevayler.implementation;
+
+import org.prevayler.ListenableFuture;
+import org.prevayler.implementation.publishing.PublicationListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The Future returned by executeAsync(), completed by the publisher once the capsule has been published. A transaction
+ * can't be taken back once it has been journaled, so it can't be cancelled.
+ */
+class AsyncResult<R> implements ListenableFuture<R>, PublicationListener {
+
+  private final TransactionWithQueryCapsule<?, R> _capsule;  // Null for a plain Transaction.
+  private final CountDownLatch _done = new CountDownLatch(1);
+  private R _result;  // Written before _done is counted down.
+  private Throwable _failure;  // Written before _done is counted down.
+  private List<Runnable> _listeners = new ArrayList<Runnable>();  // Guarded by this. Null once done.
+
+  AsyncResult(TransactionWithQueryCapsule<?, R> capsule) {
+    _capsule = capsule;
+  }
+
+  public void published(Throwable failure) {
+    if (failure == null && _capsule != null) {
+      try {
+        _result = _capsule.result();
+      } catch (Exception exception) {
+        failure = exception;
+      }
+    }
+    _failure = failure;
+
+    List<Runnable> listeners;
+    synchronized (this) {
+      _done.countDown();
+      listeners = _listeners;
+      _listeners = null;
+    }
+    for (int i = 0; i < listeners.size(); i++) run(listeners.get(i));
+  }
+
+  public void addListener(Runnable listener) {
+    synchronized (this) {
+      if (_listeners != null) {
+        _listeners.add(listener);
+        return;
+      }
+    }
+    run(listener);
+  }
+
+  private static void run(Runnable listener) {
+    try {
+      listener.run();
+    } catch (RuntimeException ignored) {
+      // A failing listener must not keep the others, nor the transactions after this one, from completing.
+    }
+  }
+
+  public R get() throws InterruptedException, ExecutionException {
+    _done.await();
+    return result();
+  }
+
+  public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    if (!_done.await(timeout, unit)) throw new TimeoutException();
+    return result();
+  }
+
+  private R result() throws ExecutionException {
+    if (_failure != null) throw new ExecutionException(_failure);
+    return _result;
+  }
+
+  public boolean isDone() {
+    return _done.getCount() == 0;
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  public boolean isCancelled() {
+    return false;
+  }
+
+}
@@ -1,15 +1,20 @@
 package org.prevayler.implementation;
 
+import org.prevayler.foundation.BinaryChunk;
 import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.serialization.SerializationBuffers;
 import org.prevayler.foundation.serialization.Serializer;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
 
 public abstract class Capsule implements Serializable {
 
+  private static final byte TRANSACTION = 0;
+  private static final byte TRANSACTION_WITH_QUERY = 1;
+
   private final byte[] _serialized;
   private transient Object _directTransaction = null;
 
@@ -18,9 +23,7 @@ public abstract class Capsule implements Serializable {
       _directTransaction = transaction;
     }
     try {
-      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-      journalSerializer.writeObject(bytes, transaction);
-      _serialized = bytes.toByteArray();
+      _serialized = SerializationBuffers.serialize(journalSerializer, transaction);
     } catch (Exception exception) {
       throw new Error("Unable to serialize transaction", exception);
     }
@@ -50,25 +53,58 @@ public abstract class Capsule implements Serializable {
 
   /**
    * Executes a freshly deserialized copy of the transaction by default. If <code>configureTransactionDeepCopy</code> was set to <code>true</code> on your <code>PrevaylerFactory</code>, this will execute the transaction directly. The execution will synchronize on the prevalentSystem.
+   *
+   * @return The prevalentSystem after the execution: the new one returned by a RootTransaction, or else the given one.
    */
-  public void executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
-    Object transaction;
-    if (_directTransaction != null) {
-      transaction = _directTransaction;
-    } else {
-      transaction = deserialize(journalSerializer);
-    }
+  public Object executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
+    Object transaction = transaction(journalSerializer);
 
     synchronized (prevalentSystem) {
-      justExecute(transaction, prevalentSystem, executionTime);
+      return justExecute(transaction, prevalentSystem, executionTime);
     }
   }
 
   /**
-   * Actually executes the Transaction or TransactionWithQuery. The caller
+   * The same as executeOn(Object, Date, Serializer), except the execution holds the given lock instead of synchronizing on the prevalentSystem.
+   */
+  public Object executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer, Lock lock) {
+    Object transaction = transaction(journalSerializer);
+
+    lock.lock();
+    try {
+      return justExecute(transaction, prevalentSystem, executionTime);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The same as executeOn(Object, Date, Serializer), except nothing is locked, for a prevalentSystem that is immutable.
+   */
+  public Object executeOnImmutable(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
+    return justExecute(transaction(journalSerializer), prevalentSystem, executionTime);
+  }
+
+  private Object transaction(Serializer journalSerializer) {
+    return _directTransaction != null ? _directTransaction : deserialize(journalSerializer);
+  }
+
+  /**
+   * Deserializes the contained Transaction or TransactionWithQuery ahead of its execution, possibly in another
+   * thread, so that executeOn() uses it directly instead of deserializing it then. Only for capsules read back from
+   * a journal, which nothing else refers to.
+   */
+  public void prepare(Serializer journalSerializer) {
+    if (_directTransaction == null) _directTransaction = deserialize(journalSerializer);
+  }
+
+  /**
+   * Actually executes the Transaction, RootTransaction or TransactionWithQuery. The caller
    * is responsible for synchronizing on the prevalentSystem.
+   *
+   * @return The prevalentSystem after the execution.
    */
-  protected abstract void justExecute(Object transaction, Object prevalentSystem, Date executionTime);
+  protected abstract Object justExecute(Object transaction, Object prevalentSystem, Date executionTime);
 
   /**
    * Makes a clean copy of this capsule that will have its own query result fields.
@@ -90,4 +126,20 @@ public abstract class Capsule implements Serializable {
     }
   }
 
+  BinaryChunk toBinaryChunk(long systemVersion, long executionTime) {
+    byte type = this instanceof TransactionWithQueryCapsule ? TRANSACTION_WITH_QUERY : TRANSACTION;
+    return new BinaryChunk(type, systemVersion, executionTime, _serialized);
+  }
+
+  static Capsule fromBinaryChunk(BinaryChunk chunk) {
+    switch (chunk.getType()) {
+      case TRANSACTION:
+        return new TransactionCapsule<Object>(chunk.getBytes());
+      case TRANSACTION_WITH_QUERY:
+        return new TransactionWithQueryCapsule<Object, Object>(chunk.getBytes());
+      default:
+        throw new IllegalArgumentException("Unknown capsule type " + chunk.getType());
+    }
+  }
+
 }
@@ -0,0 +1,29 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Immutable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The transaction classes whose instances are executed directly even in deep copy mode: those annotated as
+ * Immutable, and those registered here.
+ */
+public class ImmutableTypes {
+
+  private final ConcurrentMap<Class<?>, Boolean> _types = new ConcurrentHashMap<Class<?>, Boolean>();
+
+  public void register(Class<?> type) {
+    _types.put(type, Boolean.TRUE);
+  }
+
+  public boolean contains(Class<?> type) {
+    Boolean immutable = _types.get(type);
+    if (immutable == null) {
+      immutable = type.isAnnotationPresent(Immutable.class);
+      _types.putIfAbsent(type, immutable);
+    }
+    return immutable;
+  }
+
+}
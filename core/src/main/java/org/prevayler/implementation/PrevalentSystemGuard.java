@@ -1,6 +1,7 @@
 package org.prevayler.implementation;
 
 import org.prevayler.Clock;
+import org.prevayler.OptimisticQuery;
 import org.prevayler.Query;
 import org.prevayler.foundation.Cool;
 import org.prevayler.foundation.DeepCopier;
@@ -11,15 +12,46 @@ import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 
-  private P _prevalentSystem; // All access to field is synchronized on "this", and all access to object is synchronized on itself; "this" is always locked before the object
-  private long _systemVersion; // All access is synchronized on "this"
-  private boolean _ignoreRuntimeExceptions; // All access is synchronized on "this"
+  private volatile P _prevalentSystem; // All writes to field are guarded by _lock, and all access to object is synchronized on itself, except by snapshots, which only read it under _lock (or guarded by _systemLock, with concurrent queries, or not at all, when immutable); _lock is always locked before the object
+  private long _systemVersion; // All access is guarded by _lock
+  private boolean _ignoreRuntimeExceptions; // All access is guarded by _lock
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _systemVersionChanged = _lock.newCondition();
   private final Serializer _journalSerializer;
 
+  /**
+   * Only used with concurrent queries, and only set before subscribing.
+   */
+  private ReentrantReadWriteLock _systemLock = null;
+
+  /**
+   * Incremented before and after each transaction with concurrent queries, so it is odd while one is executing.
+   */
+  private final AtomicLong _stamp = new AtomicLong();
+
+  /**
+   * Only set before subscribing.
+   */
+  private boolean _immutable = false;
+
+  /**
+   * The systemVersions of the transactions that threw a RuntimeException, until forgotten. Null unless recorded.
+   */
+  private volatile Set<Long> _failedVersions = null;
+
   public PrevalentSystemGuard(P prevalentSystem, long systemVersion, Serializer journalSerializer) {
     _prevalentSystem = prevalentSystem;
     _systemVersion = systemVersion;
@@ -27,26 +59,97 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     _journalSerializer = journalSerializer;
   }
 
+  /**
+   * Lets queries execute concurrently with each other, holding the read lock of a ReadWriteLock on the prevalent
+   * system, while transactions hold its write lock instead of synchronizing on the prevalent system. An
+   * OptimisticQuery doesn't even take the read lock unless a transaction executes at the same time. Must be called
+   * before subscribing.
+   */
+  public void enableConcurrentQueries() {
+    _systemLock = new ReentrantReadWriteLock();
+  }
+
+  /**
+   * For a prevalent system that is an immutable value, replaced as a whole by each RootTransaction. Queries and
+   * snapshots then use whatever prevalent system is current when they start, without taking any lock or holding up
+   * transactions. Must be called before subscribing.
+   */
+  public void enableImmutablePrevalentSystem() {
+    _immutable = true;
+  }
+
+  /**
+   * Makes this guard remember which transactions threw a RuntimeException, from now on, until forgetFailure() is
+   * called for them.
+   */
+  public void recordFailures() {
+    _failedVersions = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+  }
+
+  /**
+   * @return Whether the transaction with the given systemVersion threw a RuntimeException, as recorded.
+   */
+  public boolean forgetFailure(long systemVersion) {
+    return _failedVersions.remove(systemVersion);
+  }
+
+  public long systemVersion() {
+    _lock.lock();
+    try {
+      return _systemVersion;
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until the transaction with the given systemVersion has been executed, or until an Error stops this guard.
+   */
+  public void waitForSystemVersion(long systemVersion) {
+    _lock.lock();
+    try {
+      while (_systemVersion < systemVersion && _prevalentSystem != null) {
+        Cool.await(_systemVersionChanged);
+      }
+    } finally {
+      _lock.unlock();
+    }
+  }
+
   public P prevalentSystem() {
-    synchronized (this) {
+    P prevalentSystem = _prevalentSystem;
+    if ((_systemLock != null || _immutable) && prevalentSystem != null) {
+      return prevalentSystem;
+    }
+
+    _lock.lock();
+    try {
       if (_prevalentSystem == null) {
         throw new Error("Prevayler is no longer allowing access to the prevalent system due to an Error thrown from an earlier transaction.");
       }
       return _prevalentSystem;
+    } finally {
+      _lock.unlock();
     }
   }
 
   public void subscribeTo(TransactionPublisher publisher) throws IOException, ClassNotFoundException {
     long initialTransaction;
-    synchronized (this) {
+    _lock.lock();
+    try {
       _ignoreRuntimeExceptions = true;     //During pending transaction recovery (rolling forward), RuntimeExceptions are ignored because they were already thrown and handled during the first transaction execution.
       initialTransaction = _systemVersion + 1;
+    } finally {
+      _lock.unlock();
     }
 
     publisher.subscribe(this, initialTransaction);
 
-    synchronized (this) {
+    _lock.lock();
+    try {
       _ignoreRuntimeExceptions = false;
+    } finally {
+      _lock.unlock();
     }
   }
 
@@ -55,7 +158,8 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     long systemVersion = transactionTimestamp.systemVersion();
     Date executionTime = transactionTimestamp.executionTime();
 
-    synchronized (this) {
+    _lock.lock();
+    try {
       if (_prevalentSystem == null) {
         throw new Error("Prevayler is no longer processing transactions due to an Error thrown from an earlier transaction.");
       }
@@ -70,21 +174,64 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
       try {
         // Don't synchronize on _prevalentSystem here so that the capsule can deserialize a fresh
         // copy of the transaction without blocking queries.
-        capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);
+        if (_immutable) {
+          _prevalentSystem = (P) capsule.executeOnImmutable(_prevalentSystem, executionTime, _journalSerializer);
+        } else if (_systemLock == null) {
+          _prevalentSystem = (P) capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);
+        } else {
+          _stamp.incrementAndGet();
+          try {
+            _prevalentSystem = (P) capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer, _systemLock.writeLock());
+          } finally {
+            _stamp.incrementAndGet();
+          }
+        }
       } catch (RuntimeException rx) {
+        if (_failedVersions != null && !_ignoreRuntimeExceptions) _failedVersions.add(systemVersion);
         if (!_ignoreRuntimeExceptions)
           throw rx;  //TODO Guarantee that transactions received from pending transaction recovery don't ever throw RuntimeExceptions. Maybe use a wrapper for that.
       } catch (Error error) {
         _prevalentSystem = null;
         throw error;
       } finally {
-        notifyAll();
+        _systemVersionChanged.signalAll();
       }
+    } finally {
+      _lock.unlock();
     }
   }
 
+  /**
+   * Executes the transactions in order, without letting queries or snapshots in between. As when published to
+   * several subscribers, a RuntimeException thrown by one of them is only thrown once the others have executed.
+   */
+  public void receiveBatch(List<TransactionTimestamp> transactionTimestamps) {
+    RuntimeException thrown = null;
+    _lock.lock();
+    try {
+      for (int i = 0; i < transactionTimestamps.size(); i++) {
+        try {
+          receive(transactionTimestamps.get(i));
+        } catch (RuntimeException rx) {
+          if (thrown == null) thrown = rx;
+        }
+      }
+    } finally {
+      _lock.unlock();
+    }
+    if (thrown != null) throw thrown;
+  }
+
   public <R> R executeQuery(Query<? super P, R> sensitiveQuery, Clock clock) throws Exception {
-    synchronized (this) {
+    if (_immutable) {
+      return sensitiveQuery.query(checkedPrevalentSystem(), clock.time());
+    }
+    if (_systemLock != null) {
+      return executeConcurrentQuery(sensitiveQuery, clock);
+    }
+
+    _lock.lock();
+    try {
       if (_prevalentSystem == null) {
         throw new Error("Prevayler is no longer processing queries due to an Error thrown from an earlier transaction.");
       }
@@ -92,38 +239,110 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
       synchronized (_prevalentSystem) {
         return sensitiveQuery.query(_prevalentSystem, clock.time());
       }
+    } finally {
+      _lock.unlock();
     }
   }
 
-  public File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
-    synchronized (this) {
-      if (_prevalentSystem == null) {
-        throw new Error("Prevayler is no longer allowing snapshots due to an Error thrown from an earlier transaction.");
+  private <R> R executeConcurrentQuery(Query<? super P, R> sensitiveQuery, Clock clock) throws Exception {
+    if (sensitiveQuery instanceof OptimisticQuery) {
+      long stamp = _stamp.get();
+      if ((stamp & 1) == 0) {
+        try {
+          R result = sensitiveQuery.query(checkedPrevalentSystem(), clock.time());
+          // Unlike a plain volatile read, the compareAndSet keeps the query's reads from being reordered after it.
+          if (_stamp.compareAndSet(stamp, stamp)) return result;
+        } catch (Exception exception) {
+          if (_stamp.get() == stamp) throw exception;
+          // Otherwise the query may just have seen a transaction half way through. Try again under the read lock.
+        }
       }
+    }
 
-      synchronized (_prevalentSystem) {
-        return snapshotManager.writeSnapshot(_prevalentSystem, _systemVersion);
-      }
+    Lock readLock = _systemLock.readLock();
+    readLock.lock();
+    try {
+      return sensitiveQuery.query(checkedPrevalentSystem(), clock.time());
+    } finally {
+      readLock.unlock();
     }
   }
 
-  public PrevalentSystemGuard<P> deepCopy(long systemVersion, Serializer snapshotSerializer) throws Exception {
-    synchronized (this) {
-      while (_systemVersion < systemVersion && _prevalentSystem != null) {
-        Cool.wait(this);
+  private P checkedPrevalentSystem() {
+    P prevalentSystem = _prevalentSystem;
+    if (prevalentSystem == null) {
+      throw new Error("Prevayler is no longer processing queries due to an Error thrown from an earlier transaction.");
+    }
+    return prevalentSystem;
+  }
+
+  public File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
+    if (_immutable) {
+      P prevalentSystem;
+      long systemVersion;
+      _lock.lock();
+      try {
+        if (_prevalentSystem == null) {
+          throw new Error("Prevayler is no longer allowing snapshots due to an Error thrown from an earlier transaction.");
+        }
+        prevalentSystem = _prevalentSystem;
+        systemVersion = _systemVersion;
+      } finally {
+        _lock.unlock();
       }
+      return snapshotManager.writeSnapshot(prevalentSystem, systemVersion);
+    }
 
+    _lock.lock();
+    try {
       if (_prevalentSystem == null) {
-        throw new Error("Prevayler is no longer accepting transactions due to an Error thrown from an earlier transaction.");
+        throw new Error("Prevayler is no longer allowing snapshots due to an Error thrown from an earlier transaction.");
       }
 
-      if (_systemVersion > systemVersion) {
-        throw new IllegalStateException("Already at " + _systemVersion + "; can't go back to " + systemVersion);
-      }
+      // Holding _lock keeps transactions out, without pinning a virtual thread to its carrier while the file is written.
+      return snapshotManager.writeSnapshot(_prevalentSystem, _systemVersion);
+    } finally {
+      _lock.unlock();
+    }
+  }
 
+  public PrevalentSystemGuard<P> deepCopy(long systemVersion, Serializer snapshotSerializer) throws Exception {
+    _lock.lock();
+    try {
+      awaitSystemVersion(systemVersion);
       synchronized (_prevalentSystem) {
         return new PrevalentSystemGuard<P>((P) DeepCopier.deepCopyParallel(_prevalentSystem, snapshotSerializer), _systemVersion, _journalSerializer);
       }
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Like deepCopy(), but copies the prevalent system by writing and reading it as the given snapshot manager writes and
+   * reads snapshots, so that it comes back just as it would upon recovery.
+   */
+  public PrevalentSystemGuard<P> copy(long systemVersion, GenericSnapshotManager<P> snapshotManager) throws Exception {
+    _lock.lock();
+    try {
+      awaitSystemVersion(systemVersion);
+      return new PrevalentSystemGuard<P>(snapshotManager.copy(_prevalentSystem), _systemVersion, _journalSerializer);  // Written to a file, as by takeSnapshot().
+    } finally {
+      _lock.unlock();
+    }
+  }
+
+  private void awaitSystemVersion(long systemVersion) {
+    while (_systemVersion < systemVersion && _prevalentSystem != null) {
+      Cool.await(_systemVersionChanged);
+    }
+
+    if (_prevalentSystem == null) {
+      throw new Error("Prevayler is no longer accepting transactions due to an Error thrown from an earlier transaction.");
+    }
+
+    if (_systemVersion > systemVersion) {
+      throw new IllegalStateException("Already at " + _systemVersion + "; can't go back to " + systemVersion);
     }
   }
 
@@ -8,12 +8,14 @@ package org.prevayler.implementation;
 import org.prevayler.foundation.FileManager;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 public class PrevaylerDirectory {
 
@@ -22,9 +24,22 @@ public class PrevaylerDirectory {
   private static final String SNAPSHOT_FILENAME_PATTERN = "\\d{" + DIGITS_IN_FILENAME + "}\\." + SNAPSHOT_SUFFIX_PATTERN;
   private static final String JOURNAL_SUFFIX_PATTERN = "[a-zA-Z0-9]*[Jj]ournal";
   private static final String JOURNAL_FILENAME_PATTERN = "\\d{" + DIGITS_IN_FILENAME + "}\\." + JOURNAL_SUFFIX_PATTERN;
+  private static final String BINARY_JOURNAL_SUFFIX_PREFIX = "binary";
+  private static final String DELTA_SNAPSHOT_SUFFIX_PREFIX = "delta";
+  private static final Pattern SNAPSHOT_FILENAME = Pattern.compile(SNAPSHOT_FILENAME_PATTERN);
+  private static final Pattern JOURNAL_FILENAME = Pattern.compile(JOURNAL_FILENAME_PATTERN);
 
   private File _directory;
 
+  /**
+   * The journal and snapshot files in the directory, built by listing the directory once and then kept up to date
+   * through add() and remove(). Null until first needed. Journals are by name, which orders them by version and then
+   * by suffix, since journals of both chunk formats may start at the same version. Snapshots are by version.
+   */
+  private NavigableMap<String, File> _journals;
+  private NavigableMap<Long, File> _fullSnapshots;
+  private NavigableMap<Long, File> _deltaSnapshots;
+
   public PrevaylerDirectory(String directory) {
     this(new File(directory));
   }
@@ -70,6 +85,59 @@ public class PrevaylerDirectory {
     }
   }
 
+  /**
+   * Tell whether journal files with the given suffix are written in the binary chunk format rather than the text
+   * chunk format. That is the case for suffixes starting with "binary", such as "binaryjournal".
+   */
+  public static boolean isBinaryJournalSuffix(String suffix) {
+    return suffix.startsWith(BINARY_JOURNAL_SUFFIX_PREFIX);
+  }
+
+  /**
+   * Tell whether the given journal file is written in the binary chunk format.
+   */
+  public static boolean isBinaryJournal(File journal) {
+    return isBinaryJournalSuffix(suffix(journal));
+  }
+
+  /**
+   * Return the suffix of the journal files that hold the same serialized transactions as those with the given
+   * suffix, but in the other chunk format: "binaryjournal" for "journal", and vice versa.
+   */
+  public static String otherChunkFormatJournalSuffix(String suffix) {
+    return isBinaryJournalSuffix(suffix)
+        ? suffix.substring(BINARY_JOURNAL_SUFFIX_PREFIX.length())
+        : BINARY_JOURNAL_SUFFIX_PREFIX + suffix;
+  }
+
+  /**
+   * Return the suffix of the delta snapshot files written with the same serializer as the full snapshot files with
+   * the given suffix: "deltasnapshot" for "snapshot", for example.
+   */
+  public static String deltaSnapshotSuffix(String suffix) {
+    return DELTA_SNAPSHOT_SUFFIX_PREFIX + suffix;
+  }
+
+  /**
+   * Tell whether the given snapshot file only holds the changes since the previous snapshot file.
+   */
+  public static boolean isDeltaSnapshot(File snapshot) {
+    return suffix(snapshot).startsWith(DELTA_SNAPSHOT_SUFFIX_PREFIX);
+  }
+
+  /**
+   * Return the suffix of the full snapshot files written with the same serializer as the given snapshot file, which
+   * may be a delta snapshot file.
+   */
+  public static String fullSnapshotSuffix(File snapshot) {
+    String suffix = suffix(snapshot);
+    return isDeltaSnapshot(snapshot) ? suffix.substring(DELTA_SNAPSHOT_SUFFIX_PREFIX.length()) : suffix;
+  }
+
+  private static String suffix(File file) {
+    return file.getName().substring(file.getName().indexOf('.') + 1);
+  }
+
   /**
    * Generate a valid snapshot filename.
    *
@@ -94,8 +162,12 @@ public class PrevaylerDirectory {
     if (version < 0) {
       throw new IllegalArgumentException("Snapshot and journal version numbers must be non-negative: " + version);
     }
-    String fileName = "0000000000000000000" + version;
-    return new File(_directory, fileName.substring(fileName.length() - DIGITS_IN_FILENAME) + "." + suffix);
+    return new File(_directory, digits(version) + "." + suffix);
+  }
+
+  private static String digits(long version) {
+    String digits = "0000000000000000000" + version;
+    return digits.substring(digits.length() - DIGITS_IN_FILENAME);
   }
 
 
@@ -105,7 +177,7 @@ public class PrevaylerDirectory {
    * Returns -1 if file does not have a valid snapshot filename.
    */
   public static long snapshotVersion(File file) {
-    return version(file, SNAPSHOT_FILENAME_PATTERN);
+    return version(file, SNAPSHOT_FILENAME);
   }
 
   /**
@@ -114,67 +186,133 @@ public class PrevaylerDirectory {
    * Returns -1 if file does not have a valid journal filename.
    */
   public static long journalVersion(File file) {
-    return version(file, JOURNAL_FILENAME_PATTERN);
+    return version(file, JOURNAL_FILENAME);
   }
 
-  private static long version(File file, String filenamePattern) {
+  private static long version(File file, Pattern filenamePattern) {
     String fileName = file.getName();
-    if (!fileName.matches(filenamePattern)) return -1;
+    if (!filenamePattern.matcher(fileName).matches()) return -1;
     return Long.parseLong(fileName.substring(0, fileName.indexOf(".")));
   }
 
 
   /**
-   * Find the latest snapshot file.
-   * <p/>
-   * Returns null if no snapshot file was found.
+   * Record that the given snapshot or journal file was created in the directory.
+   */
+  public synchronized void add(File file) {
+    if (_journals == null) return;  // It will be found when the index is built.
+    long journalVersion = journalVersion(file);
+    if (journalVersion >= 0) _journals.put(file.getName(), file);
+    long snapshotVersion = snapshotVersion(file);
+    if (snapshotVersion >= 0) (isDeltaSnapshot(file) ? _deltaSnapshots : _fullSnapshots).put(snapshotVersion, file);
+  }
+
+  /**
+   * Record that the given snapshot or journal file was deleted or moved out of the directory.
+   */
+  public synchronized void remove(File file) {
+    if (_journals == null) return;
+    remove(_journals, file.getName(), file);
+    remove(_fullSnapshots, snapshotVersion(file), file);
+    remove(_deltaSnapshots, snapshotVersion(file), file);
+  }
+
+  private static <K> void remove(Map<K, File> index, K key, File file) {
+    if (file.equals(index.get(key))) index.remove(key);
+  }
+
+  /**
+   * List the directory again, for files created or deleted other than through add() and remove(). Lookups also do
+   * that by themselves when a file they found no longer exists.
    */
-  public File latestSnapshot() throws IOException {
+  public synchronized void refresh() throws IOException {
     File[] files = _directory.listFiles();
     if (files == null) throw new IOException("Error reading file list from directory " + _directory);
 
-    File latestSnapshot = null;
-    long latestVersion = -1;
-    for (int i = 0; i < files.length; i++) {
-      File candidateSnapshot = files[i];
-      long candidateVersion = snapshotVersion(candidateSnapshot);
-      if (candidateVersion > latestVersion) {
-        latestVersion = candidateVersion;
-        latestSnapshot = candidateSnapshot;
-      }
+    _journals = new TreeMap<String, File>();
+    _fullSnapshots = new TreeMap<Long, File>();
+    _deltaSnapshots = new TreeMap<Long, File>();
+    for (int i = 0; i < files.length; i++) add(files[i]);
+  }
+
+  private void index() throws IOException {
+    if (_journals == null) refresh();
+  }
+
+  private static File file(Map.Entry<?, File> entry) {
+    return entry == null ? null : entry.getValue();
+  }
+
+  private static boolean isGone(File file) {
+    return file != null && !file.exists();
+  }
+
+  /**
+   * Find the latest full snapshot file, ignoring delta snapshot files.
+   * <p/>
+   * Returns null if no snapshot file was found.
+   */
+  public synchronized File latestSnapshot() throws IOException {
+    index();
+    File latestSnapshot = file(_fullSnapshots.lastEntry());
+    if (isGone(latestSnapshot)) {
+      refresh();
+      latestSnapshot = file(_fullSnapshots.lastEntry());
     }
     return latestSnapshot;
   }
 
+  /**
+   * Find the delta snapshot files taken after the full snapshot with the given version, in the order they must be
+   * applied to it.
+   */
+  public synchronized File[] deltaSnapshotsAfter(long fullSnapshotVersion) throws IOException {
+    index();
+    File[] deltas = _deltaSnapshots.tailMap(fullSnapshotVersion, false).values().toArray(new File[0]);
+    for (int i = 0; i < deltas.length; i++) {
+      if (isGone(deltas[i])) {
+        refresh();
+        return _deltaSnapshots.tailMap(fullSnapshotVersion, false).values().toArray(new File[0]);
+      }
+    }
+    return deltas;
+  }
+
   /**
    * Find the journal file containing the desired transaction.
    * <p/>
    * Returns null if no appropriate journal file was found.
    */
-  public File findInitialJournalFile(long initialTransactionWanted) {
-    File[] journals = _directory.listFiles(new FileFilter() {
-      public boolean accept(File pathname) {
-        return pathname.getName().matches(JOURNAL_FILENAME_PATTERN);
-      }
-    });
+  public synchronized File findInitialJournalFile(long initialTransactionWanted) throws IOException {
+    index();
+    File journal = initialJournal(initialTransactionWanted);
+    if (isGone(journal)) {
+      refresh();
+      journal = initialJournal(initialTransactionWanted);
+    }
+    return journal;
+  }
 
-    Arrays.sort(journals, new Comparator() {
-      public int compare(Object o1, Object o2) {
-        File f1 = (File) o1;
-        File f2 = (File) o2;
-        return new Long(journalVersion(f1)).compareTo(new Long(journalVersion(f2)));
-      }
-    });
+  /**
+   * @return The first of the journals with the highest version up to the given transaction.
+   */
+  private File initialJournal(long initialTransactionWanted) {
+    File last = file(_journals.lowerEntry(digits(initialTransactionWanted + 1)));
+    return last == null ? null : file(_journals.ceilingEntry(digits(journalVersion(last))));
+  }
 
-    for (int i = journals.length - 1; i >= 0; i--) {
-      File journal = journals[i];
-      long version = journalVersion(journal);
-      if (version <= initialTransactionWanted) {
-        return journal;
-      }
+  /**
+   * Returns the journal file right after the given one, or null if there is none. That is the one with the lowest
+   * version above the given journal's, unless another one starts at the same version.
+   */
+  public synchronized File journalFileAfter(File journal) throws IOException {
+    index();
+    File result = file(_journals.higherEntry(journal.getName()));
+    if (isGone(result)) {
+      refresh();
+      result = file(_journals.higherEntry(journal.getName()));
     }
-
-    return null;
+    return result;
   }
 
   /**
@@ -195,31 +333,52 @@ public class PrevaylerDirectory {
   /**
    * Determine which snapshot and journal files are still necessary for recovery.
    * <p/>
-   * Necessary files include the latest snapshot file and any journal files
-   * potentially containing transactions after that snapshot version.
+   * Necessary files include the latest snapshot file, the delta snapshot files
+   * taken after it, and any journal files potentially containing transactions
+   * after the last of those snapshot versions.
    */
-  public Set necessaryFiles() throws IOException {
-    File[] allFiles = _directory.listFiles();
-    if (allFiles == null) {
-      throw new IOException("Error reading file list from directory " + _directory);
-    }
+  public synchronized Set necessaryFiles() throws IOException {
+    refresh();
     File latestSnapshot = latestSnapshot();
     long systemVersion = latestSnapshot == null ? 0 : snapshotVersion(latestSnapshot);
-    File initialJournal = findInitialJournalFile(systemVersion + 1);
-    Set neededFiles = new TreeSet();
+    Set<File> neededFiles = new TreeSet<File>();
     if (latestSnapshot != null) {
       neededFiles.add(latestSnapshot);
+      File[] deltas = deltaSnapshotsAfter(systemVersion);
+      for (int i = 0; i < deltas.length; i++) {
+        neededFiles.add(deltas[i]);
+        systemVersion = snapshotVersion(deltas[i]);
+      }
     }
+    File initialJournal = findInitialJournalFile(systemVersion + 1);
     if (initialJournal != null) {
-      neededFiles.add(initialJournal);
-      long initialJournalVersion = journalVersion(initialJournal);
-      for (int i = 0; i < allFiles.length; i++) {
-        File file = allFiles[i];
-        if (journalVersion(file) > initialJournalVersion) {
-          neededFiles.add(file);
-        }
-      }
+      neededFiles.addAll(_journals.tailMap(initialJournal.getName(), true).values());
     }
     return neededFiles;
   }
+
+  /**
+   * Determine which snapshot and journal files are no longer needed to recover from any of the given number of
+   * latest full snapshots.
+   * <p/>
+   * Those are the snapshot files, full or delta, older than the oldest of those snapshots, and the journal files
+   * holding only transactions up to it. Nothing is obsolete while there are no more full snapshots than that.
+   */
+  public synchronized Set<File> obsoleteFiles(int snapshotsToKeep) throws IOException {
+    if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept");
+    refresh();
+
+    Set<File> obsoleteFiles = new TreeSet<File>();
+    if (_fullSnapshots.size() <= snapshotsToKeep) return obsoleteFiles;
+
+    Iterator<Long> newestFirst = _fullSnapshots.descendingKeySet().iterator();
+    Long oldestKept = null;
+    for (int i = 0; i < snapshotsToKeep; i++) oldestKept = newestFirst.next();
+    obsoleteFiles.addAll(_fullSnapshots.headMap(oldestKept, false).values());
+    obsoleteFiles.addAll(_deltaSnapshots.headMap(oldestKept, false).values());
+
+    File initialJournal = initialJournal(oldestKept.longValue() + 1);  // Holding the first transaction after the oldest snapshot kept.
+    if (initialJournal != null) obsoleteFiles.addAll(_journals.headMap(initialJournal.getName(), false).values());
+    return obsoleteFiles;
+  }
 }
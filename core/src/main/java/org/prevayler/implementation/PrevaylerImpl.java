@@ -5,12 +5,15 @@
 package org.prevayler.implementation;
 
 import org.prevayler.*;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.monitor.SimpleMonitor;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class PrevaylerImpl<P> implements Prevayler<P> {
 
@@ -25,6 +28,15 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
 
   private boolean _transactionDeepCopyMode;
 
+  private final ImmutableTypes _immutableTypes;
+
+  private final boolean _immutablePrevalentSystem;
+
+  /**
+   * Null unless snapshots are taken in the background.
+   */
+  private final ReplicaSnapshotter<P> _replicaSnapshotter;
+
 
   /**
    * Creates a new Prevayler
@@ -35,18 +47,83 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
    */
   public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
                        Serializer journalSerializer, boolean transactionDeepCopyMode) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, false);
+  }
+
+  /**
+   * @param concurrentQueries If true, queries are executed concurrently with each other, and transactions exclude them through a ReadWriteLock instead of synchronizing on the prevalent system.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode,
+                       boolean concurrentQueries) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, concurrentQueries, false);
+  }
+
+  /**
+   * @param immutablePrevalentSystem If true, the prevalent system is treated as an immutable value that only RootTransactions replace, so queries and snapshots take no lock at all.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode,
+                       boolean concurrentQueries, boolean immutablePrevalentSystem) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, concurrentQueries, immutablePrevalentSystem, false);
+  }
+
+  /**
+   * @param backgroundSnapshots If true, snapshots are taken from a replica of the prevalent system that follows the published transactions, so takeSnapshot() doesn't hold up transactions on the prevalent system itself.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode,
+                       boolean concurrentQueries, boolean immutablePrevalentSystem, boolean backgroundSnapshots) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, concurrentQueries, immutablePrevalentSystem, backgroundSnapshots, new ImmutableTypes());
+  }
+
+  /**
+   * @param immutableTypes The transaction classes executed as they are given, without a deep copy, even if transactionDeepCopyMode is true.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode,
+                       boolean concurrentQueries, boolean immutablePrevalentSystem, boolean backgroundSnapshots,
+                       ImmutableTypes immutableTypes) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, concurrentQueries, immutablePrevalentSystem, backgroundSnapshots, immutableTypes, new SimpleMonitor(System.err));
+  }
+
+  /**
+   * @param monitor Told when the replica for background snapshots no longer matches the prevalent system.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode,
+                       boolean concurrentQueries, boolean immutablePrevalentSystem, boolean backgroundSnapshots,
+                       ImmutableTypes immutableTypes, Monitor monitor) throws IOException, ClassNotFoundException {
     _snapshotManager = snapshotManager;
 
     _guard = _snapshotManager.recoveredPrevalentSystem();
+    if (concurrentQueries) _guard.enableConcurrentQueries();
+    if (immutablePrevalentSystem) _guard.enableImmutablePrevalentSystem();
+    _immutablePrevalentSystem = immutablePrevalentSystem;
 
     _publisher = transactionPublisher;
     _clock = _publisher.clock();
 
     _guard.subscribeTo(_publisher);
 
+    _replicaSnapshotter = backgroundSnapshots ? createReplicaSnapshotter(monitor) : null;
+
     _journalSerializer = journalSerializer;
 
     _transactionDeepCopyMode = transactionDeepCopyMode;
+    _immutableTypes = immutableTypes;
+  }
+
+  private ReplicaSnapshotter<P> createReplicaSnapshotter(Monitor monitor) throws IOException, ClassNotFoundException {
+    try {
+      return new ReplicaSnapshotter<P>(_guard, _publisher, _snapshotManager, monitor);
+    } catch (IOException e) {
+      throw e;
+    } catch (ClassNotFoundException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to create the replica for background snapshots.", e);
+    }
   }
 
   public P prevalentSystem() {
@@ -60,7 +137,47 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
 
 
   public void execute(Transaction<? super P> transaction) {
-    publish(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode));    //TODO Optimization: The Censor can use the actual given transaction if it is Immutable instead of deserializing a new one from the byte array, even if "_transactionDeepCopyMode" is "true"
+    checkNotImmutable(transaction);
+    publish(new TransactionCapsule<P>(transaction, _journalSerializer, deepCopyMode(transaction)));
+  }
+
+
+  public void execute(List<? extends Transaction<? super P>> transactions) {
+    if (transactions.isEmpty()) return;
+    checkNotImmutable(transactions.get(0));
+    TransactionBatch<P> batch = new TransactionBatch<P>(transactions);
+    publish(new TransactionCapsule<P>(batch, _journalSerializer, deepCopyMode(batch)));
+  }
+
+
+  public void executeRoot(RootTransaction<P> rootTransaction) {
+    publish(new TransactionCapsule<P>(rootTransaction, _journalSerializer, deepCopyMode(rootTransaction)));
+  }
+
+
+  /**
+   * An immutable prevalent system is read by queries and snapshots without any lock, so only RootTransactions, which
+   * replace it, may be executed on it. Anything else would change it in place under their feet.
+   */
+  private void checkNotImmutable(Object transaction) {
+    if (_immutablePrevalentSystem) {
+      throw new IllegalStateException("The prevalent system is immutable: only RootTransactions can change it, not " + transaction.getClass().getName());
+    }
+  }
+
+
+  /**
+   * Immutable transactions are executed directly: a deep copy would be no different.
+   */
+  private boolean deepCopyMode(Object transaction) {
+    if (transaction instanceof TransactionBatch) {
+      List<?> transactions = ((TransactionBatch<?>) transaction).transactions();
+      for (int i = 0; i < transactions.size(); i++) {
+        if (deepCopyMode(transactions.get(i))) return true;
+      }
+      return false;
+    }
+    return _transactionDeepCopyMode && !_immutableTypes.contains(transaction.getClass());
   }
 
 
@@ -75,7 +192,8 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
 
 
   public <R> R execute(TransactionWithQuery<? super P, R> transactionWithQuery) throws Exception {
-    TransactionWithQueryCapsule<? super P, R> capsule = new TransactionWithQueryCapsule<P, R>(transactionWithQuery, _journalSerializer, _transactionDeepCopyMode);
+    checkNotImmutable(transactionWithQuery);
+    TransactionWithQueryCapsule<? super P, R> capsule = new TransactionWithQueryCapsule<P, R>(transactionWithQuery, _journalSerializer, deepCopyMode(transactionWithQuery));
     publish(capsule);
     return capsule.result();
   }
@@ -92,13 +210,31 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
   }
 
 
+  public ListenableFuture<Void> executeAsync(Transaction<? super P> transaction) {
+    checkNotImmutable(transaction);
+    AsyncResult<Void> result = new AsyncResult<Void>(null);
+    _publisher.publishAsync(new TransactionCapsule<P>(transaction, _journalSerializer, deepCopyMode(transaction)), result);
+    return result;
+  }
+
+
+  public <R> ListenableFuture<R> executeAsyncWithQuery(TransactionWithQuery<? super P, R> transactionWithQuery) {
+    checkNotImmutable(transactionWithQuery);
+    TransactionWithQueryCapsule<? super P, R> capsule = new TransactionWithQueryCapsule<P, R>(transactionWithQuery, _journalSerializer, deepCopyMode(transactionWithQuery));
+    AsyncResult<R> result = new AsyncResult<R>(capsule);
+    _publisher.publishAsync(capsule, result);
+    return result;
+  }
+
+
   public File takeSnapshot() throws Exception {
+    if (_replicaSnapshotter != null) return _replicaSnapshotter.takeSnapshot(_snapshotManager);
     return _guard.takeSnapshot(_snapshotManager);
   }
 
 
   public void close() throws IOException {
-    _publisher.close();
+    _publisher.close();  // Transactions passed to executeAsync() are still executed.
   }
 
 }
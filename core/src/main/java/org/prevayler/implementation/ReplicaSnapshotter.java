@@ -0,0 +1,79 @@
+package org.prevayler.implementation;
+
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.TransactionPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+import org.prevayler.implementation.snapshot.GenericSnapshotManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Takes snapshots from a replica of the prevalent system instead of from the prevalent system itself, so transactions
+ * keep executing on the primary while a snapshot is written. The replica is subscribed to the publisher through a
+ * POBox: while it is being serialized its transactions pile up in the POBox, and it catches up with them afterwards.
+ * <br>
+ * <br>The replica is copied from the prevalent system by writing and reading it as a snapshot, so it comes back just as
+ * it would upon recovery. A transaction that throws a RuntimeException on the replica but not on the prevalent system,
+ * or the other way around, means the replica has diverged, and is reported to the Monitor.
+ * <br>
+ * <br>The replica doubles the memory used by the prevalent system.
+ */
+class ReplicaSnapshotter<P> implements TransactionSubscriber {
+
+  private final PrevalentSystemGuard<P> _primary;
+  private final PrevalentSystemGuard<P> _replica;
+  private final Monitor _monitor;
+
+  /**
+   * Must be created before any transaction is executed on the primary, since the replica is a deep copy of it at its
+   * current systemVersion.
+   */
+  ReplicaSnapshotter(PrevalentSystemGuard<P> primary, TransactionPublisher publisher, GenericSnapshotManager<P> snapshotManager, Monitor monitor) throws Exception {
+    _primary = primary;
+    _monitor = monitor;
+    primary.recordFailures();
+    _replica = primary.copy(primary.systemVersion(), snapshotManager);
+    subscribeReplicaTo(publisher);
+  }
+
+  private void subscribeReplicaTo(TransactionPublisher publisher) throws IOException, ClassNotFoundException {
+    publisher.subscribe(new POBox(this), _replica.systemVersion() + 1);
+  }
+
+  public void receive(TransactionTimestamp transactionTimestamp) {
+    // Executes a copy as read back from the journal, so the replica never shares a transaction object (or anything
+    // it refers to) with the primary, even when transactions are not deep copied.
+    TransactionTimestamp copy = TransactionTimestamp.fromBinaryChunk(transactionTimestamp.toBinaryChunk());
+    long systemVersion = copy.systemVersion();
+    RuntimeException thrown = null;
+    try {
+      _replica.receive(copy);
+    } catch (RuntimeException rx) {
+      thrown = rx;
+    }
+
+    boolean thrownOnThePrimary = _primary.forgetFailure(systemVersion);
+    if (thrown != null && !thrownOnThePrimary) {
+      _monitor.notify(ReplicaSnapshotter.class, "Transaction " + systemVersion + " threw on the replica for background snapshots but not on the prevalent system. Snapshots may no longer match the prevalent system.", thrown);
+    } else if (thrown == null && thrownOnThePrimary) {
+      _monitor.notify(ReplicaSnapshotter.class, "Transaction " + systemVersion + " threw on the prevalent system but not on the replica for background snapshots. Snapshots may no longer match the prevalent system.");
+    }
+  }
+
+  public void receiveBatch(List<TransactionTimestamp> transactionTimestamps) {
+    for (int i = 0; i < transactionTimestamps.size(); i++) receive(transactionTimestamps.get(i));
+  }
+
+  /**
+   * Writes a snapshot of the replica once it has caught up with all the transactions the primary had executed when
+   * this was called.
+   */
+  File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
+    _replica.waitForSystemVersion(_primary.systemVersion());
+    return _replica.takeSnapshot(snapshotManager);
+  }
+
+}
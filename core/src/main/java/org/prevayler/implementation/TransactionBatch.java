@@ -0,0 +1,33 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Transaction;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Several transactions journaled and executed as one, in order. A RuntimeException thrown by one of them stops the
+ * batch there, both when first executed and when recovered from the journal, so those after it are never executed.
+ */
+class TransactionBatch<P> implements Transaction<P> {
+
+  private static final long serialVersionUID = -6147735612931178401L;
+
+  private final ArrayList<Transaction<? super P>> _transactions;
+
+  TransactionBatch(List<? extends Transaction<? super P>> transactions) {
+    _transactions = new ArrayList<Transaction<? super P>>(transactions);
+  }
+
+  public void executeOn(P prevalentSystem, Date executionTime) {
+    for (int i = 0; i < _transactions.size(); i++) {
+      _transactions.get(i).executeOn(prevalentSystem, executionTime);
+    }
+  }
+
+  List<Transaction<? super P>> transactions() {
+    return _transactions;
+  }
+
+}
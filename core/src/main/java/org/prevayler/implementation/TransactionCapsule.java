@@ -1,5 +1,6 @@
 package org.prevayler.implementation;
 
+import org.prevayler.RootTransaction;
 import org.prevayler.Transaction;
 import org.prevayler.foundation.serialization.Serializer;
 
@@ -13,12 +14,24 @@ class TransactionCapsule<P> extends Capsule {
     super(transaction, journalSerializer, transactionDeepCopyMode);
   }
 
+  public TransactionCapsule(RootTransaction<P> rootTransaction, Serializer journalSerializer, boolean transactionDeepCopyMode) {
+    super(rootTransaction, journalSerializer, transactionDeepCopyMode);
+  }
+
   public TransactionCapsule(byte[] serialized) {
     super(serialized);
   }
 
-  protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
+  protected Object justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
+    if (transaction instanceof RootTransaction) {
+      P newPrevalentSystem = ((RootTransaction<P>) transaction).executeOn((P) prevalentSystem, executionTime);
+      if (newPrevalentSystem == null) {
+        throw new IllegalStateException("A RootTransaction returned null instead of a prevalent system.");
+      }
+      return newPrevalentSystem;
+    }
     ((Transaction<P>) transaction).executeOn((P) prevalentSystem, executionTime);
+    return prevalentSystem;
   }
 
   public Capsule cleanCopy() {
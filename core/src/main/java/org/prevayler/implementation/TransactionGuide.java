@@ -1,8 +1,10 @@
 package org.prevayler.implementation;
 
+import org.prevayler.foundation.BinaryChunking;
 import org.prevayler.foundation.Chunking;
 import org.prevayler.foundation.Guided;
 import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.TurnSequencer;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -17,6 +19,11 @@ public class TransactionGuide extends Guided {
     _transactionTimestamp = transactionTimestamp;
   }
 
+  public TransactionGuide(TransactionTimestamp transactionTimestamp, TurnSequencer pipeline, long pipelineSequence) {
+    super(pipeline, pipelineSequence);
+    _transactionTimestamp = transactionTimestamp;
+  }
+
   public TransactionTimestamp timestamp() {
     return _transactionTimestamp;
   }
@@ -31,8 +38,16 @@ public class TransactionGuide extends Guided {
     return _transactionTimestamp.executionTime();
   }
 
+  public long executionTimeMillis() {
+    return _transactionTimestamp.executionTimeMillis();
+  }
+
   public void writeTo(OutputStream stream) throws IOException {
     Chunking.writeChunk(stream, _transactionTimestamp.toChunk());
   }
 
+  public void writeBinaryTo(OutputStream stream) throws IOException {
+    BinaryChunking.writeChunk(stream, _transactionTimestamp.toBinaryChunk());
+  }
+
 }
@@ -4,6 +4,7 @@
 
 package org.prevayler.implementation;
 
+import org.prevayler.foundation.BinaryChunk;
 import org.prevayler.foundation.Chunk;
 
 import java.io.Serializable;
@@ -21,7 +22,7 @@ public class TransactionTimestamp implements Serializable {
     this(capsule, systemVersion, executionTime.getTime());
   }
 
-  private TransactionTimestamp(Capsule capsule, long systemVersion, long executionTime) {
+  public TransactionTimestamp(Capsule capsule, long systemVersion, long executionTime) {
     _capsule = capsule;
     _systemVersion = systemVersion;
     _executionTime = executionTime;
@@ -39,6 +40,10 @@ public class TransactionTimestamp implements Serializable {
     return new Date(_executionTime);
   }
 
+  public long executionTimeMillis() {
+    return _executionTime;
+  }
+
   public TransactionTimestamp cleanCopy() {
     return new TransactionTimestamp(_capsule.cleanCopy(), _systemVersion, _executionTime);
   }
@@ -57,4 +62,12 @@ public class TransactionTimestamp implements Serializable {
     return new TransactionTimestamp(capsule, systemVersion, executionTime);
   }
 
+  public BinaryChunk toBinaryChunk() {
+    return _capsule.toBinaryChunk(_systemVersion, _executionTime);
+  }
+
+  public static TransactionTimestamp fromBinaryChunk(BinaryChunk chunk) {
+    return new TransactionTimestamp(Capsule.fromBinaryChunk(chunk), chunk.getVersion(), chunk.getTimestamp());
+  }
+
 }
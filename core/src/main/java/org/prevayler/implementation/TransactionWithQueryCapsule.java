@@ -19,7 +19,7 @@ class TransactionWithQueryCapsule<P, R> extends Capsule {
     super(serialized);
   }
 
-  protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
+  protected Object justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
     try {
       _queryResult = ((TransactionWithQuery<P, R>) transaction).executeAndQuery((P) prevalentSystem, executionTime);
     } catch (RuntimeException rx) {
@@ -28,6 +28,7 @@ class TransactionWithQueryCapsule<P, R> extends Capsule {
     } catch (Exception ex) {
       _queryException = ex;
     }
+    return prevalentSystem;
   }
 
   public R result() throws Exception {
@@ -7,33 +7,87 @@ package org.prevayler.implementation.clock;
 import org.prevayler.Clock;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A deterministic Clock that always returns the same time until it is forced to advance. This class is useful as a Clock mock in order to run automated tests involving date/time related rules. A new BrokenClock's time() starts off at new Date(0);
+ * <br>
+ * <br>The time is read without any lock: it is kept as an immutable Tick that advancing replaces.
  */
 public class BrokenClock implements Clock {
 
-  private Date _time;
-  protected long _millis;
+  /**
+   * A time, both as milliseconds and as the Date handed out for them, so the two are always read together.
+   */
+  static final class Tick {
+    final long _millis;
+    final Date _date;
+
+    Tick(long millis, Date date) {
+      _millis = millis;
+      _date = date;
+    }
+  }
+
+  private final AtomicReference<Tick> _tick;
+
+  /**
+   * The milliseconds of the time last advanced to, kept for subclasses. While two threads advance the clock at once,
+   * it may briefly be left at the earlier of their times.
+   *
+   * @deprecated Use timeMillis() instead, which is always in step with time().
+   */
+  @Deprecated
+  protected volatile long _millis;
 
   public BrokenClock() {
     this(new Date(0));
   }
 
   public BrokenClock(Date time) {
-    _time = time;
+    _tick = new AtomicReference<Tick>(new Tick(time.getTime(), time));
     _millis = time.getTime();
   }
 
-  public synchronized Date time() {
-    return _time;
+  public Date time() {
+    return _tick.get()._date;
+  }
+
+  /**
+   * Tells the time as time().getTime() would, without having to create a Date.
+   */
+  public long timeMillis() {
+    return _tick.get()._millis;
   }
 
-  public synchronized void advanceTo(Date newTime) {
+  public void advanceTo(Date newTime) {
     long newMillis = newTime.getTime();
-    if (newMillis == _millis) return;
-    _millis = newMillis;
-    _time = newTime;
+    while (true) {
+      Tick last = tick();
+      if (last._millis == newMillis) return;
+      if (replace(last, new Tick(newMillis, newTime))) return;
+    }
+  }
+
+  /**
+   * The same as advanceTo(Date), but only creates a Date when the time actually changes.
+   */
+  public void advanceTo(long newMillis) {
+    while (true) {
+      Tick last = tick();
+      if (last._millis == newMillis) return;
+      if (replace(last, new Tick(newMillis, new Date(newMillis)))) return;
+    }
+  }
+
+  Tick tick() {
+    return _tick.get();
+  }
+
+  boolean replace(Tick expected, Tick newTick) {
+    if (!_tick.compareAndSet(expected, newTick)) return false;
+    _millis = newTick._millis;
+    return true;
   }
 
 }
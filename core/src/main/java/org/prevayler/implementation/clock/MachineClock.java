@@ -8,21 +8,30 @@ import java.util.Date;
 
 /**
  * A Clock that uses the local machine clock (System.currentTimeMillis()) as its time source.
+ * <br>
+ * <br>Neither method takes a lock. time() creates a new Date only once per millisecond, however many threads ask for
+ * it, and timeMillis() never does.
  */
 public class MachineClock extends BrokenClock {
 
   /**
    * @return The local machine time.
    */
-  public synchronized Date time() {
-    update();
-    return super.time();
+  public Date time() {
+    while (true) {
+      long now = System.currentTimeMillis();
+      Tick last = tick();
+      if (last._millis == now) return last._date;
+      Tick tick = new Tick(now, new Date(now));
+      if (replace(last, tick)) return tick._date;
+    }
   }
 
-
-  private synchronized void update() {
-    long newTime = System.currentTimeMillis();
-    if (newTime != _millis) advanceTo(new Date(newTime));
+  /**
+   * @return The local machine time.
+   */
+  public long timeMillis() {
+    return System.currentTimeMillis();
   }
 
 }
@@ -8,11 +8,15 @@ import org.prevayler.Clock;
 
 import java.util.Date;
 
+/**
+ * Tells the time of the real clock, or the time it was paused at, without taking any lock. Pausing and resuming are
+ * expected to be done by one thread at a time.
+ */
 public class PausableClock implements Clock {
 
   private final Clock _realClock;
   private final BrokenClock _brokenClock = new BrokenClock();
-  private Clock _activeClock;
+  private volatile Clock _activeClock;
 
 
   public PausableClock(Clock realClock) {
@@ -20,12 +24,16 @@ public class PausableClock implements Clock {
     resume();
   }
 
-  public synchronized Date time() {
+  public Date time() {
     return _activeClock.time();
   }
 
-  public synchronized void pause() {
-    advanceTo(_realClock.time());
+  public long timeMillis() {
+    return millisOf(_activeClock);
+  }
+
+  public void pause() {
+    advanceTo(realTimeMillis());
     _activeClock = _brokenClock;
   }
 
@@ -33,11 +41,26 @@ public class PausableClock implements Clock {
     _brokenClock.advanceTo(time);
   }
 
-  public synchronized void resume() {
+  public void advanceTo(long millis) {
+    _brokenClock.advanceTo(millis);
+  }
+
+  public void resume() {
     _activeClock = _realClock;
   }
 
   public Date realTime() {
     return _realClock.time();
   }
+
+  public long realTimeMillis() {
+    return millisOf(_realClock);
+  }
+
+  /**
+   * Clocks other than ours can only tell the time as a Date.
+   */
+  private static long millisOf(Clock clock) {
+    return clock instanceof BrokenClock ? ((BrokenClock) clock).timeMillis() : clock.time().getTime();
+  }
 }
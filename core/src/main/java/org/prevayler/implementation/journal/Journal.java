@@ -15,6 +15,13 @@ public interface Journal {
 
   public void append(TransactionGuide guide);
 
+  /**
+   * Does what append() does up to where it would wait for the guide to become durable, and returns the rest. The
+   * Runnables returned must be run one at a time, in the order of their guides' turns, and each guide is durable once
+   * its Runnable returns.
+   */
+  public Runnable appendWithoutWaiting(TransactionGuide guide);
+
   public void update(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException;
 
   public void close() throws IOException;
@@ -7,6 +7,7 @@ package org.prevayler.implementation.journal;
 
 import org.prevayler.foundation.*;
 import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.implementation.PrevaylerDirectory;
 import org.prevayler.implementation.TransactionGuide;
 import org.prevayler.implementation.TransactionTimestamp;
@@ -15,6 +16,7 @@ import org.prevayler.implementation.publishing.TransactionSubscriber;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 
 /**
@@ -23,19 +25,32 @@ import java.io.IOException;
 public class PersistentJournal implements Journal {
 
   private final PrevaylerDirectory _directory;
-  private DurableOutputStream _outputJournal;
+  protected DurableOutput _outputJournal;
 
   private final long _journalSizeThresholdInBytes;
   private final long _journalAgeThresholdInMillis;
-  private StopWatch _journalAgeTimer;
+  protected StopWatch _journalAgeTimer;
 
   private final boolean _journalDiskSync;
+  private final boolean _journalMemoryMapping;
+  private final GroupCommitPolicy _groupCommitPolicy;
 
-  private long _nextTransaction;
+  protected long _nextTransaction;
   private boolean _nextTransactionInitialized = false;
   private Monitor _monitor;
 
   private final String _journalSuffix;
+  private final boolean _binaryChunks;
+
+  /**
+   * Large enough for a single read to fetch many small transactions at once.
+   */
+  static final int DEFAULT_READ_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Null unless recovery is done by a ReplayPipeline. Only set before update() is first called.
+   */
+  private ReplayPipeline _replayPipeline = null;
 
   /**
    * @param directory
@@ -44,6 +59,16 @@ public class PersistentJournal implements Journal {
    */
   public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
                            boolean journalDiskSync, String journalSuffix, Monitor monitor) throws IOException {
+    this(directory, journalSizeThresholdInBytes, journalAgeThresholdInMillis, journalDiskSync, false, GroupCommitPolicy.NONE, journalSuffix, monitor);
+  }
+
+  /**
+   * @param journalMemoryMapping If true, journal files are written through a MappedDurableOutputStream instead of a DurableOutputStream. The file format is the same either way.
+   * @param groupCommitPolicy How long each sync may wait for more transactions to be synced along with it. The batch sizes achieved are reported to the monitor whenever a journal file is closed.
+   */
+  public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
+                           boolean journalDiskSync, boolean journalMemoryMapping, GroupCommitPolicy groupCommitPolicy,
+                           String journalSuffix, Monitor monitor) throws IOException {
     PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
 
     _monitor = monitor;
@@ -52,16 +77,24 @@ public class PersistentJournal implements Journal {
     _journalSizeThresholdInBytes = journalSizeThresholdInBytes;
     _journalAgeThresholdInMillis = journalAgeThresholdInMillis;
     _journalDiskSync = journalDiskSync;
+    _journalMemoryMapping = journalMemoryMapping;
+    _groupCommitPolicy = groupCommitPolicy;
     _journalSuffix = journalSuffix;
+    _binaryChunks = PrevaylerDirectory.isBinaryJournalSuffix(journalSuffix);
   }
 
 
   public void append(TransactionGuide guide) {
+    appendWithoutWaiting(guide).run();
+  }
+
+
+  public Runnable appendWithoutWaiting(TransactionGuide guide) {
     if (!_nextTransactionInitialized)
       throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
 
-    DurableOutputStream myOutputJournal;
-    DurableOutputStream outputJournalToClose = null;
+    DurableOutput myOutputJournal;
+    DurableOutput outputJournalToClose = null;
 
     guide.startTurn();
     try {
@@ -80,26 +113,66 @@ public class PersistentJournal implements Journal {
       guide.endTurn();
     }
 
+    int write = 0;
     try {
-      myOutputJournal.sync(guide);
+      write = myOutputJournal.write(journalEntry(guide));
     } catch (Exception exception) {
-      abort(exception, _outputJournal.file(), "writing to", guide);
+      abort(exception, myOutputJournal.file(), "writing to", guide);
     }
 
-    guide.startTurn();
-    try {
+    return new Syncing(guide, myOutputJournal, write, outputJournalToClose);
+  }
+
+
+  /**
+   * What is left of an append once the guide has been written: waiting for it to be synced, and then closing the
+   * journal file it replaced, if any.
+   */
+  private class Syncing implements Runnable {
+
+    private final TransactionGuide _guide;
+    private final DurableOutput _outputJournal;
+    private final int _write;
+    private final DurableOutput _outputJournalToClose;
+
+    Syncing(TransactionGuide guide, DurableOutput outputJournal, int write, DurableOutput outputJournalToClose) {
+      _guide = guide;
+      _outputJournal = outputJournal;
+      _write = write;
+      _outputJournalToClose = outputJournalToClose;
+    }
+
+    public void run() {
       try {
-        if (outputJournalToClose != null) outputJournalToClose.close();
+        _outputJournal.waitUntilSynced(_write);
       } catch (Exception exception) {
-        abort(exception, outputJournalToClose.file(), "closing", guide);
+        abort(exception, _outputJournal.file(), "writing to", _guide);
+      }
+
+      _guide.startTurn();
+      try {
+        try {
+          if (_outputJournalToClose != null) closeOutputJournal(_outputJournalToClose);
+        } catch (Exception exception) {
+          abort(exception, _outputJournalToClose.file(), "closing", _guide);
+        }
+      } finally {
+        _guide.endTurn();
       }
-    } finally {
-      guide.endTurn();
     }
+
   }
 
 
-  private boolean isOutputJournalStillValid() {
+  /**
+   * The guide as it is to be written to the journal file, in the chunk format given by the journal suffix.
+   */
+  protected Guided journalEntry(TransactionGuide guide) {
+    return _binaryChunks ? new BinaryChunkGuide(guide) : (Guided) guide;
+  }
+
+
+  protected boolean isOutputJournalStillValid() {
     return _outputJournal != null
         && !isOutputJournalTooBig()
         && !isOutputJournalTooOld();
@@ -118,10 +191,14 @@ public class PersistentJournal implements Journal {
   }
 
 
-  private DurableOutputStream createOutputJournal(long transactionNumber, Guided guide) {
+  protected DurableOutput createOutputJournal(long transactionNumber, Guided guide) {
     File file = _directory.journalFile(transactionNumber, _journalSuffix);
     try {
-      return new DurableOutputStream(file, _journalDiskSync, _journalSizeThresholdInBytes);
+      DurableOutput output = _journalMemoryMapping
+          ? new MappedDurableOutputStream(file, _journalDiskSync, _journalSizeThresholdInBytes, _groupCommitPolicy)
+          : new DurableOutputStream(file, _journalDiskSync, _journalSizeThresholdInBytes, _groupCommitPolicy);
+      _directory.add(file);
+      return output;
     } catch (Exception exception) {
       abort(exception, file, "creating", guide);
       return null;
@@ -129,6 +206,15 @@ public class PersistentJournal implements Journal {
   }
 
 
+  /**
+   * Makes update() read, deserialize and execute the transactions it recovers in a ReplayPipeline, deserializing
+   * them on the given number of threads. Must be called before update().
+   */
+  public void enableParallelReplay(int threads, Serializer journalSerializer) {
+    _replayPipeline = new ReplayPipeline(this, threads, journalSerializer);
+  }
+
+
   /**
    * IMPORTANT: This method cannot be called while the log() method is being called in another thread.
    * If there are no journal files in the directory (when a snapshot is taken and all journal files are manually deleted, for example), the initialTransaction parameter in the first call to this method will define what the next transaction number will be. We have to find clearer/simpler semantics.
@@ -163,51 +249,121 @@ public class PersistentJournal implements Journal {
   }
 
 
-  private long recoverPendingTransactions(TransactionSubscriber subscriber, long initialTransaction, File initialJournal) throws IOException {
+  private long recoverPendingTransactions(final TransactionSubscriber subscriber, long initialTransaction, File initialJournal) throws IOException {
+    if (_replayPipeline != null) return _replayPipeline.replay(subscriber, initialTransaction, initialJournal);
+
+    return readPendingTransactions(initialTransaction, initialJournal, DEFAULT_READ_BUFFER_SIZE, new ChunkReceiver() {
+      public void receive(Object chunk, boolean binary, long systemVersion) throws IOException {
+        subscriber.receive(entry(chunk, binary, systemVersion));
+      }
+    });
+  }
+
+  /**
+   * Reads each chunk that is due to be recovered, starting with initialTransaction, and hands it on to the receiver
+   * without parsing it. Each journal file is read through a ReadAheadInputStream, and the one following it starts
+   * being read ahead while it is recovered.
+   *
+   * @param bufferSize How many bytes are read from a journal file at a time.
+   * @return The systemVersion of the transaction following the last one read.
+   */
+  long readPendingTransactions(long initialTransaction, File initialJournal, int bufferSize, ChunkReceiver receiver) throws IOException {
     long recoveringTransaction = PrevaylerDirectory.journalVersion(initialJournal);
     File journal = initialJournal;
-    DurableInputStream input = new DurableInputStream(journal, _monitor);
-
-    while (true) {
-      try {
-        Chunk chunk = input.readChunk();
+    DurableInputStream input = open(journal, bufferSize);
+    boolean binary = PrevaylerDirectory.isBinaryJournal(journal);
+    File prefetchedJournal = _directory.journalFileAfter(journal);
+    DurableInputStream prefetched = prefetchedJournal == null ? null : open(prefetchedJournal, bufferSize);
 
-        if (recoveringTransaction >= initialTransaction) {
-          if (!journal.getName().endsWith(_journalSuffix)) {
-            throw new IOException("There are transactions needing to be recovered from " +
-                journal + ", but only " + _journalSuffix + " files are supported");
+    try {
+      while (true) {
+        try {
+          Object chunk = binary ? (Object) input.readBinaryChunk() : input.readChunk();
+
+          if (recoveringTransaction >= initialTransaction) {
+            if (!journal.getName().endsWith("." + _journalSuffix)
+                && !journal.getName().endsWith("." + PrevaylerDirectory.otherChunkFormatJournalSuffix(_journalSuffix))) {
+              throw new IOException("There are transactions needing to be recovered from " +
+                  journal + ", but only " + _journalSuffix + " files are supported");
+            }
+
+            receiver.receive(chunk, binary, recoveringTransaction);
           }
 
-          TransactionTimestamp entry = TransactionTimestamp.fromChunk(chunk);
+          recoveringTransaction++;
 
-          if (entry.systemVersion() != recoveringTransaction) {
-            throw new IOException("Expected " + recoveringTransaction + " but was " + entry.systemVersion());
+        } catch (EOFException eof) {
+          File nextFile = nextJournalFile(recoveringTransaction);
+          if (journal.equals(nextFile)) {
+            PrevaylerDirectory.renameUnusedFile(journal);  //The first transaction in this log file is incomplete. We need to reuse this file name.
+            _directory.remove(journal);
+            nextFile = nextJournalFile(recoveringTransaction);  // The other chunk format's, if one starts at the same version.
           }
-
-          subscriber.receive(entry);
+          journal = nextFile;
+          if (!journal.exists()) break;
+          if (journal.equals(prefetchedJournal)) {
+            input = prefetched;
+          } else {
+            if (prefetched != null) prefetched.close();
+            input = open(journal, bufferSize);
+          }
+          binary = PrevaylerDirectory.isBinaryJournal(journal);
+          prefetchedJournal = _directory.journalFileAfter(journal);
+          prefetched = prefetchedJournal == null ? null : open(prefetchedJournal, bufferSize);
         }
-
-        recoveringTransaction++;
-
-      } catch (EOFException eof) {
-        File nextFile = _directory.journalFile(recoveringTransaction, _journalSuffix);
-        if (journal.equals(nextFile))
-          PrevaylerDirectory.renameUnusedFile(journal);  //The first transaction in this log file is incomplete. We need to reuse this file name.
-        journal = nextFile;
-        if (!journal.exists()) break;
-        input = new DurableInputStream(journal, _monitor);
       }
+    } finally {
+      input.close();
+      if (prefetched != null && prefetched != input) prefetched.close();
     }
     return recoveringTransaction;
   }
 
-  private void abort(Exception exception, File journal, String action, Guided guide) {
+  private DurableInputStream open(File journal, int bufferSize) throws IOException {
+    return new DurableInputStream(journal, _monitor, new ReadAheadInputStream(journal, bufferSize));
+  }
+
+  /**
+   * Parses a chunk read by readPendingTransactions().
+   */
+  static TransactionTimestamp entry(Object chunk, boolean binary, long expectedSystemVersion) throws IOException {
+    TransactionTimestamp entry = binary
+        ? TransactionTimestamp.fromBinaryChunk((BinaryChunk) chunk)
+        : TransactionTimestamp.fromChunk((Chunk) chunk);
+
+    if (entry.systemVersion() != expectedSystemVersion) {
+      throw new IOException("Expected " + expectedSystemVersion + " but was " + entry.systemVersion());
+    }
+    return entry;
+  }
+
+  /**
+   * Journal files written with the same suffix in the other chunk format are read as well, so that switching
+   * between "journal" and "binaryjournal" doesn't require taking a snapshot first.
+   */
+  private File nextJournalFile(long transaction) {
+    File file = _directory.journalFile(transaction, _journalSuffix);
+    if (!file.exists()) {
+      File otherFormat = _directory.journalFile(transaction, PrevaylerDirectory.otherChunkFormatJournalSuffix(_journalSuffix));
+      if (otherFormat.exists()) return otherFormat;
+    }
+    return file;
+  }
+
+  protected void abort(Exception exception, File journal, String action, Guided guide) {
     guide.abortTurn("All transaction processing is now aborted. An IOException was thrown while " + action + " a .journal file.", exception);
   }
 
 
   public void close() throws IOException {
-    if (_outputJournal != null) _outputJournal.close();
+    if (_outputJournal != null) closeOutputJournal(_outputJournal);
+  }
+
+  protected void closeOutputJournal(DurableOutput outputJournal) throws IOException {
+    outputJournal.close();
+    if (_groupCommitPolicy.waits()) {
+      _monitor.notify(getClass(), "Group commit batch sizes: " + outputJournal.batchSizes(), outputJournal.file());
+    }
   }
 
   public long nextTransaction() {
@@ -215,4 +371,27 @@ public class PersistentJournal implements Journal {
     return _nextTransaction;
   }
 
+
+  interface ChunkReceiver {
+
+    void receive(Object chunk, boolean binary, long systemVersion) throws IOException;
+
+  }
+
+
+  private static class BinaryChunkGuide extends Guided {
+
+    private final TransactionGuide _guide;
+
+    BinaryChunkGuide(TransactionGuide guide) {
+      super(guide);
+      _guide = guide;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      _guide.writeBinaryTo(stream);
+    }
+
+  }
+
 }
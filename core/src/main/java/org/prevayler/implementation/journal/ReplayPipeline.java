@@ -0,0 +1,148 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Recovers transactions from journal files in three stages running at the same time:
+ * <br>1. A reader thread reads the journal files sequentially, through a large buffer, splitting them into chunks.
+ * <br>2. A pool of threads parses the chunks and deserializes their transactions, in any order.
+ * <br>3. The thread calling replay() executes the transactions on the subscriber strictly in systemVersion order.
+ * <br>
+ * <br>Chunks are split on the reader thread because the boundary of each chunk is only known once the previous one
+ * has been read.
+ */
+class ReplayPipeline {
+
+  static final int READ_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * How many chunks each deserializing thread may be ahead of the executing thread.
+   */
+  static final int CHUNKS_AHEAD_PER_THREAD = 64;
+
+  private static final Future<TransactionTimestamp> END_OF_JOURNAL = new FutureTask<TransactionTimestamp>(new Callable<TransactionTimestamp>() {
+    public TransactionTimestamp call() {
+      return null;
+    }
+  });
+
+  private final PersistentJournal _journal;
+  private final int _threads;
+  private final Serializer _journalSerializer;
+
+  ReplayPipeline(PersistentJournal journal, int threads, Serializer journalSerializer) {
+    if (threads <= 0) throw new IllegalArgumentException("At least one replay thread is needed");
+    _journal = journal;
+    _threads = threads;
+    _journalSerializer = journalSerializer;
+  }
+
+  /**
+   * @return The systemVersion of the transaction following the last one recovered.
+   */
+  long replay(TransactionSubscriber subscriber, final long initialTransaction, final File initialJournal) throws IOException {
+    final BlockingQueue<Future<TransactionTimestamp>> entries = new ArrayBlockingQueue<Future<TransactionTimestamp>>(_threads * CHUNKS_AHEAD_PER_THREAD);
+    final ExecutorService deserializers = Executors.newFixedThreadPool(_threads, daemonThreads("Prevayler Journal Replay"));
+    final AtomicBoolean abandoned = new AtomicBoolean(false);
+
+    FutureTask<Long> reader = new FutureTask<Long>(new Callable<Long>() {
+      public Long call() throws Exception {
+        try {
+          return _journal.readPendingTransactions(initialTransaction, initialJournal, READ_BUFFER_SIZE, new PersistentJournal.ChunkReceiver() {
+            public void receive(Object chunk, boolean binary, long systemVersion) throws IOException {
+              put(entries, deserializers.submit(deserialization(chunk, binary, systemVersion)));
+            }
+          });
+        } finally {
+          // Once abandoned, nothing takes from a full queue any more, and the interrupt that got us here is cleared.
+          if (abandoned.get()) entries.offer(END_OF_JOURNAL);
+          else put(entries, END_OF_JOURNAL);
+        }
+      }
+    });
+    daemonThreads("Prevayler Journal Reader").newThread(reader).start();
+
+    try {
+      while (true) {
+        Future<TransactionTimestamp> entry = take(entries);
+        if (entry == END_OF_JOURNAL) break;
+        subscriber.receive(result(entry));
+      }
+      return result(reader);
+    } finally {
+      abandoned.set(true);
+      reader.cancel(true);  // Only has an effect if executing a transaction failed.
+      deserializers.shutdownNow();
+    }
+  }
+
+  private Callable<TransactionTimestamp> deserialization(final Object chunk, final boolean binary, final long systemVersion) {
+    return new Callable<TransactionTimestamp>() {
+      public TransactionTimestamp call() throws IOException {
+        TransactionTimestamp entry = PersistentJournal.entry(chunk, binary, systemVersion);
+        entry.capsule().prepare(_journalSerializer);
+        return entry;
+      }
+    };
+  }
+
+  private static void put(BlockingQueue<Future<TransactionTimestamp>> entries, Future<TransactionTimestamp> entry) throws InterruptedIOException {
+    try {
+      entries.put(entry);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Journal replay abandoned");
+    }
+  }
+
+  private static Future<TransactionTimestamp> take(BlockingQueue<Future<TransactionTimestamp>> entries) throws InterruptedIOException {
+    try {
+      return entries.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while replaying the journal");
+    }
+  }
+
+  /**
+   * Gets the result of the future, throwing whatever its computation threw.
+   */
+  private static <T> T result(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while replaying the journal");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException("Unable to replay the journal: " + cause);
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,315 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2005 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.GroupCommitPolicy;
+import org.prevayler.foundation.Guided;
+import org.prevayler.foundation.StopWatch;
+import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionGuide;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PersistentJournal in which a single writer thread does all the file I/O and syncing.
+ * <p/>
+ * Appending threads serialize their transaction on their own, put it in the slot of a pre-allocated ring for its
+ * systemVersion, which doubles as its sequence number in the ring, and park until the writer thread reports it as
+ * durable. The writer thread takes every consecutive transaction published so far, writes them in sequence order and
+ * syncs them together. No locks are taken on the way in: the only contention left is for the slots themselves, when
+ * more transactions are in flight than the ring has room for.
+ * <p/>
+ * Transactions are written to the journal in systemVersion order, as they are by PersistentJournal, and append() only
+ * returns once the transaction is durable, as does the Runnable returned by appendWithoutWaiting(), so the Turn of each
+ * TransactionGuide still orders everything after that.
+ */
+public class RingBufferJournal extends PersistentJournal {
+
+  /**
+   * Immutable.
+   */
+  private final int _mask;
+
+  /**
+   * Slot i holds the serialized transaction whose sequence is in _published slot i, and the thread waiting for it to
+   * become durable. Written only by the appending thread that owns the slot before it publishes the sequence, read
+   * and cleared only by the writer thread after it sees the sequence published.
+   */
+  private final byte[][] _entries;
+  private final Thread[] _waiters;
+  private final AtomicLongArray _published;
+
+  /**
+   * The last sequence written and synced. Only written by the writer thread.
+   */
+  private volatile long _durableSequence;
+
+  /**
+   * The next sequence to be taken by the writer thread. Slots for sequences below it are free. Only written by the
+   * writer thread.
+   */
+  private volatile long _consumedSequence;
+
+  private volatile Exception _failure = null;
+  private volatile boolean _closing = false;
+  private volatile boolean _writerParked = false;
+  private volatile Thread _writer = null;
+
+  /**
+   * The thread running what appendWithoutWaiting() returned, which is unparked after every batch, since no slot
+   * knows it. Those Runnables are run one at a time, so there is only one such thread at a time.
+   */
+  private volatile Thread _asyncWaiter = null;
+
+  /**
+   * @param ringSize The number of slots in the ring, that is the most transactions that can be waiting to be written at any time. Must be a power of two.
+   */
+  public RingBufferJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
+                           boolean journalDiskSync, boolean journalMemoryMapping, GroupCommitPolicy groupCommitPolicy,
+                           String journalSuffix, Monitor monitor, int ringSize) throws IOException {
+    super(directory, journalSizeThresholdInBytes, journalAgeThresholdInMillis, journalDiskSync, journalMemoryMapping, groupCommitPolicy, journalSuffix, monitor);
+
+    if (ringSize <= 0 || (ringSize & (ringSize - 1)) != 0) {
+      throw new IllegalArgumentException("The ring size must be a power of two: " + ringSize);
+    }
+    _mask = ringSize - 1;
+    _entries = new byte[ringSize][];
+    _waiters = new Thread[ringSize];
+    _published = new AtomicLongArray(ringSize);
+    for (int i = 0; i < ringSize; i++) {
+      _published.set(i, -1);
+    }
+  }
+
+
+  public void update(TransactionSubscriber subscriber, long initialTransactionWanted) throws IOException, ClassNotFoundException {
+    super.update(subscriber, initialTransactionWanted);
+    if (_writer == null) startWriter(_nextTransaction);
+  }
+
+
+  private void startWriter(long firstSequence) {
+    _durableSequence = firstSequence - 1;
+    _consumedSequence = firstSequence;
+
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "Prevayler Journal Writer");
+    writer.setDaemon(true);
+    _writer = writer;
+    writer.start();
+  }
+
+
+  public void append(TransactionGuide guide) {
+    long sequence = publish(guide, Thread.currentThread());
+    waitUntilDurable(sequence, guide);
+  }
+
+
+  public Runnable appendWithoutWaiting(final TransactionGuide guide) {
+    final long sequence = publish(guide, null);
+    return new Runnable() {
+      public void run() {
+        _asyncWaiter = Thread.currentThread();
+        waitUntilDurable(sequence, guide);
+      }
+    };
+  }
+
+
+  /**
+   * Puts the serialized guide in its slot for the writer thread to take, once there is room in the ring.
+   *
+   * @param waiter The thread to unpark once the guide is durable, if any.
+   */
+  private long publish(TransactionGuide guide, Thread waiter) {
+    if (_writer == null)
+      throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
+
+    long sequence = guide.timestamp().systemVersion();
+    if (sequence < _consumedSequence) guide.checkSystemVersion(_consumedSequence);
+
+    byte[] entry = serialize(guide);
+
+    while (sequence - _consumedSequence > _mask) {
+      checkFailure(guide);
+      LockSupport.parkNanos(this, 1000);
+    }
+
+    int slot = (int) (sequence & _mask);
+    _entries[slot] = entry;
+    _waiters[slot] = waiter;
+    _published.set(slot, sequence);
+
+    if (_writerParked) LockSupport.unpark(_writer);
+    return sequence;
+  }
+
+
+  private void waitUntilDurable(long sequence, TransactionGuide guide) {
+    while (_durableSequence < sequence) {
+      checkFailure(guide);
+      LockSupport.park(this);
+    }
+  }
+
+
+  private byte[] serialize(TransactionGuide guide) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      journalEntry(guide).writeTo(bytes);
+    } catch (IOException exception) {
+      guide.abortTurn("All transaction processing is now aborted. An IOException was thrown while serializing a transaction.", exception);
+    }
+    return bytes.toByteArray();
+  }
+
+
+  private void checkFailure(TransactionGuide guide) {
+    Exception failure = _failure;
+    if (failure != null) {
+      guide.abortTurn("All transaction processing is now aborted. An IOException was thrown while writing to a .journal file.", failure);
+    }
+  }
+
+
+  private void writeLoop() {
+    long next = _consumedSequence;
+    try {
+      while (true) {
+        long last = next - 1;
+        while (_published.get((int) ((last + 1) & _mask)) == last + 1) last++;
+
+        if (last < next) {
+          if (_closing) break;
+          waitForPublication(next);
+          continue;
+        }
+
+        writeBatch(next, last);
+        next = last + 1;
+      }
+    } catch (Exception exception) {
+      fail(exception);
+      return;
+    }
+    fail(new IOException("already closed"));
+  }
+
+
+  private void waitForPublication(long sequence) {
+    int slot = (int) (sequence & _mask);
+    for (int spins = 0; spins < 100; spins++) {
+      if (_published.get(slot) == sequence || _closing) return;
+      Thread.yield();
+    }
+
+    _writerParked = true;
+    try {
+      if (_published.get(slot) != sequence && !_closing) LockSupport.park(this);
+    } finally {
+      _writerParked = false;
+    }
+  }
+
+
+  private void writeBatch(long first, long last) throws IOException {
+    Batch batch = new Batch(first, last);
+
+    if (!isOutputJournalStillValid()) {
+      if (_outputJournal != null) closeOutputJournal(_outputJournal);
+      _outputJournal = createOutputJournal(first, batch);
+      _journalAgeTimer = StopWatch.start();
+    }
+
+    _outputJournal.sync(batch);
+
+    Thread[] waiters = new Thread[(int) (last - first + 1)];
+    for (long sequence = first; sequence <= last; sequence++) {
+      int slot = (int) (sequence & _mask);
+      waiters[(int) (sequence - first)] = _waiters[slot];
+      _waiters[slot] = null;
+      _entries[slot] = null;
+    }
+
+    _nextTransaction = last + 1;
+    _durableSequence = last;
+    _consumedSequence = last + 1;
+
+    for (int i = 0; i < waiters.length; i++) {
+      if (waiters[i] != null) LockSupport.unpark(waiters[i]);
+    }
+    unparkAsyncWaiter();
+  }
+
+
+  /**
+   * Every appending thread still waiting, or yet to come, will abort its turn.
+   */
+  private void fail(Exception exception) {
+    _failure = exception;
+    for (int i = 0; i < _waiters.length; i++) {
+      if (_published.get(i) < 0) continue; // Reading the sequence first makes the waiter visible.
+      Thread waiter = _waiters[i];
+      if (waiter != null) LockSupport.unpark(waiter);
+    }
+    unparkAsyncWaiter();
+  }
+
+
+  private void unparkAsyncWaiter() {
+    Thread asyncWaiter = _asyncWaiter;
+    if (asyncWaiter != null) LockSupport.unpark(asyncWaiter);
+  }
+
+
+  public void close() throws IOException {
+    Thread writer = _writer;
+    if (writer != null) {
+      _closing = true;
+      LockSupport.unpark(writer);
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    super.close();
+  }
+
+
+  /**
+   * All the transactions from first to last, already serialized, to be written and synced together.
+   */
+  private class Batch extends Guided {
+
+    private final long _first;
+    private final long _last;
+
+    Batch(long first, long last) {
+      super(Turn.first());
+      _first = first;
+      _last = last;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      for (long sequence = _first; sequence <= _last; sequence++) {
+        stream.write(_entries[(int) (sequence & _mask)]);
+      }
+    }
+
+  }
+
+}
@@ -15,6 +15,11 @@ import java.util.List;
 
 public class TransientJournal implements Journal {
 
+  private static final Runnable NOTHING_LEFT = new Runnable() {
+    public void run() {
+    }
+  };
+
   private final List journal = new ArrayList();
   private long _initialTransaction;
   private boolean _initialTransactionInitialized = false;
@@ -32,6 +37,11 @@ public class TransientJournal implements Journal {
     }
   }
 
+  public Runnable appendWithoutWaiting(TransactionGuide guide) {
+    append(guide);
+    return NOTHING_LEFT;
+  }
+
   public synchronized void update(TransactionSubscriber subscriber, long initialTransaction) throws IOException {
     if (!_initialTransactionInitialized) {
       _initialTransactionInitialized = true;
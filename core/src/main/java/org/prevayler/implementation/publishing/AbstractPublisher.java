@@ -8,18 +8,24 @@ package org.prevayler.implementation.publishing;
 import org.prevayler.Clock;
 import org.prevayler.implementation.TransactionTimestamp;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * This class provides basic subscriber addition and notification.
+ * <br>
+ * <br>The subscribers are kept in a copy-on-write array, so notifying them takes no lock: the turns of the publisher
+ * already keep notifications in order. Each subscriber is notified on the publishing thread, in the order it
+ * subscribed. A subscriber that shouldn't hold up the publisher, such as a replica or an audit sink, can be given a
+ * queue and a thread of its own by subscribing it through a POBox.
  */
 public abstract class AbstractPublisher implements TransactionPublisher {
 
+  private static final TransactionSubscriber[] NO_SUBSCRIBERS = new TransactionSubscriber[0];
+
   protected final Clock _clock;
-  private final List _subscribers = new LinkedList();
+  private volatile TransactionSubscriber[] _subscribers = NO_SUBSCRIBERS; // Only replaced while holding _subscribersLock.
+  private final ReentrantLock _subscribersLock = new ReentrantLock();
 
 
   public AbstractPublisher(Clock clock) {
@@ -30,17 +36,47 @@ public abstract class AbstractPublisher implements TransactionPublisher {
     return _clock;
   }
 
-  public synchronized void addSubscriber(TransactionSubscriber subscriber) {
-    _subscribers.add(subscriber);
+  public void addSubscriber(TransactionSubscriber subscriber) {
+    _subscribersLock.lock();
+    try {
+      TransactionSubscriber[] subscribers = new TransactionSubscriber[_subscribers.length + 1];
+      System.arraycopy(_subscribers, 0, subscribers, 0, _subscribers.length);
+      subscribers[_subscribers.length] = subscriber;
+      _subscribers = subscribers;
+    } finally {
+      _subscribersLock.unlock();
+    }
   }
 
-  public synchronized void cancelSubscription(TransactionSubscriber subscriber) {
-    _subscribers.remove(subscriber);
+  public void cancelSubscription(TransactionSubscriber subscriber) {
+    _subscribersLock.lock();
+    try {
+      for (int i = 0; i < _subscribers.length; i++) {
+        if (_subscribers[i] != subscriber) continue;
+        TransactionSubscriber[] subscribers = new TransactionSubscriber[_subscribers.length - 1];
+        System.arraycopy(_subscribers, 0, subscribers, 0, i);
+        System.arraycopy(_subscribers, i + 1, subscribers, i, subscribers.length - i);
+        _subscribers = subscribers;
+        return;
+      }
+    } finally {
+      _subscribersLock.unlock();
+    }
   }
 
-  protected synchronized void notifySubscribers(TransactionTimestamp transactionTimestamp) {
-    Iterator i = _subscribers.iterator();
-    while (i.hasNext()) ((TransactionSubscriber) i.next()).receive(transactionTimestamp);
+  protected void notifySubscribers(TransactionTimestamp transactionTimestamp) {
+    // A RuntimeException thrown by one subscriber's transaction would be thrown by every other subscriber's copy
+    // too, so it only reaches the caller once all subscribers have received the transaction.
+    RuntimeException thrown = null;
+    TransactionSubscriber[] subscribers = _subscribers;
+    for (int i = 0; i < subscribers.length; i++) {
+      try {
+        subscribers[i].receive(transactionTimestamp);
+      } catch (RuntimeException rx) {
+        if (thrown == null) thrown = rx;
+      }
+    }
+    if (thrown != null) throw thrown;
   }
 
 }
@@ -0,0 +1,28 @@
+package org.prevayler.implementation.publishing;
+
+/**
+ * What a POBox does with a transaction published while its queue is full.
+ */
+public enum BackpressurePolicy {
+
+  /**
+   * The publisher waits for room in the queue, holding up every transaction published after it. Nothing is lost.
+   */
+  BLOCK,
+
+  /**
+   * The transaction, and all those published after it while the subscriber is behind, are dropped. Once the
+   * subscriber has received everything queued before them, the POBox subscribes it again from the first one dropped,
+   * so that the publisher replays them from its journal. The publisher isn't held up while the subscriber is behind,
+   * but the replay itself holds it up: a CentralPublisher reads its journal for a new subscription while blocking new
+   * publications, so every transaction published during the replay waits for it to end. That is one pause per
+   * overflow, as long as it takes to replay what was dropped.
+   */
+  DROP_AND_RESYNC,
+
+  /**
+   * The queue is discarded and the POBox cancels its subscription: the subscriber receives nothing more.
+   */
+  DISCONNECT
+
+}
@@ -6,7 +6,7 @@ package org.prevayler.implementation.publishing;
 
 import org.prevayler.Clock;
 import org.prevayler.foundation.Cool;
-import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.TurnSequencer;
 import org.prevayler.implementation.Capsule;
 import org.prevayler.implementation.TransactionGuide;
 import org.prevayler.implementation.TransactionTimestamp;
@@ -14,6 +14,11 @@ import org.prevayler.implementation.clock.PausableClock;
 import org.prevayler.implementation.journal.Journal;
 
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CentralPublisher extends AbstractPublisher {
 
@@ -21,11 +26,27 @@ public class CentralPublisher extends AbstractPublisher {
   private final Journal _journal;
 
   private volatile int _pendingPublications = 0;
-  private final Object _pendingPublicationsMonitor = new Object();
+  private final ReentrantLock _pendingPublicationsLock = new ReentrantLock();
+  private final Condition _noPendingPublications = _pendingPublicationsLock.newCondition();
 
-  private Turn _nextTurn = Turn.first();
+  /**
+   * The journal takes each transaction through up to three stages of the pipeline, and notifying the subscribers
+   * takes one more.
+   */
+  private static final int PIPELINE_STAGES = 4;
+
+  private final TurnSequencer _pipeline = new TurnSequencer(PIPELINE_STAGES);
+  private long _nextTurn = 0;
   private long _nextTransaction;
-  private final Object _nextTurnMonitor = new Object();
+  private final ReentrantLock _nextTurnLock = new ReentrantLock();
+
+  /**
+   * The publications passed to publishAsync(), queued in the order of their turns for the async publisher thread to
+   * finish.
+   */
+  private final BlockingQueue<AsyncPublication> _asyncPublications = new LinkedBlockingQueue<AsyncPublication>();
+  private static final AsyncPublication CLOSING = new AsyncPublication(null, null);
+  private Thread _asyncPublisher = null;  // Started by the first publishAsync(). Guarded by _nextTurnLock.
 
 
   public CentralPublisher(Clock clock, Journal journal) {
@@ -37,21 +58,61 @@ public class CentralPublisher extends AbstractPublisher {
 
 
   public void publish(Capsule capsule) {
-    synchronized (_pendingPublicationsMonitor) {  //Blocks all new subscriptions until the publication is over.
+    startPublication();
+    try {
+      publishWithoutWorryingAboutNewSubscriptions(capsule);  // Suggestions for a better method name are welcome.  :)
+    } finally {
+      endPublication();
+    }
+  }
+
+
+  /**
+   * Writes the capsule to the journal on the calling thread and leaves waiting for the journal sync and notifying the
+   * subscribers to the async publisher thread. That single thread does it for every publication, in turn, so none of
+   * them holds up a thread of its own, and they all share syncs.
+   */
+  public void publishAsync(Capsule capsule, PublicationListener listener) {
+    startPublication();
+    AsyncPublication publication;
+    try {
+      publication = queueAsyncPublication(capsule, listener);
+    } catch (RuntimeException exception) {
+      endPublication();
+      throw exception;
+    }
+
+    try {
+      publication.journaled(_journal.appendWithoutWaiting(publication._guide));
+    } catch (RuntimeException exception) {
+      publication.failed(exception);
+    } catch (Error error) {
+      publication.failed(error);
+    }
+  }
+
+
+  private void startPublication() {
+    _pendingPublicationsLock.lock();  //Blocks all new subscriptions until the publication is over.
+    try {
       if (_pendingPublications == 0) _pausableClock.pause();
       _pendingPublications++;
+    } finally {
+      _pendingPublicationsLock.unlock();
     }
+  }
 
+
+  private void endPublication() {
+    _pendingPublicationsLock.lock();
     try {
-      publishWithoutWorryingAboutNewSubscriptions(capsule);  // Suggestions for a better method name are welcome.  :)
-    } finally {
-      synchronized (_pendingPublicationsMonitor) {
-        _pendingPublications--;
-        if (_pendingPublications == 0) {
-          _pausableClock.resume();
-          _pendingPublicationsMonitor.notifyAll();
-        }
+      _pendingPublications--;
+      if (_pendingPublications == 0) {
+        _pausableClock.resume();
+        _noPendingPublications.signalAll();
       }
+    } finally {
+      _pendingPublicationsLock.unlock();
     }
   }
 
@@ -63,22 +124,76 @@ public class CentralPublisher extends AbstractPublisher {
   }
 
   private TransactionGuide guideFor(Capsule capsule) {
-    synchronized (_nextTurnMonitor) {
-      TransactionTimestamp timestamp = new TransactionTimestamp(capsule, _nextTransaction, _pausableClock.realTime());
+    _nextTurnLock.lock();
+    try {
+      TransactionTimestamp timestamp = new TransactionTimestamp(capsule, _nextTransaction, _pausableClock.realTimeMillis());
 
       // Count this transaction
-      Turn turn = _nextTurn;
-      _nextTurn = _nextTurn.next();
+      long turn = _nextTurn;
+      _nextTurn++;
       _nextTransaction++;
 
-      return new TransactionGuide(timestamp, turn);
+      return new TransactionGuide(timestamp, _pipeline, turn);
+    } finally {
+      _nextTurnLock.unlock();
+    }
+  }
+
+  /**
+   * Queued in the same lock that gives the guide its turn, so the async publisher thread finishes publications in
+   * the order of their turns.
+   */
+  private AsyncPublication queueAsyncPublication(Capsule capsule, PublicationListener listener) {
+    _nextTurnLock.lock();
+    try {
+      AsyncPublication publication = new AsyncPublication(guideFor(capsule), listener);
+      _asyncPublications.add(publication);
+      if (_asyncPublisher == null) startAsyncPublisher();
+      return publication;
+    } finally {
+      _nextTurnLock.unlock();
+    }
+  }
+
+  private void startAsyncPublisher() {
+    _asyncPublisher = new Thread(new Runnable() {
+      public void run() {
+        finishAsyncPublications();
+      }
+    }, "Prevayler Async Publisher");
+    _asyncPublisher.setDaemon(true);
+    _asyncPublisher.start();
+  }
+
+  private void finishAsyncPublications() {
+    while (true) {
+      AsyncPublication publication;
+      try {
+        publication = _asyncPublications.take();
+      } catch (InterruptedException e) {
+        continue;  // Only close() stops this thread.
+      }
+      if (publication == CLOSING) return;
+
+      Throwable failure = null;
+      try {
+        publication.awaitJournaled().run();
+        notifySubscribers(publication._guide);
+      } catch (RuntimeException exception) {
+        failure = exception;
+      } catch (Error error) {
+        failure = error;
+      } finally {
+        endPublication();
+      }
+      publication._listener.published(failure);
     }
   }
 
   private void notifySubscribers(TransactionGuide guide) {
     guide.startTurn();
     try {
-      _pausableClock.advanceTo(guide.executionTime());
+      _pausableClock.advanceTo(guide.executionTimeMillis());
       notifySubscribers(guide.timestamp());
     } finally {
       guide.endTurn();
@@ -87,22 +202,84 @@ public class CentralPublisher extends AbstractPublisher {
 
 
   public void subscribe(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException {
-    synchronized (_pendingPublicationsMonitor) {
-      while (_pendingPublications != 0) Cool.wait(_pendingPublicationsMonitor);
+    _pendingPublicationsLock.lock();
+    try {
+      while (_pendingPublications != 0) Cool.await(_noPendingPublications);
 
       _journal.update(subscriber, initialTransaction);
 
-      synchronized (_nextTurnMonitor) {
+      _nextTurnLock.lock();
+      try {
         _nextTransaction = _journal.nextTransaction();
+      } finally {
+        _nextTurnLock.unlock();
       }
 
       super.addSubscriber(subscriber);
+    } finally {
+      _pendingPublicationsLock.unlock();
     }
   }
 
 
   public void close() throws IOException {
+    Thread asyncPublisher;
+    _nextTurnLock.lock();
+    try {
+      asyncPublisher = _asyncPublisher;
+      if (asyncPublisher != null) _asyncPublications.add(CLOSING);
+    } finally {
+      _nextTurnLock.unlock();
+    }
+    if (asyncPublisher != null) {  // Publications already queued are finished first.
+      try {
+        asyncPublisher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
     _journal.close();
   }
 
+
+  /**
+   * A publication passed to publishAsync(), waiting for the rest of its journal append, which its publishing thread
+   * hands over once the guide has been written.
+   */
+  private static class AsyncPublication {
+
+    private final TransactionGuide _guide;
+    private final PublicationListener _listener;
+    private final CountDownLatch _journaled = new CountDownLatch(1);
+    private Runnable _restOfAppend;  // Written before _journaled is counted down.
+    private Throwable _failure;  // Written before _journaled is counted down.
+
+    AsyncPublication(TransactionGuide guide, PublicationListener listener) {
+      _guide = guide;
+      _listener = listener;
+    }
+
+    void journaled(Runnable restOfAppend) {
+      _restOfAppend = restOfAppend;
+      _journaled.countDown();
+    }
+
+    void failed(Throwable failure) {
+      _failure = failure;
+      _journaled.countDown();
+    }
+
+    Runnable awaitJournaled() {
+      try {
+        _journaled.await();
+      } catch (InterruptedException e) {
+        Cool.unexpected(e);
+      }
+      if (_failure instanceof RuntimeException) throw (RuntimeException) _failure;
+      if (_failure != null) throw (Error) _failure;
+      return _restOfAppend;
+    }
+
+  }
+
 }
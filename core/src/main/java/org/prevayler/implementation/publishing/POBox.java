@@ -8,56 +8,343 @@ package org.prevayler.implementation.publishing;
 import org.prevayler.foundation.Cool;
 import org.prevayler.implementation.TransactionTimestamp;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * An assyncronous buffer for transaction subscribers.
+ * An assyncronous buffer for transaction subscribers: transactions are queued as they are published and delivered to
+ * the delegate by a daemon thread of its own, so a slow subscriber doesn't hold up the publisher until its queue is
+ * full. What happens then is up to the BackpressurePolicy.
+ * <br>
+ * <br>The queue is a bounded ring that publishing threads add to without taking any lock. The delivery thread takes
+ * all the transactions queued at once, up to a batch, and hands them to the delegate's receiveBatch().
+ * <br>
+ * <br>A POBox created without a capacity is unbounded, as it always was: transactions that don't fit in the ring
+ * spill over into a linked queue, and the publisher is never held up.
  */
 public class POBox implements TransactionSubscriber, Runnable {
 
-  private final LinkedList _queue = new LinkedList();
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  /**
+   * How long a publisher waiting for room in a full queue sleeps before looking again.
+   */
+  private static final long FULL_QUEUE_PAUSE_NANOS = 50 * 1000;
+
   private final TransactionSubscriber _delegate;
+  private final TransactionPublisher _publisher;
+  private final int _capacity;
+  private final BackpressurePolicy _policy;
+  private final Queue<TransactionTimestamp> _spillover;  // Null unless unbounded.
+
+  // A slot at position p holds a transaction once its sequence is p + 1, and is free for position p once it is p.
+  private final AtomicReferenceArray<TransactionTimestamp> _slots;
+  private final AtomicLongArray _sequences;
+  private final int _mask;
+  private final AtomicLong _tail = new AtomicLong();
+  private volatile long _head = 0;  // Only advanced by the delivery thread.
 
-  private final Object _emptynessMonitor = new Object();
+  private final Thread _consumer;
+  private volatile boolean _consumerParked = false;
+  private final List<TransactionTimestamp> _batch = new ArrayList<TransactionTimestamp>();  // Only used by _consumer.
 
+  private volatile long _lastQueued = -1;  // The systemVersion of the last transaction queued, or -1 before the first.
+  private volatile long _lastReceived = -1;  // Including those dropped.
+  private volatile long _lastDelivered = -1;  // Until the first is received.
+  private final AtomicLong _overflows = new AtomicLong();
+  private volatile boolean _overflowed = false;
+  private volatile boolean _resyncing = false;
+  private volatile boolean _disconnected = false;
 
+  private final ReentrantLock _emptyLock = new ReentrantLock();
+  private final Condition _empty = _emptyLock.newCondition();
+  private volatile int _emptyWaiters = 0;  // Guarded by _emptyLock when written.
+
+
+  /**
+   * Queues as many transactions as the delegate falls behind by, never holding up the publisher.
+   */
   public POBox(TransactionSubscriber delegate) {
+    this(delegate, null, DEFAULT_CAPACITY, BackpressurePolicy.BLOCK, new ConcurrentLinkedQueue<TransactionTimestamp>());
+  }
+
+  /**
+   * @param publisher The publisher this POBox is going to be subscribed to. It is only used by the DROP_AND_RESYNC
+   *                  and DISCONNECT policies, and may be null for BLOCK.
+   */
+  public POBox(TransactionSubscriber delegate, TransactionPublisher publisher, int capacity, BackpressurePolicy policy) {
+    this(delegate, publisher, capacity, policy, null);
+  }
+
+  private POBox(TransactionSubscriber delegate, TransactionPublisher publisher, int capacity, BackpressurePolicy policy, Queue<TransactionTimestamp> spillover) {
+    if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Capacity out of range: " + capacity);
+    if (publisher == null && policy != BackpressurePolicy.BLOCK) {
+      throw new IllegalArgumentException(policy + " needs the publisher");
+    }
     _delegate = delegate;
-    Cool.startDaemon(this);
+    _publisher = publisher;
+    _capacity = capacity;
+    _policy = policy;
+    _spillover = spillover;
+
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    _slots = new AtomicReferenceArray<TransactionTimestamp>(size);
+    _sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) _sequences.set(i, i);
+    _mask = size - 1;
+
+    _consumer = new Thread(this, "Prevayler POBox");
+    _consumer.setDaemon(true);
+    _consumer.start();
   }
 
 
-  public synchronized void receive(TransactionTimestamp transactionTimestamp) {
-    _queue.add(transactionTimestamp);
-    notify();
+  public void receive(TransactionTimestamp transactionTimestamp) {
+    if (Thread.currentThread() == _consumer) {
+      // Replayed by the publisher while resubscribing: everything queued before was delivered first.
+      replayed(transactionTimestamp);
+      return;
+    }
+
+    long version = transactionTimestamp.systemVersion();
+    received(version);
+    if (_disconnected || _overflowed || !follows(transactionTimestamp)) return;
+
+    if (_spillover != null) {
+      // Once anything has spilled over, the ring waits until it is all delivered, to keep the order.
+      if (!_spillover.isEmpty() || !offer(transactionTimestamp)) _spillover.add(transactionTimestamp);
+      _lastQueued = version;
+      wakeConsumer();
+      return;
+    }
+
+    while (!offer(transactionTimestamp)) {
+      if (_policy == BackpressurePolicy.BLOCK) {
+        LockSupport.parkNanos(this, FULL_QUEUE_PAUSE_NANOS);
+      } else if (_policy == BackpressurePolicy.DROP_AND_RESYNC) {
+        _overflows.incrementAndGet();
+        _overflowed = true;
+        wakeConsumer();
+        return;
+      } else {
+        _overflows.incrementAndGet();
+        _disconnected = true;
+        _publisher.cancelSubscription(this);
+        wakeConsumer();
+        return;
+      }
+    }
+    _lastQueued = version;
+    wakeConsumer();
   }
 
+  /**
+   * Delivers one by one, like receive().
+   */
+  public void receiveBatch(List<TransactionTimestamp> transactionTimestamps) {
+    for (int i = 0; i < transactionTimestamps.size(); i++) receive(transactionTimestamps.get(i));
+  }
 
-  public void run() {
+  private boolean offer(TransactionTimestamp transactionTimestamp) {
     while (true) {
-      TransactionTimestamp notification = waitForNotification();
-      _delegate.receive(notification);
+      long position = _tail.get();
+      if (position - _head >= _capacity) return false;
+      int slot = (int) position & _mask;
+      long difference = _sequences.get(slot) - position;
+      if (difference == 0) {
+        if (!_tail.compareAndSet(position, position + 1)) continue;
+        _slots.set(slot, transactionTimestamp);
+        _sequences.set(slot, position + 1);
+        return true;
+      }
+      if (difference < 0) return false;  // The delivery thread hasn't freed the slot yet.
+    }
+  }
+
+  /**
+   * Moves up to MAX_BATCH_SIZE queued transactions, in order, to the given batch.
+   */
+  private void drainTo(List<TransactionTimestamp> batch) {
+    long head = _head;
+    while (batch.size() < MAX_BATCH_SIZE) {
+      int slot = (int) head & _mask;
+      if (_sequences.get(slot) != head + 1) break;
+      batch.add(_slots.get(slot));
+      _slots.set(slot, null);
+      _sequences.set(slot, head + _mask + 1);
+      head++;
+    }
+    _head = head;
+
+    // Whatever spilled over came after all the ring held, including any transaction still being added to it.
+    if (_spillover == null || _tail.get() != head) return;
+    while (batch.size() < MAX_BATCH_SIZE) {
+      TransactionTimestamp spilled = _spillover.poll();
+      if (spilled == null) break;
+      batch.add(spilled);
     }
   }
 
+  private void wakeConsumer() {
+    if (_consumerParked) LockSupport.unpark(_consumer);
+  }
+
+  /**
+   * Whether the given transaction is the one right after the last queued, when resyncing. It is not when it was
+   * already queued before being replayed, or was dropped while the subscriber was behind. Transactions are published
+   * one at a time, so this can't race with another publishing thread.
+   */
+  private boolean follows(TransactionTimestamp transactionTimestamp) {
+    if (_policy != BackpressurePolicy.DROP_AND_RESYNC || _lastQueued == -1) return true;
+    return transactionTimestamp.systemVersion() == _lastQueued + 1;
+  }
 
-  private synchronized TransactionTimestamp waitForNotification() {
-    while (_queue.size() == 0) {
-      synchronized (_emptynessMonitor) {
-        _emptynessMonitor.notify();
+  private void received(long version) {
+    if (_lastReceived == -1) _lastDelivered = version - 1;
+    if (version > _lastReceived) _lastReceived = version;
+  }
+
+  private void replayed(TransactionTimestamp transactionTimestamp) {
+    if (!follows(transactionTimestamp)) return;
+    deliverQueued();  // Queued while resubscribing, before the given transaction.
+    _lastQueued = transactionTimestamp.systemVersion();
+    received(_lastQueued);
+    _delegate.receive(transactionTimestamp);
+    _lastDelivered = _lastQueued;
+  }
+
+
+  public void run() {
+    while (true) {
+      if (deliverQueued()) continue;
+      if (_disconnected) {
+        signalEmpty();
+        return;
+      }
+      if (_overflowed) {
+        resync();
+        continue;
+      }
+      signalEmpty();
+      _consumerParked = true;
+      if (isQueueEmpty() && !_overflowed && !_disconnected) LockSupport.park(this);
+      _consumerParked = false;
+    }
+  }
+
+  /**
+   * @return false if nothing was queued.
+   */
+  private boolean deliverQueued() {
+    boolean delivered = false;
+    while (true) {
+      drainTo(_batch);
+      if (_batch.isEmpty()) return delivered;
+      try {
+        if (!_disconnected) {
+          if (_batch.size() == 1) _delegate.receive(_batch.get(0));
+          else _delegate.receiveBatch(_batch);
+          _lastDelivered = _batch.get(_batch.size() - 1).systemVersion();
+        }
+      } finally {
+        _batch.clear();
       }
-      Cool.wait(this);
+      delivered = true;
     }
-    return (TransactionTimestamp) _queue.removeFirst();
+  }
+
+  private boolean isQueueEmpty() {
+    return _tail.get() == _head && (_spillover == null || _spillover.isEmpty());
   }
 
 
+  private void resync() {
+    _publisher.cancelSubscription(this);
+    _resyncing = true;
+    _overflowed = false;
+    try {
+      _publisher.subscribe(this, _lastQueued + 1);
+    } catch (IOException e) {
+      Cool.unexpected(e);
+    } catch (ClassNotFoundException e) {
+      Cool.unexpected(e);
+    } finally {
+      _resyncing = false;
+    }
+  }
+
+
+  /**
+   * How many transactions are queued.
+   */
+  public int queueDepth() {
+    int depth = (int) (_tail.get() - _head);
+    return _spillover == null ? depth : depth + _spillover.size();
+  }
+
+  /**
+   * How many of the transactions published to this POBox the delegate hasn't received yet, including those queued and
+   * those dropped that are about to be replayed.
+   */
+  public long lag() {
+    long lastReceived = _lastReceived;
+    return lastReceived == -1 ? 0 : lastReceived - _lastDelivered;
+  }
+
+  /**
+   * How many times the queue was found full by a publisher that didn't wait for room.
+   */
+  public long overflows() {
+    return _overflows.get();
+  }
+
+  public boolean isDisconnected() {
+    return _disconnected;
+  }
+
+
+  private void signalEmpty() {
+    if (_emptyWaiters == 0) return;
+    _emptyLock.lock();
+    try {
+      _empty.signalAll();
+    } finally {
+      _emptyLock.unlock();
+    }
+  }
+
   public void waitToEmpty() {
-    synchronized (_emptynessMonitor) {
-      while (_queue.size() != 0) Cool.wait(_emptynessMonitor);
+    _emptyLock.lock();
+    try {
+      _emptyWaiters++;
+      while (!isQueueEmpty() || _overflowed || _resyncing) {
+        if (_disconnected && !_consumer.isAlive()) break;
+        wakeConsumer();
+        try {
+          _empty.await(1, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Cool.unexpected(e);
+        }
+      }
+    } finally {
+      _emptyWaiters--;
+      _emptyLock.unlock();
     }
   }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,17 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+/**
+ * Told when a capsule passed to TransactionPublisher.publishAsync() is done being published.
+ */
+public interface PublicationListener {
+
+  /**
+   * @param failure What publish() would have thrown, or null if the capsule was journaled and received by all subscribers.
+   */
+  public void published(Throwable failure);
+
+}
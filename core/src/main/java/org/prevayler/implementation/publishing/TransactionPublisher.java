@@ -27,6 +27,11 @@ public interface TransactionPublisher {
    */
   public void publish(Capsule capsule);
 
+  /**
+   * Publishes transaction like publish(), but returns as soon as it has been written to the journal. The rest is done on another thread, which then tells the given listener, whether it went well or not.
+   */
+  public void publishAsync(Capsule capsule, PublicationListener listener);
+
   /**
    * Returns a Clock which is consistent with the Transaction publishing time.
    */
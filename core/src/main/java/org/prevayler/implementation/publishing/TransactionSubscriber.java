@@ -6,9 +6,17 @@ package org.prevayler.implementation.publishing;
 
 import org.prevayler.implementation.TransactionTimestamp;
 
+import java.util.List;
+
 
 public interface TransactionSubscriber {
 
   public void receive(TransactionTimestamp transactionTimestamp);
 
+  /**
+   * Receives consecutive transactions at once, in order, as a POBox delivers those that were queued together. The
+   * list must not be kept after this returns.
+   */
+  public void receiveBatch(List<TransactionTimestamp> transactionTimestamps);
+
 }
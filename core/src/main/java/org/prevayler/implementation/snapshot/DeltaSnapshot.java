@@ -0,0 +1,29 @@
+package org.prevayler.implementation.snapshot;
+
+import java.io.Serializable;
+
+/**
+ * What a delta snapshot file holds: the changes taken from a DeltaSnapshots prevalent system, and the version of the
+ * snapshot they must be applied on top of.
+ */
+class DeltaSnapshot implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long _previousVersion;
+  private final Object _delta;
+
+  DeltaSnapshot(long previousVersion, Object delta) {
+    _previousVersion = previousVersion;
+    _delta = delta;
+  }
+
+  long previousVersion() {
+    return _previousVersion;
+  }
+
+  Object delta() {
+    return _delta;
+  }
+
+}
@@ -1,6 +1,9 @@
 package org.prevayler.implementation.snapshot;
 
+import org.prevayler.DeltaSnapshots;
+import org.prevayler.Partitioned;
 import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.MappedSnapshotSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.implementation.PrevalentSystemGuard;
 import org.prevayler.implementation.PrevaylerDirectory;
@@ -17,6 +20,23 @@ public class GenericSnapshotManager<P> {
   private PrevaylerDirectory _directory;
   private PrevalentSystemGuard<P> _recoveredPrevalentSystem;
 
+  /**
+   * Zero unless the prevalent system implements DeltaSnapshots and delta snapshots were enabled.
+   */
+  private int _maxDeltasPerFullSnapshot = 0;
+
+  /**
+   * The version of the last snapshot file written or recovered, full or delta, which the next delta snapshot would
+   * be applied on top of. Negative when the next snapshot must be a full one.
+   */
+  private long _previousSnapshotVersion = -1;
+  private int _deltasSinceFullSnapshot = 0;
+
+  /**
+   * Null unless obsolete files are retired after each snapshot.
+   */
+  private RetentionManager _retention = null;
+
   public GenericSnapshotManager(Map snapshotSerializers, String primarySnapshotSuffix, P newPrevalentSystem, PrevaylerDirectory directory, Serializer journalSerializer)
       throws Exception {
     for (Iterator iterator = snapshotSerializers.keySet().iterator(); iterator.hasNext(); ) {
@@ -39,6 +59,18 @@ public class GenericSnapshotManager<P> {
     P recoveredPrevalentSystem = latestSnapshot == null
         ? newPrevalentSystem
         : readSnapshot(latestSnapshot);
+
+    if (latestSnapshot != null) {
+      _previousSnapshotVersion = recoveredVersion;
+      File[] deltas = _directory.deltaSnapshotsAfter(recoveredVersion);
+      for (int i = 0; i < deltas.length; i++) {
+        applyDeltaSnapshot(recoveredPrevalentSystem, deltas[i]);
+        recoveredVersion = PrevaylerDirectory.snapshotVersion(deltas[i]);
+        _previousSnapshotVersion = recoveredVersion;
+        _deltasSinceFullSnapshot++;
+      }
+    }
+
     _recoveredPrevalentSystem = new PrevalentSystemGuard<P>(recoveredPrevalentSystem, recoveredVersion, journalSerializer);
   }
 
@@ -50,6 +82,24 @@ public class GenericSnapshotManager<P> {
   }
 
 
+  /**
+   * Makes writeSnapshot() write delta snapshot files, holding only the changes since the previous snapshot file,
+   * for a prevalent system that implements DeltaSnapshots. Every so often a full snapshot is written instead, which
+   * the following deltas build upon, so that recovery never has to read more than the given number of deltas.
+   */
+  public void enableDeltaSnapshots(int maxDeltasPerFullSnapshot) {
+    if (maxDeltasPerFullSnapshot < 0) throw new IllegalArgumentException("The number of delta snapshots can't be negative");
+    _maxDeltasPerFullSnapshot = maxDeltasPerFullSnapshot;
+  }
+
+  /**
+   * Makes writeSnapshot() have the given RetentionManager retire obsolete files in the background after writing
+   * each snapshot.
+   */
+  public void enableRetention(RetentionManager retention) {
+    _retention = retention;
+  }
+
   public Serializer primarySerializer() {
     return (Serializer) _strategies.get(_primarySuffix);
   }
@@ -59,22 +109,67 @@ public class GenericSnapshotManager<P> {
   }
 
   public File writeSnapshot(P prevalentSystem, long version) throws Exception {
+    boolean delta = isDeltaDue(prevalentSystem, version);
+    Object contents = prevalentSystem;
+    if (_maxDeltasPerFullSnapshot > 0 && prevalentSystem instanceof DeltaSnapshots) {
+      Object changes = ((DeltaSnapshots) prevalentSystem).takeDelta();  // A full snapshot holds these anyway.
+      if (delta) contents = new DeltaSnapshot(_previousSnapshotVersion, changes);
+    }
+
+    // Until the file is written, the changes taken are only in memory, so the next snapshot would have to be full.
+    _previousSnapshotVersion = -1;
+
     File tempFile = _directory.createTempFile("snapshot" + version + "temp", "generatingSnapshot");
 
-    writeSnapshot(prevalentSystem, tempFile);
+    writeSnapshot(contents, tempFile);
 
-    File permanent = snapshotFile(version);
+    File permanent = delta
+        ? _directory.snapshotFile(version, PrevaylerDirectory.deltaSnapshotSuffix(_primarySuffix))
+        : snapshotFile(version);
     permanent.delete();
     if (!tempFile.renameTo(permanent)) throw new IOException(
         "Temporary snapshot file generated: " + tempFile + "\nUnable to rename it permanently to: " + permanent);
+    _directory.add(permanent);
 
+    _previousSnapshotVersion = version;
+    _deltasSinceFullSnapshot = delta ? _deltasSinceFullSnapshot + 1 : 0;
+    if (_retention != null) _retention.retireInBackground();
     return permanent;
   }
 
-  private void writeSnapshot(P prevalentSystem, File snapshotFile) throws Exception {
+  /**
+   * Makes a copy of the given prevalent system by writing it to a temporary file and reading it back, just as a
+   * snapshot is written and recovered, so a Partitioned system gets its sections back. The next snapshot is a full one,
+   * since the changes a DeltaSnapshots system kept track of before the copy are not taken from the copy.
+   */
+  public P copy(P prevalentSystem) throws Exception {
+    File tempFile = _directory.createTempFile("copy", "generatingCopy");
+    try {
+      writeSnapshot(prevalentSystem, tempFile);
+      P copy = (P) read(tempFile, primarySerializer());
+      if (copy instanceof DeltaSnapshots) _previousSnapshotVersion = -1;
+      return copy;
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  private boolean isDeltaDue(P prevalentSystem, long version) {
+    return prevalentSystem instanceof DeltaSnapshots
+        && _previousSnapshotVersion >= 0
+        && version > _previousSnapshotVersion
+        && _deltasSinceFullSnapshot < _maxDeltasPerFullSnapshot;
+  }
+
+  private void writeSnapshot(Object contents, File snapshotFile) throws Exception {
+    if (contents instanceof Partitioned) {
+      PartitionedSnapshot.write(snapshotFile, (Partitioned) contents, primarySerializer());
+      return;
+    }
+
     OutputStream out = new FileOutputStream(snapshotFile);
     try {
-      primarySerializer().writeObject(out, prevalentSystem);
+      primarySerializer().writeObject(out, contents);
     } finally {
       out.close();
     }
@@ -85,15 +180,36 @@ public class GenericSnapshotManager<P> {
     return _directory.snapshotFile(version, _primarySuffix);
   }
 
+  private void applyDeltaSnapshot(P prevalentSystem, File deltaFile) throws Exception {
+    if (!(prevalentSystem instanceof DeltaSnapshots)) {
+      throw new IOException(deltaFile + " cannot be read; the prevalent system does not implement DeltaSnapshots");
+    }
+    DeltaSnapshot deltaSnapshot = (DeltaSnapshot) read(deltaFile);
+    if (deltaSnapshot.previousVersion() != _previousSnapshotVersion) {
+      throw new IOException(deltaFile + " applies to snapshot version " + deltaSnapshot.previousVersion()
+          + ", but the previous snapshot file is version " + _previousSnapshotVersion + ". Some delta snapshot file might have been deleted.");
+    }
+    ((DeltaSnapshots) prevalentSystem).applyDelta(deltaSnapshot.delta());
+  }
+
   private P readSnapshot(File snapshotFile) throws Exception {
-    String suffix = snapshotFile.getName().substring(snapshotFile.getName().indexOf('.') + 1);
+    return (P) read(snapshotFile);
+  }
+
+  private Object read(File snapshotFile) throws Exception {
+    String suffix = PrevaylerDirectory.fullSnapshotSuffix(snapshotFile);
     if (!_strategies.containsKey(suffix)) throw new IOException(
         snapshotFile.toString() + " cannot be read; only " + _strategies.keySet().toString() + " supported");
 
-    Serializer serializer = (Serializer) _strategies.get(suffix);
-    FileInputStream in = new FileInputStream(snapshotFile);
+    return read(snapshotFile, (Serializer) _strategies.get(suffix));
+  }
+
+  private Object read(File snapshotFile, Serializer serializer) throws Exception {
+    InputStream in = new BufferedInputStream(new FileInputStream(snapshotFile));
     try {
-      return (P) (serializer.readObject(in));
+      if (PartitionedSnapshot.isPartitioned(in)) return PartitionedSnapshot.read(snapshotFile, serializer);
+      if (serializer instanceof MappedSnapshotSerializer) return ((MappedSnapshotSerializer) serializer).readObject(snapshotFile);
+      return serializer.readObject(in);
     } finally {
       in.close();
     }
@@ -21,4 +21,8 @@ public class NullSnapshotManager<P> extends GenericSnapshotManager<P> {
     throw new IOException(_snapshotAttemptErrorMessage);
   }
 
+  public P copy(P prevalentSystem) throws IOException {
+    throw new IOException(_snapshotAttemptErrorMessage);
+  }
+
 }
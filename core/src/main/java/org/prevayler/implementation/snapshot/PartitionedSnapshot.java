@@ -0,0 +1,196 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Partitioned;
+import org.prevayler.foundation.serialization.Serializer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes and reads snapshot files of a Partitioned prevalent system, serializing the system and each of its sections
+ * into separate segments on as many threads as there are processors. The file is laid out as:
+ * <pre>
+ * MAGIC
+ * for each segment: int length, bytes
+ * int segment count, for each segment: long offset, int length
+ * long offset of the segment count, MAGIC
+ * </pre>
+ * The first segment holds the prevalent system itself. The footer lets each segment be read and deserialized on its
+ * own thread upon recovery.
+ */
+class PartitionedSnapshot {
+
+  private static final byte[] MAGIC = {'P', 'r', 'e', 'v', 'S', 'e', 'g', 's'};
+  private static final int TRAILER_LENGTH = 8 + MAGIC.length;
+
+  /**
+   * Tells whether the stream, which must support mark(), starts with a partitioned snapshot. Leaves the stream where
+   * it was.
+   */
+  static boolean isPartitioned(InputStream stream) throws IOException {
+    stream.mark(MAGIC.length);
+    try {
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (stream.read() != MAGIC[i]) return false;
+      }
+      return true;
+    } finally {
+      stream.reset();
+    }
+  }
+
+  static void write(File snapshotFile, Partitioned prevalentSystem, final Serializer serializer) throws Exception {
+    List<Object> segments = new ArrayList<Object>();
+    segments.add(prevalentSystem);
+    segments.addAll(Arrays.asList(prevalentSystem.sections()));
+
+    ExecutorService serializers = newPool(segments.size());
+    try {
+      List<Future<byte[]>> serialized = new ArrayList<Future<byte[]>>();
+      for (final Object segment : segments) {
+        serialized.add(serializers.submit(new Callable<byte[]>() {
+          public byte[] call() throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            serializer.writeObject(bytes, segment);
+            return bytes.toByteArray();
+          }
+        }));
+      }
+      writeInOrder(snapshotFile, serialized);
+    } finally {
+      serializers.shutdownNow();
+    }
+  }
+
+  /**
+   * Writes each segment as soon as it and all segments before it are serialized, so that segments don't all have to
+   * be held in memory at once unless the first one is the slowest.
+   */
+  private static void writeInOrder(File snapshotFile, List<Future<byte[]>> serialized) throws Exception {
+    FileOutputStream file = new FileOutputStream(snapshotFile);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.write(MAGIC);
+      long position = MAGIC.length;  // DataOutputStream.size() stops counting at 2 GB.
+      long[] offsets = new long[serialized.size()];
+      int[] lengths = new int[serialized.size()];
+      for (int i = 0; i < serialized.size(); i++) {
+        byte[] segment = result(serialized.get(i));
+        serialized.set(i, null);
+        out.writeInt(segment.length);
+        offsets[i] = position + 4;
+        lengths[i] = segment.length;
+        out.write(segment);
+        position += 4 + segment.length;
+      }
+      long footer = position;
+      out.writeInt(offsets.length);
+      for (int i = 0; i < offsets.length; i++) {
+        out.writeLong(offsets[i]);
+        out.writeInt(lengths[i]);
+      }
+      out.writeLong(footer);
+      out.write(MAGIC);
+      out.flush();
+    } finally {
+      file.close();
+    }
+  }
+
+  static Object read(File snapshotFile, final Serializer serializer) throws Exception {
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+    try {
+      final FileChannel channel = file.getChannel();
+      ByteBuffer index = footer(channel, snapshotFile);
+      int count = index.getInt();
+
+      ExecutorService deserializers = newPool(count);
+      try {
+        List<Future<Object>> segments = new ArrayList<Future<Object>>();
+        for (int i = 0; i < count; i++) {
+          final long offset = index.getLong();
+          final int length = index.getInt();
+          segments.add(deserializers.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+              return serializer.readObject(new ByteArrayInputStream(readFully(channel, offset, length)));
+            }
+          }));
+        }
+
+        Partitioned prevalentSystem = (Partitioned) result(segments.get(0));
+        Object[] sections = new Object[count - 1];
+        for (int i = 0; i < sections.length; i++) sections[i] = result(segments.get(i + 1));
+        prevalentSystem.restoreSections(sections);
+        return prevalentSystem;
+      } finally {
+        deserializers.shutdownNow();
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private static ByteBuffer footer(FileChannel channel, File snapshotFile) throws IOException {
+    long size = channel.size();
+    if (size < MAGIC.length + 4 + TRAILER_LENGTH) throw new IOException(snapshotFile + " is truncated");
+    ByteBuffer trailer = ByteBuffer.wrap(readFully(channel, size - TRAILER_LENGTH, TRAILER_LENGTH));
+    long footer = trailer.getLong();
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (trailer.get() != MAGIC[i]) throw new IOException(snapshotFile + " is truncated");
+    }
+    return ByteBuffer.wrap(readFully(channel, footer, (int) (size - TRAILER_LENGTH - footer)));
+  }
+
+  /**
+   * FileChannel positional reads may be used by several threads at the same time.
+   */
+  private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+    }
+    return buffer.array();
+  }
+
+  private static <T> T result(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  private static ExecutorService newPool(int segments) {
+    int threads = Math.max(1, Math.min(segments, Runtime.getRuntime().availableProcessors()));
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Prevayler Snapshot Segment");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,125 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Retires the snapshot and journal files that are no longer needed to recover from any of the latest few full
+ * snapshots, either moving them to an archive directory, optionally gzipped, or deleting them. That keeps the
+ * prevalence directory, which is scanned upon every recovery, from growing with the whole history of the system.
+ * <br>
+ * <br>Retired journals can no longer be replayed, so replicas must not fall further behind than the oldest snapshot
+ * kept.
+ *
+ * @see PrevaylerDirectory#obsoleteFiles(int)
+ */
+public class RetentionManager {
+
+  private final PrevaylerDirectory _directory;
+  private final int _snapshotsToKeep;
+  private final File _archiveDirectory;
+  private final boolean _compress;
+  private final Monitor _monitor;
+
+  private final ThreadPoolExecutor _retirer;
+
+  /**
+   * @param archiveDirectory Where obsolete files are moved to, or null for them to be deleted.
+   * @param compress         Whether archived files are gzipped.
+   */
+  public RetentionManager(PrevaylerDirectory directory, int snapshotsToKeep, File archiveDirectory, boolean compress, Monitor monitor) {
+    if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept");
+    _directory = directory;
+    _snapshotsToKeep = snapshotsToKeep;
+    _archiveDirectory = archiveDirectory;
+    _compress = compress;
+    _monitor = monitor;
+
+    _retirer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Prevayler Retention");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    _retirer.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Retires the obsolete files on a background thread, after any retirement already under way. Failures are
+   * reported to the monitor.
+   */
+  public void retireInBackground() {
+    _retirer.execute(new Runnable() {
+      public void run() {
+        try {
+          retire();
+        } catch (IOException e) {
+          _monitor.notify(RetentionManager.class, "Unable to retire obsolete prevalence files.", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Retires the obsolete files right away.
+   */
+  public synchronized void retire() throws IOException {
+    if (_archiveDirectory != null && !_archiveDirectory.isDirectory() && !_archiveDirectory.mkdirs()) {
+      throw new IOException("Directory doesn't exist and could not be created: " + _archiveDirectory);
+    }
+
+    Iterator<File> iterator = _directory.obsoleteFiles(_snapshotsToKeep).iterator();
+    while (iterator.hasNext()) {
+      File file = iterator.next();
+      retire(file);
+      _directory.remove(file);
+    }
+  }
+
+  private void retire(File file) throws IOException {
+    if (_archiveDirectory == null) {
+      delete(file);
+    } else if (_compress) {
+      compress(file, new File(_archiveDirectory, file.getName() + ".gz"));
+      delete(file);
+    } else {
+      File archived = new File(_archiveDirectory, file.getName());
+      if (!file.renameTo(archived)) throw new IOException("Unable to move " + file + " to " + archived);
+    }
+  }
+
+  private static void compress(File file, File compressed) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 64 * 1024);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    if (!file.delete()) throw new IOException("Unable to delete " + file);
+  }
+
+}
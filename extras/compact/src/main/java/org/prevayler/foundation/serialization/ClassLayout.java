@@ -0,0 +1,164 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.Externalizable;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The serializable fields of a class, in the order CompactSerializer writes them, and the way to instantiate it
+ * without running its own constructors, as Java serialization does.
+ * <br>
+ * <br>Classes that customize their Java serialization, through writeObject(), readObject(), writeReplace(),
+ * readResolve() or serialPersistentFields, or by being Externalizable, have no layout: CompactSerializer falls back
+ * to Java serialization for them, as it does for classes of the Java platform itself, whose fields it may not access.
+ */
+class ClassLayout {
+
+  private static final ConcurrentMap<Class, ClassLayout> LAYOUTS = new ConcurrentHashMap<Class, ClassLayout>();
+  private static final ClassLayout NONE = new ClassLayout(null, null);
+
+  private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+    public int compare(Field f1, Field f2) {
+      return f1.getName().compareTo(f2.getName());
+    }
+  };
+
+  private final Field[] _fields;
+  private final Constructor _constructor;
+  private final String _fingerprint;
+
+  private ClassLayout(Field[] fields, Constructor constructor) {
+    _fields = fields;
+    _constructor = constructor;
+    _fingerprint = fields == null ? null : fingerprint(fields);
+  }
+
+  private static String fingerprint(Field[] fields) {
+    StringBuffer signature = new StringBuffer();
+    for (int i = 0; i < fields.length; i++) {
+      signature.append(fields[i].getDeclaringClass().getName()).append('.').append(fields[i].getName())
+          .append(':').append(fields[i].getType().getName()).append(';');
+    }
+    return Integer.toHexString(signature.toString().hashCode());
+  }
+
+  /**
+   * @return null if the class has no layout.
+   */
+  static ClassLayout of(Class clazz) {
+    ClassLayout layout = LAYOUTS.get(clazz);
+    if (layout == null) {
+      try {
+        layout = create(clazz);
+      } catch (RuntimeException fieldsNotAccessible) {
+        layout = NONE;
+      }
+      LAYOUTS.putIfAbsent(clazz, layout);
+    }
+    return layout == NONE ? null : layout;
+  }
+
+  private static ClassLayout create(Class clazz) {
+    if (!Serializable.class.isAssignableFrom(clazz) || Externalizable.class.isAssignableFrom(clazz)
+        || clazz.isArray() || clazz.isEnum() || Proxy.isProxyClass(clazz) || isPlatformClass(clazz)) {
+      return NONE;
+    }
+
+    List<Field> fields = new ArrayList<Field>();
+    Class serializable = clazz;
+    for (; serializable != null && Serializable.class.isAssignableFrom(serializable); serializable = serializable.getSuperclass()) {
+      if (isPlatformClass(serializable) || customizesSerialization(serializable)) return NONE;
+      Field[] declared = serializable.getDeclaredFields();
+      Arrays.sort(declared, BY_NAME);
+      List<Field> own = new ArrayList<Field>();
+      for (int i = 0; i < declared.length; i++) {
+        int modifiers = declared[i].getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) continue;
+        declared[i].setAccessible(true);
+        own.add(declared[i]);
+      }
+      fields.addAll(0, own);  // Superclass fields first.
+    }
+
+    Constructor constructor = serializationConstructor(clazz, serializable == null ? Object.class : serializable);
+    if (constructor == null) return NONE;
+    return new ClassLayout(fields.toArray(new Field[fields.size()]), constructor);
+  }
+
+  private static boolean isPlatformClass(Class clazz) {
+    String name = clazz.getName();
+    return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("com.sun.");
+  }
+
+  private static boolean customizesSerialization(Class clazz) {
+    return declares(clazz, "writeObject") || declares(clazz, "readObject") || declares(clazz, "readObjectNoData")
+        || declares(clazz, "writeReplace") || declares(clazz, "readResolve")
+        || declaresField(clazz, "serialPersistentFields");
+  }
+
+  private static boolean declares(Class clazz, String method) {
+    Method[] methods = clazz.getDeclaredMethods();
+    for (int i = 0; i < methods.length; i++) {
+      if (methods[i].getName().equals(method) && !Modifier.isStatic(methods[i].getModifiers())) return true;
+    }
+    return false;
+  }
+
+  private static boolean declaresField(Class clazz, String field) {
+    try {
+      clazz.getDeclaredField(field);
+      return true;
+    } catch (NoSuchFieldException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Finds the constructor Java serialization uses: one that creates an instance of the class but only runs the
+   * no-arg constructor of its first non-serializable superclass. It is only available through the reflection
+   * factory of the JVM, looked up reflectively since it is not part of the Java platform.
+   *
+   * @return null if there is no such constructor.
+   */
+  private static Constructor serializationConstructor(Class clazz, Class<?> nonSerializableSuperclass) {
+    try {
+      Constructor<?> superConstructor = nonSerializableSuperclass.getDeclaredConstructor();
+      if (Modifier.isPrivate(superConstructor.getModifiers())) return null;
+      Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+      Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+      Constructor constructor = (Constructor) factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class)
+          .invoke(factory, clazz, superConstructor);
+      if (constructor == null) return null;
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  Field[] fields() {
+    return _fields;
+  }
+
+  /**
+   * Identifies the names and types of the fields, which data written with this layout must match to be read.
+   */
+  String fingerprint() {
+    return _fingerprint;
+  }
+
+  Object newInstance() throws Exception {
+    return _constructor.newInstance();
+  }
+
+}
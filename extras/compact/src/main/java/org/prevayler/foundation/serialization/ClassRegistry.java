@@ -0,0 +1,132 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each class a permanent id, in the order the classes are first registered, and keeps them in a file with
+ * one entry per line, so that ids written to journals and snapshots mean the same classes upon recovery. An entry is
+ * the class name, followed by the fingerprint of its fields if they are written one by one, so that a class whose
+ * fields changed gets a new id.
+ * <br>
+ * <br>A new class is appended and synced to the file before its id is handed out, so no journal chunk can refer to
+ * an id that the file doesn't hold. The file must never be deleted or edited while journals or snapshots written
+ * with it are kept.
+ * <br>
+ * <br>Several registries may share a file, such as those of a journal and a snapshot serializer. Each one catches up
+ * with the entries the others appended before appending one itself, so they all agree on the ids.
+ */
+class ClassRegistry {
+
+  private static final String ENCODING = "UTF-8";
+
+  /**
+   * Held while catching up with and appending to a file, so that no two registries append the same id.
+   */
+  private static final Object FILE_LOCK = new Object();
+
+  private final File _file;
+  private final ClassLoader _loader;
+
+  private final List<String> _names = new ArrayList<String>();
+  private final Map<String, Integer> _ids = new HashMap<String, Integer>();
+  private final List<Class> _classes = new ArrayList<Class>();
+
+  ClassRegistry(File file, ClassLoader loader) throws IOException {
+    _file = file;
+    _loader = loader;
+    synchronized (FILE_LOCK) {
+      catchUp();
+    }
+  }
+
+  /**
+   * Adds the entries appended to the file since it was last read.
+   */
+  private void catchUp() throws IOException {
+    if (!_file.exists()) return;
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), ENCODING));
+    try {
+      int known = _names.size();
+      int read = 0;
+      String name;
+      while ((name = reader.readLine()) != null) {
+        if (name.length() == 0) continue;  // A line cut short by a crash while registering.
+        if (read++ >= known) add(name);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void add(String name) {
+    _ids.put(name, _names.size());
+    _names.add(name);
+    _classes.add(null);
+  }
+
+  /**
+   * @param fingerprint null for a class whose fields are not written one by one.
+   */
+  synchronized int idOf(Class clazz, String fingerprint) throws IOException {
+    String name = fingerprint == null ? clazz.getName() : clazz.getName() + ' ' + fingerprint;
+    Integer id = _ids.get(name);
+    if (id != null) return id;
+
+    synchronized (FILE_LOCK) {
+      catchUp();
+      id = _ids.get(name);
+      if (id != null) return id;
+
+      FileOutputStream out = new FileOutputStream(_file, true);
+      try {
+        out.write(('\n' + name + '\n').getBytes(ENCODING));  // Starts on a line of its own even after a partial write.
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      add(name);
+      return _names.size() - 1;
+    }
+  }
+
+  synchronized Class classOf(int id) throws IOException, ClassNotFoundException {
+    Class clazz = _classes.get(checked(id));
+    if (clazz == null) {
+      String name = _names.get(id);
+      if (name.indexOf(' ') >= 0) name = name.substring(0, name.indexOf(' '));
+      ClassLoader loader = _loader != null ? _loader : Thread.currentThread().getContextClassLoader();
+      clazz = Class.forName(name, false, loader != null ? loader : ClassRegistry.class.getClassLoader());
+      _classes.set(id, clazz);
+    }
+    return clazz;
+  }
+
+  /**
+   * @return null if the class was registered without one.
+   */
+  synchronized String fingerprintOf(int id) throws IOException {
+    String name = _names.get(checked(id));
+    return name.indexOf(' ') < 0 ? null : name.substring(name.indexOf(' ') + 1);
+  }
+
+  private int checked(int id) throws IOException {
+    if (id >= _names.size()) {
+      synchronized (FILE_LOCK) {
+        catchUp();  // Appended by another registry sharing the file.
+      }
+    }
+    if (id < 0 || id >= _names.size()) throw new IOException("Class id " + id + " is not in " + _file);
+    return id;
+  }
+
+}
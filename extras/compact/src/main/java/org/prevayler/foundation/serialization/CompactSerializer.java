@@ -0,0 +1,516 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.ObjectInputStreamWithClassLoader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes and reads objects in a compact binary format. This serializer can be used for snapshots, journals or both.
+ * <br>
+ * <br>Instead of describing each class in every journal chunk, as Java serialization does, it refers to classes by
+ * ids kept in a registry file, which must be kept alongside the journals and snapshots written with it. Strings,
+ * boxed primitives, dates, enums, byte, int, long, double and object arrays, and the common JDK lists, sets and maps
+ * have codecs of their own. Objects of other Serializable classes are written field by field, following the rules
+ * of Java serialization: transient and static fields are skipped, and constructors aren't run when reading them
+ * back. Shared and circular references are preserved.
+ * <br>
+ * <br>Objects that customize their Java serialization (with writeObject(), readResolve() and the like), and those of
+ * other JDK classes, are written with Java serialization, each one separately: objects reachable both from inside
+ * and from outside one of them are duplicated when read back.
+ * <br>
+ * <br>A class whose fields are changed is registered again under a new id, and what was written with its old fields
+ * can no longer be read. Take a snapshot before deploying such a change, and delete the older journals.
+ */
+public class CompactSerializer implements Serializer {
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final byte NULL = 0;
+  private static final byte REFERENCE = 1;
+  private static final byte STRING = 2;
+  private static final byte INTEGER = 3;
+  private static final byte LONG = 4;
+  private static final byte TRUE = 5;
+  private static final byte FALSE = 6;
+  private static final byte DOUBLE = 7;
+  private static final byte FLOAT = 8;
+  private static final byte SHORT = 9;
+  private static final byte BYTE = 10;
+  private static final byte CHARACTER = 11;
+  private static final byte DATE = 12;
+  private static final byte ENUM = 13;
+  private static final byte BYTE_ARRAY = 14;
+  private static final byte INT_ARRAY = 15;
+  private static final byte LONG_ARRAY = 16;
+  private static final byte DOUBLE_ARRAY = 17;
+  private static final byte OBJECT_ARRAY = 18;
+  private static final byte ARRAY_LIST = 19;
+  private static final byte LINKED_LIST = 20;
+  private static final byte HASH_SET = 21;
+  private static final byte LINKED_HASH_SET = 22;
+  private static final byte TREE_SET = 23;
+  private static final byte HASH_MAP = 24;
+  private static final byte TREE_MAP = 25;
+  private static final byte OBJECT = 26;
+  private static final byte JAVA = 27;
+
+  private final ClassRegistry _registry;
+  private final ClassLoader _loader;
+
+  private final ConcurrentMap<Class, Integer> _classIds = new ConcurrentHashMap<Class, Integer>();
+  private final ConcurrentMap<Class, Integer> _layoutIds = new ConcurrentHashMap<Class, Integer>();
+
+  /**
+   * @param registryFile Where the ids of the classes are kept. Created if it doesn't exist.
+   */
+  public CompactSerializer(File registryFile) throws IOException {
+    this(registryFile, null);
+  }
+
+  public CompactSerializer(File registryFile, ClassLoader loader) throws IOException {
+    _registry = new ClassRegistry(registryFile, loader);
+    _loader = loader;
+  }
+
+  public void writeObject(OutputStream stream, Object object) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1024));
+    out.writeByte(FORMAT_VERSION);
+    new Writer(out).write(object);
+    out.flush();
+  }
+
+  public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1024));
+    int format = in.readByte();
+    if (format != FORMAT_VERSION) throw new StreamCorruptedException("Unsupported compact format " + format);
+    return new Reader(in).read();
+  }
+
+  private int classId(Class clazz) throws IOException {
+    Integer id = _classIds.get(clazz);
+    if (id == null) {
+      id = _registry.idOf(clazz, null);
+      _classIds.put(clazz, id);
+    }
+    return id;
+  }
+
+  private int layoutId(Class clazz, ClassLayout layout) throws IOException {
+    Integer id = _layoutIds.get(clazz);
+    if (id == null) {
+      id = _registry.idOf(clazz, layout.fingerprint());
+      _layoutIds.put(clazz, id);
+    }
+    return id;
+  }
+
+
+  private class Writer {
+    private final DataOutputStream _out;
+    private final Map<Object, Integer> _handles = new IdentityHashMap<Object, Integer>();
+
+    Writer(DataOutputStream out) {
+      _out = out;
+    }
+
+    void write(Object object) throws IOException {
+      if (object == null) {
+        _out.writeByte(NULL);
+        return;
+      }
+      Integer handle = _handles.get(object);
+      if (handle != null) {
+        _out.writeByte(REFERENCE);
+        writeVarint(_out, handle);
+        return;
+      }
+      _handles.put(object, _handles.size());
+
+      Class clazz = object.getClass();
+      if (clazz == String.class) {
+        _out.writeByte(STRING);
+        writeString(_out, (String) object);
+      } else if (clazz == Integer.class) {
+        _out.writeByte(INTEGER);
+        writeVarint(_out, zigzag((Integer) object));
+      } else if (clazz == Long.class) {
+        _out.writeByte(LONG);
+        writeVarlong(_out, zigzag((Long) object));
+      } else if (clazz == Boolean.class) {
+        _out.writeByte((Boolean) object ? TRUE : FALSE);
+      } else if (clazz == Double.class) {
+        _out.writeByte(DOUBLE);
+        _out.writeDouble((Double) object);
+      } else if (clazz == Float.class) {
+        _out.writeByte(FLOAT);
+        _out.writeFloat((Float) object);
+      } else if (clazz == Short.class) {
+        _out.writeByte(SHORT);
+        _out.writeShort((Short) object);
+      } else if (clazz == Byte.class) {
+        _out.writeByte(BYTE);
+        _out.writeByte((Byte) object);
+      } else if (clazz == Character.class) {
+        _out.writeByte(CHARACTER);
+        _out.writeChar((Character) object);
+      } else if (clazz == Date.class) {
+        _out.writeByte(DATE);
+        writeVarlong(_out, zigzag(((Date) object).getTime()));
+      } else if (object instanceof Enum) {
+        _out.writeByte(ENUM);
+        writeVarint(_out, classId(((Enum) object).getDeclaringClass()));
+        writeString(_out, ((Enum) object).name());
+      } else if (clazz.isArray()) {
+        writeArray(object, clazz.getComponentType());
+      } else if (clazz == ArrayList.class || clazz == LinkedList.class || clazz == HashSet.class
+          || clazz == LinkedHashSet.class || (clazz == TreeSet.class && ((TreeSet<?>) object).comparator() == null)) {
+        writeCollection((Collection<?>) object, clazz);
+      } else if (clazz == HashMap.class || (clazz == TreeMap.class && ((TreeMap<?, ?>) object).comparator() == null)) {
+        _out.writeByte(clazz == HashMap.class ? HASH_MAP : TREE_MAP);
+        Map<?, ?> map = (Map<?, ?>) object;
+        writeVarint(_out, map.size());
+        for (Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator(); iterator.hasNext(); ) {
+          Map.Entry<?, ?> entry = iterator.next();
+          write(entry.getKey());
+          write(entry.getValue());
+        }
+      } else {
+        writeFields(object, clazz);
+      }
+    }
+
+    private void writeArray(Object array, Class component) throws IOException {
+      if (component == byte.class) {
+        byte[] bytes = (byte[]) array;
+        _out.writeByte(BYTE_ARRAY);
+        writeVarint(_out, bytes.length);
+        _out.write(bytes);
+      } else if (component == int.class) {
+        int[] ints = (int[]) array;
+        _out.writeByte(INT_ARRAY);
+        writeVarint(_out, ints.length);
+        for (int i = 0; i < ints.length; i++) writeVarint(_out, zigzag(ints[i]));
+      } else if (component == long.class) {
+        long[] longs = (long[]) array;
+        _out.writeByte(LONG_ARRAY);
+        writeVarint(_out, longs.length);
+        for (int i = 0; i < longs.length; i++) writeVarlong(_out, zigzag(longs[i]));
+      } else if (component == double.class) {
+        double[] doubles = (double[]) array;
+        _out.writeByte(DOUBLE_ARRAY);
+        writeVarint(_out, doubles.length);
+        for (int i = 0; i < doubles.length; i++) _out.writeDouble(doubles[i]);
+      } else if (!component.isPrimitive()) {
+        Object[] objects = (Object[]) array;
+        _out.writeByte(OBJECT_ARRAY);
+        writeVarint(_out, classId(component));
+        writeVarint(_out, objects.length);
+        for (int i = 0; i < objects.length; i++) write(objects[i]);
+      } else {
+        writeJava(array);
+      }
+    }
+
+    private void writeCollection(Collection<?> collection, Class clazz) throws IOException {
+      _out.writeByte(clazz == ArrayList.class ? ARRAY_LIST
+          : clazz == LinkedList.class ? LINKED_LIST
+          : clazz == HashSet.class ? HASH_SET
+          : clazz == LinkedHashSet.class ? LINKED_HASH_SET
+          : TREE_SET);
+      writeVarint(_out, collection.size());
+      for (Iterator<?> iterator = collection.iterator(); iterator.hasNext(); ) write(iterator.next());
+    }
+
+    private void writeFields(Object object, Class clazz) throws IOException {
+      ClassLayout layout = ClassLayout.of(clazz);
+      if (layout == null) {
+        if (!(object instanceof Serializable)) throw new NotSerializableException(clazz.getName());
+        writeJava(object);
+        return;
+      }
+
+      _out.writeByte(OBJECT);
+      writeVarint(_out, layoutId(clazz, layout));
+      Field[] fields = layout.fields();
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          Field field = fields[i];
+          Class type = field.getType();
+          if (type == int.class) writeVarint(_out, zigzag(field.getInt(object)));
+          else if (type == long.class) writeVarlong(_out, zigzag(field.getLong(object)));
+          else if (type == boolean.class) _out.writeBoolean(field.getBoolean(object));
+          else if (type == double.class) _out.writeDouble(field.getDouble(object));
+          else if (type == float.class) _out.writeFloat(field.getFloat(object));
+          else if (type == short.class) _out.writeShort(field.getShort(object));
+          else if (type == byte.class) _out.writeByte(field.getByte(object));
+          else if (type == char.class) _out.writeChar(field.getChar(object));
+          else write(field.get(object));
+        }
+      } catch (IllegalAccessException e) {
+        throw new IOException(e.toString());
+      }
+    }
+
+    private void writeJava(Object object) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objects = new ObjectOutputStream(bytes);
+      objects.writeObject(object);
+      objects.close();
+      _out.writeByte(JAVA);
+      writeVarint(_out, bytes.size());
+      bytes.writeTo(_out);
+    }
+  }
+
+
+  private class Reader {
+    private final DataInputStream _in;
+    private final List<Object> _handles = new ArrayList<Object>();
+
+    Reader(DataInputStream in) {
+      _in = in;
+    }
+
+    Object read() throws IOException, ClassNotFoundException {
+      byte tag = _in.readByte();
+      switch (tag) {
+        case NULL:
+          return null;
+        case REFERENCE:
+          int handle = readVarint(_in);
+          if (handle >= _handles.size()) throw new StreamCorruptedException("Invalid reference " + handle);
+          return _handles.get(handle);
+        case STRING:
+          return share(readString(_in));
+        case INTEGER:
+          return share(unzigzag(readVarint(_in)));
+        case LONG:
+          return share(unzigzag(readVarlong(_in)));
+        case TRUE:
+          return share(Boolean.TRUE);
+        case FALSE:
+          return share(Boolean.FALSE);
+        case DOUBLE:
+          return share(_in.readDouble());
+        case FLOAT:
+          return share(_in.readFloat());
+        case SHORT:
+          return share(_in.readShort());
+        case BYTE:
+          return share(_in.readByte());
+        case CHARACTER:
+          return share(_in.readChar());
+        case DATE:
+          return share(new Date(unzigzag(readVarlong(_in))));
+        case ENUM:
+          return share(Enum.valueOf(_registry.classOf(readVarint(_in)), readString(_in)));
+        case BYTE_ARRAY:
+          byte[] bytes = (byte[]) share(new byte[readVarint(_in)]);
+          _in.readFully(bytes);
+          return bytes;
+        case INT_ARRAY:
+          int[] ints = (int[]) share(new int[readVarint(_in)]);
+          for (int i = 0; i < ints.length; i++) ints[i] = unzigzag(readVarint(_in));
+          return ints;
+        case LONG_ARRAY:
+          long[] longs = (long[]) share(new long[readVarint(_in)]);
+          for (int i = 0; i < longs.length; i++) longs[i] = unzigzag(readVarlong(_in));
+          return longs;
+        case DOUBLE_ARRAY:
+          double[] doubles = (double[]) share(new double[readVarint(_in)]);
+          for (int i = 0; i < doubles.length; i++) doubles[i] = _in.readDouble();
+          return doubles;
+        case OBJECT_ARRAY:
+          Class component = _registry.classOf(readVarint(_in));
+          Object[] objects = (Object[]) share(Array.newInstance(component, readVarint(_in)));
+          for (int i = 0; i < objects.length; i++) objects[i] = read();
+          return objects;
+        case ARRAY_LIST:
+          int size = readVarint(_in);
+          return readElements(new ArrayList<Object>(size), size);
+        case LINKED_LIST:
+          return readElements(new LinkedList<Object>(), readVarint(_in));
+        case HASH_SET:
+          size = readVarint(_in);
+          return readElements(new HashSet<Object>(capacity(size)), size);
+        case LINKED_HASH_SET:
+          size = readVarint(_in);
+          return readElements(new LinkedHashSet<Object>(capacity(size)), size);
+        case TREE_SET:
+          return readElements(new TreeSet<Object>(), readVarint(_in));
+        case HASH_MAP:
+          size = readVarint(_in);
+          return readEntries(new HashMap<Object, Object>(capacity(size)), size);
+        case TREE_MAP:
+          return readEntries(new TreeMap<Object, Object>(), readVarint(_in));
+        case OBJECT:
+          return readFields(readVarint(_in));
+        case JAVA:
+          byte[] serialized = new byte[readVarint(_in)];
+          _in.readFully(serialized);
+          return share(new ObjectInputStreamWithClassLoader(new ByteArrayInputStream(serialized), _loader).readObject());
+        default:
+          throw new StreamCorruptedException("Unknown tag " + tag);
+      }
+    }
+
+    private Object share(Object object) {
+      _handles.add(object);
+      return object;
+    }
+
+    private Collection<Object> readElements(Collection<Object> collection, int size) throws IOException, ClassNotFoundException {
+      share(collection);
+      for (int i = 0; i < size; i++) collection.add(read());
+      return collection;
+    }
+
+    private Map<Object, Object> readEntries(Map<Object, Object> map, int size) throws IOException, ClassNotFoundException {
+      share(map);
+      for (int i = 0; i < size; i++) {
+        Object key = read();
+        map.put(key, read());
+      }
+      return map;
+    }
+
+    private Object readFields(int classId) throws IOException, ClassNotFoundException {
+      Class clazz = _registry.classOf(classId);
+      ClassLayout layout = ClassLayout.of(clazz);
+      if (layout == null || !layout.fingerprint().equals(_registry.fingerprintOf(classId))) {
+        throw new InvalidClassException(clazz.getName(), "Its serializable fields changed since it was written");
+      }
+
+      Object object;
+      try {
+        object = layout.newInstance();
+      } catch (Exception e) {
+        throw new InvalidClassException(clazz.getName(), "Unable to instantiate: " + e);
+      }
+      share(object);
+
+      Field[] fields = layout.fields();
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          Field field = fields[i];
+          Class type = field.getType();
+          if (type == int.class) field.setInt(object, unzigzag(readVarint(_in)));
+          else if (type == long.class) field.setLong(object, unzigzag(readVarlong(_in)));
+          else if (type == boolean.class) field.setBoolean(object, _in.readBoolean());
+          else if (type == double.class) field.setDouble(object, _in.readDouble());
+          else if (type == float.class) field.setFloat(object, _in.readFloat());
+          else if (type == short.class) field.setShort(object, _in.readShort());
+          else if (type == byte.class) field.setByte(object, _in.readByte());
+          else if (type == char.class) field.setChar(object, _in.readChar());
+          else field.set(object, read());
+        }
+      } catch (IllegalAccessException e) {
+        throw new IOException(e.toString());
+      } catch (IllegalArgumentException e) {
+        throw new StreamCorruptedException(e.toString());
+      }
+      return object;
+    }
+  }
+
+
+  private static int capacity(int size) {
+    return Math.max(size * 4 / 3 + 1, 16);
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new StreamCorruptedException("Varint too long");
+  }
+
+  private static long readVarlong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 70; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new StreamCorruptedException("Varint too long");
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes("UTF-8");
+    writeVarint(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readVarint(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+}
@@ -5,17 +5,21 @@
 
 package org.prevayler;
 
+import org.prevayler.foundation.GroupCommitPolicy;
 import org.prevayler.foundation.monitor.Monitor;
 import org.prevayler.foundation.monitor.SimpleMonitor;
 import org.prevayler.foundation.network.OldNetworkImpl;
 import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.MappedSnapshotSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.foundation.serialization.XStreamSerializer;
+import org.prevayler.implementation.ImmutableTypes;
 import org.prevayler.implementation.PrevaylerDirectory;
 import org.prevayler.implementation.PrevaylerImpl;
 import org.prevayler.implementation.clock.MachineClock;
 import org.prevayler.implementation.journal.Journal;
 import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.journal.RingBufferJournal;
 import org.prevayler.implementation.journal.TransientJournal;
 import org.prevayler.implementation.publishing.CentralPublisher;
 import org.prevayler.implementation.publishing.TransactionPublisher;
@@ -23,7 +27,9 @@ import org.prevayler.implementation.replication.ClientPublisher;
 import org.prevayler.implementation.replication.ServerListener;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 import org.prevayler.implementation.snapshot.NullSnapshotManager;
+import org.prevayler.implementation.snapshot.RetentionManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,6 +51,14 @@ public class PrevaylerFactory<P> {
   private Clock _clock;
 
   private boolean _transactionDeepCopyMode = true;
+  private final ImmutableTypes _immutableTypes = new ImmutableTypes();
+  private boolean _concurrentQueries = false;
+  private boolean _immutablePrevalentSystem = false;
+  private boolean _backgroundSnapshots = false;
+  private int _maxDeltaSnapshots = 0;
+  private int _snapshotsToKeep = 0;
+  private File _archiveDirectory;
+  private boolean _compressArchive;
 
   private boolean _transientMode;
   private String _prevalenceDirectory;
@@ -53,6 +67,10 @@ public class PrevaylerFactory<P> {
   private long _journalSizeThreshold;
   private long _journalAgeThreshold;
   private boolean _journalDiskSync = true;
+  private boolean _journalMemoryMapping = false;
+  private GroupCommitPolicy _journalGroupCommitPolicy = GroupCommitPolicy.NONE;
+  private int _journalRingSize = 0;
+  private int _journalReplayThreads = 0;
 
   private int _serverPort = -1;
   private String _remoteServerIpAddress;
@@ -191,6 +209,51 @@ public class PrevaylerFactory<P> {
     _transactionDeepCopyMode = transactionDeepCopyMode;
   }
 
+  /**
+   * Configures a transaction class to be treated as if it were annotated as Immutable: its instances are executed as they are given, without a deep copy, even if configureTransactionDeepCopy() is <code>true</code>. This may be called any number of times with different classes.
+   *
+   * @see Immutable
+   */
+  public void configureImmutableTransactionType(Class<?> transactionType) {
+    _immutableTypes.register(transactionType);
+  }
+
+  /**
+   * Configures whether queries are executed concurrently with each other. The default is <code>false</code>.
+   *
+   * @param concurrentQueries <br>
+   *                          <br>If <code>true</code>, queries share a read lock on the prevalent system and transactions take the write lock, so any number of queries can execute at the same time, but none while a transaction executes. Transactions no longer synchronize on the prevalent system, so the application must not rely on that. Queries implementing OptimisticQuery don't even take the read lock: they are only executed again under it if a transaction executed at the same time.
+   *                          <br>
+   *                          <br>If <code>false</code> (default), every query and transaction synchronizes on the prevalent system, so they execute one at a time.
+   */
+  public void configureConcurrentQueries(boolean concurrentQueries) {
+    _concurrentQueries = concurrentQueries;
+  }
+
+  /**
+   * Configures whether the prevalent system is an immutable value. The default is <code>false</code>.
+   *
+   * @param immutablePrevalentSystem <br>
+   *                                 <br>If <code>true</code>, the prevalent system must never be changed in place: it is only ever replaced by the new one returned from each RootTransaction, typically a persistent data structure sharing most of its contents with the one it replaces. Queries, prevalentSystem() and snapshots then use whichever version is current when they start, without taking any lock, so they never wait for transactions nor make transactions wait for them. Executing a Transaction or TransactionWithQuery, which would change it in place, throws an IllegalStateException. This overrides configureConcurrentQueries().
+   *                                 <br>
+   *                                 <br>If <code>false</code> (default), the prevalent system is changed in place and locked as described in configureConcurrentQueries().
+   */
+  public void configureImmutablePrevalentSystem(boolean immutablePrevalentSystem) {
+    _immutablePrevalentSystem = immutablePrevalentSystem;
+  }
+
+  /**
+   * Configures whether snapshots are taken without holding up transactions. The default is <code>false</code>.
+   *
+   * @param backgroundSnapshots <br>
+   *                            <br>If <code>true</code>, a copy of the prevalent system, written and read back as a snapshot would be, is kept as a replica, executing every transaction after it has been journaled. A transaction that throws a RuntimeException on only one of the two is reported to the Monitor. Prevayler.takeSnapshot() waits for the replica to catch up and then serializes the replica, while transactions keep executing on the prevalent system and queue up for the replica. This doubles the memory used by the prevalent system, and all transactions are deserialized for the replica even if configureTransactionDeepCopy() is <code>false</code>.
+   *                            <br>
+   *                            <br>If <code>false</code> (default), transactions wait while the prevalent system is serialized.
+   */
+  public void configureBackgroundSnapshots(boolean backgroundSnapshots) {
+    _backgroundSnapshots = backgroundSnapshots;
+  }
+
   /**
    * Configures the Clock that will be used by the created Prevayler. The Clock interface can be implemented by the application if it requires Prevayler to use a special time source other than the machine clock (default).
    */
@@ -276,6 +339,75 @@ public class PrevaylerFactory<P> {
     _journalDiskSync = journalDiskSync;
   }
 
+  /**
+   * Configures whether the journal will be written through a memory-mapped file. The default is <code>false</code>.
+   *
+   * @param journalMemoryMapping <br>
+   *                             <br>If <code>true</code>, transactions are written directly into memory-mapped
+   *                             regions of the journal file and syncing forces only the regions written since the
+   *                             last sync. This saves one copy of every transaction and the writing of zeroes to
+   *                             preallocate the journal file. The journal file format is unchanged.
+   *                             <br>
+   *                             <br>If <code>false</code> (default), transactions are buffered in memory and written
+   *                             to the journal file through a FileOutputStream.
+   */
+  public void configureJournalMemoryMapping(boolean journalMemoryMapping) {
+    _journalMemoryMapping = journalMemoryMapping;
+  }
+
+  /**
+   * Configures how long each journal sync may be held back so that more transactions can be synced along with it.
+   * By default there is no wait: transactions are only synced together when they happen to arrive while an earlier
+   * sync is in progress.
+   *
+   * @param maxWaitMicros <br>
+   *                      <br>The longest a sync will wait for more transactions, in microseconds. This is added to
+   *                      the latency of a transaction executed alone, in exchange for fewer syncs under load. Zero
+   *                      (default) means never wait.
+   * @param maxBatchBytes <br>
+   *                      <br>The sync starts without further waiting once this many bytes are waiting to be synced.
+   *                      Zero means no limit.
+   * @param maxBatchCount <br>
+   *                      <br>The sync starts without further waiting once this many transactions are waiting to be
+   *                      synced. Zero means no limit.
+   */
+  public void configureJournalGroupCommit(long maxWaitMicros, long maxBatchBytes, int maxBatchCount) {
+    _journalGroupCommitPolicy = new GroupCommitPolicy(maxWaitMicros, maxBatchBytes, maxBatchCount);
+  }
+
+  /**
+   * Configures whether a single dedicated thread will do all the writing and syncing of the journal. The default is
+   * <code>0</code>, meaning no dedicated thread.
+   *
+   * @param ringSize <br>
+   *                 <br>If greater than zero, each transaction is serialized by the thread executing it and handed
+   *                 over to the journal writer thread through a ring of this many slots, without taking any lock.
+   *                 The executing thread then waits until the writer thread has synced the transaction. This scales
+   *                 better than the default when there are very many threads executing transactions concurrently.
+   *                 Must be a power of two.
+   *                 <br>
+   *                 <br>If <code>0</code> (default), each thread executing a transaction writes it to the journal
+   *                 itself, taking turns with the others.
+   */
+  public void configureJournalWriterThread(int ringSize) {
+    _journalRingSize = ringSize;
+  }
+
+  /**
+   * Configures how many threads deserialize the transactions recovered from the journal on startup. The default is
+   * <code>0</code>, meaning the transactions are read, deserialized and executed one at a time on the thread calling
+   * create().
+   *
+   * @param replayThreads <br>
+   *                      <br>If greater than zero, another thread reads the journal files ahead, this many threads
+   *                      deserialize the transactions read, and the thread calling create() executes them in order as
+   *                      soon as they are ready. This speeds up recovery from long journals whose transactions are
+   *                      costly to deserialize. The transactions must not depend on being deserialized in order.
+   */
+  public void configureJournalReplayThreads(int replayThreads) {
+    _journalReplayThreads = replayThreads;
+  }
+
 
   public void configureJournalSerializer(JavaSerializer serializer) {
     configureJournalSerializer("journal", serializer);
@@ -287,6 +419,8 @@ public class PrevaylerFactory<P> {
 
   /**
    * Configures the transaction journal Serializer to be used by the Prevayler created by this factory. Only one Serializer is supported at a time. If you want to change the Serializer of a system in production, you will have to take a snapshot first because the journal files written by the previous Serializer will not be read.
+   * <br>
+   * <br>If the suffix starts with "binary", as in "binaryjournal", the journal is written in a compact binary chunk format with a checksum on every transaction, which is much cheaper to read during recovery. Journal files with the same suffix in the other chunk format ("journal" for "binaryjournal", and vice versa) are still read, so existing journals stay readable after switching.
    */
   public void configureJournalSerializer(String suffix, Serializer serializer) {
     PrevaylerDirectory.checkValidJournalSuffix(suffix);
@@ -308,6 +442,49 @@ public class PrevaylerFactory<P> {
     configureSnapshotSerializer("xstreamsnapshot", serializer);
   }
 
+  /**
+   * Writes snapshots with the contents of every RecordTable in the prevalent system laid out as is, so that they are
+   * mapped straight back from the snapshot file upon recovery, outside the Java heap, instead of being deserialized.
+   */
+  public void configureSnapshotSerializer(MappedSnapshotSerializer serializer) {
+    configureSnapshotSerializer("mappedsnapshot", serializer);
+  }
+
+  /**
+   * Configures whether snapshots only hold what changed since the previous snapshot. The default is <code>0</code>,
+   * meaning every snapshot holds the whole prevalent system.
+   *
+   * @param maxDeltasPerFullSnapshot <br>
+   *                                 <br>If greater than zero and the prevalent system implements DeltaSnapshots,
+   *                                 Prevayler.takeSnapshot() writes a .deltasnapshot file (the primary snapshot suffix
+   *                                 prefixed with "delta") with the changes reported by the prevalent system, as
+   *                                 long as a full snapshot was taken before. After this many deltas in a row, the
+   *                                 next snapshot is a full one again, folding all of them in. Recovery reads the
+   *                                 latest full snapshot, then the deltas taken after it, then the journal.
+   */
+  public void configureDeltaSnapshots(int maxDeltasPerFullSnapshot) {
+    _maxDeltaSnapshots = maxDeltasPerFullSnapshot;
+  }
+
+  /**
+   * Configures whether old snapshot and journal files are retired after each snapshot instead of piling up in the
+   * prevalence directory. The default is <code>0</code>, meaning every file is kept there.
+   *
+   * @param snapshotsToKeep  <br>
+   *                         <br>If greater than zero, after each snapshot is written, the snapshot files older than
+   *                         this many latest full snapshots, and the journal files holding only transactions up to
+   *                         them, are retired in the background. Replicas must not fall further behind than that.
+   * @param archiveDirectory <br>
+   *                         <br>Where retired files are moved to, or null for them to be deleted.
+   * @param compressArchive  <br>
+   *                         <br>Whether retired files are gzipped as they are archived.
+   */
+  public void configureFileRetention(int snapshotsToKeep, File archiveDirectory, boolean compressArchive) {
+    _snapshotsToKeep = snapshotsToKeep;
+    _archiveDirectory = archiveDirectory;
+    _compressArchive = compressArchive;
+  }
+
   /**
    * Configure a serialization strategy for snapshots. This may be called any number of times with
    * different suffixes to configure different strategies for reading existing snapshots. The first
@@ -329,10 +506,11 @@ public class PrevaylerFactory<P> {
    * @throws ClassNotFoundException If a class of a serialized Object is not found when reading a .journal or .snapshot file.
    */
   public Prevayler<P> create() throws Exception {
-    GenericSnapshotManager<P> snapshotManager = snapshotManager();
-    TransactionPublisher publisher = publisher(snapshotManager);
+    PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());  // Shared, so that its index of files is too.
+    GenericSnapshotManager<P> snapshotManager = snapshotManager(directory);
+    TransactionPublisher publisher = publisher(snapshotManager, directory);
     if (_serverPort != -1) new ServerListener(publisher, new OldNetworkImpl(), _serverPort);
-    return new PrevaylerImpl<P>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode);
+    return new PrevaylerImpl<P>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode, _concurrentQueries, _immutablePrevalentSystem, _backgroundSnapshots, _immutableTypes, monitor());
   }
 
 
@@ -347,18 +525,21 @@ public class PrevaylerFactory<P> {
   }
 
 
-  private TransactionPublisher publisher(GenericSnapshotManager<P> snapshotManager) throws IOException {
+  private TransactionPublisher publisher(GenericSnapshotManager<P> snapshotManager, PrevaylerDirectory directory) throws IOException {
     if (_remoteServerIpAddress != null)
       return new ClientPublisher(new OldNetworkImpl(), _remoteServerIpAddress, _remoteServerPort);
-    return new CentralPublisher(clock(), journal());
+    return new CentralPublisher(clock(), journal(directory));
   }
 
-  private Journal journal() throws IOException {
+  private Journal journal(PrevaylerDirectory directory) throws IOException {
     if (_transientMode) {
       return (Journal) new TransientJournal();
     } else {
-      PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
-      return new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, journalSuffix(), monitor());
+      PersistentJournal journal = _journalRingSize > 0
+          ? new RingBufferJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, _journalMemoryMapping, _journalGroupCommitPolicy, journalSuffix(), monitor(), _journalRingSize)
+          : new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, _journalMemoryMapping, _journalGroupCommitPolicy, journalSuffix(), monitor());
+      if (_journalReplayThreads > 0) journal.enableParallelReplay(_journalReplayThreads, journalSerializer());
+      return journal;
     }
   }
 
@@ -372,17 +553,23 @@ public class PrevaylerFactory<P> {
     return _journalSuffix != null ? _journalSuffix : "journal";
   }
 
-  private GenericSnapshotManager<P> snapshotManager() throws Exception {
+  private GenericSnapshotManager<P> snapshotManager(PrevaylerDirectory directory) throws Exception {
     if (_nullSnapshotManager != null)
       return _nullSnapshotManager;
 
-    PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
-    if (!_snapshotSerializers.isEmpty())
-      return new GenericSnapshotManager<P>(_snapshotSerializers, _primarySnapshotSuffix, prevalentSystem(), directory, journalSerializer());
-
-    String snapshotSuffix = "snapshot";
-    JavaSerializer snapshotSerializer = new JavaSerializer();
-    return new GenericSnapshotManager<P>(Collections.singletonMap(snapshotSuffix, snapshotSerializer), snapshotSuffix, prevalentSystem(), directory, journalSerializer());
+    GenericSnapshotManager<P> snapshotManager;
+    if (!_snapshotSerializers.isEmpty()) {
+      snapshotManager = new GenericSnapshotManager<P>(_snapshotSerializers, _primarySnapshotSuffix, prevalentSystem(), directory, journalSerializer());
+    } else {
+      String snapshotSuffix = "snapshot";
+      JavaSerializer snapshotSerializer = new JavaSerializer();
+      snapshotManager = new GenericSnapshotManager<P>(Collections.singletonMap(snapshotSuffix, snapshotSerializer), snapshotSuffix, prevalentSystem(), directory, journalSerializer());
+    }
+    snapshotManager.enableDeltaSnapshots(_maxDeltaSnapshots);
+    if (_snapshotsToKeep > 0) {
+      snapshotManager.enableRetention(new RetentionManager(directory, _snapshotsToKeep, _archiveDirectory, _compressArchive, monitor()));
+    }
+    return snapshotManager;
   }
 
 
@@ -10,6 +10,7 @@ import org.prevayler.foundation.network.OldNetworkImpl;
 import org.prevayler.implementation.Capsule;
 import org.prevayler.implementation.TransactionTimestamp;
 import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.publishing.PublicationListener;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 
@@ -93,6 +94,22 @@ public class ClientPublisher implements TransactionPublisher {
   }
 
 
+  /**
+   * Publishes synchronously: the server only handles one transaction at a time from each client anyway.
+   */
+  public void publishAsync(Capsule capsule, PublicationListener listener) {
+    Throwable failure = null;
+    try {
+      publish(capsule);
+    } catch (RuntimeException exception) {
+      failure = exception;
+    } catch (Error error) {
+      failure = error;
+    }
+    listener.published(failure);
+  }
+
+
   private void throwEventualErrors() throws RuntimeException, Error {
     try {
       if (_myTransactionRuntimeException != null) throw _myTransactionRuntimeException;
@@ -132,7 +149,7 @@ public class ClientPublisher implements TransactionPublisher {
     }
 
     TransactionTimestamp transactionTimestamp = (TransactionTimestamp) transactionCandidate;
-    Date timestamp = transactionTimestamp.executionTime();
+    long timestamp = transactionTimestamp.executionTimeMillis();
     long systemVersion = transactionTimestamp.systemVersion();
 
     _clock.advanceTo(timestamp);
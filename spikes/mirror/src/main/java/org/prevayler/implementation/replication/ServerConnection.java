@@ -12,6 +12,7 @@ import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 
 import java.io.IOException;
+import java.util.List;
 
 
 /**
@@ -96,7 +97,7 @@ class ServerConnection extends Thread implements TransactionSubscriber {
   public void receive(TransactionTimestamp tt) {
 
     if (tt.capsule() == _remoteCapsule)
-      tt = new TransactionTimestamp(null, tt.systemVersion(), tt.executionTime()); //TODO This is really ugly. It is using a null capsule inside the TransactionTimestamp to signal that the remote Capsule should be executed.
+      tt = new TransactionTimestamp(null, tt.systemVersion(), tt.executionTimeMillis()); //TODO This is really ugly. It is using a null capsule inside the TransactionTimestamp to signal that the remote Capsule should be executed.
 
     try {
       synchronized (_remote) {
@@ -108,6 +109,13 @@ class ServerConnection extends Thread implements TransactionSubscriber {
   }
 
 
+  public void receiveBatch(List<TransactionTimestamp> transactionTimestamps) {
+    synchronized (_remote) {
+      for (int i = 0; i < transactionTimestamps.size(); i++) receive(transactionTimestamps.get(i));
+    }
+  }
+
+
   private synchronized void close() {
     _clockTickSender.interrupt();
     this.interrupt();
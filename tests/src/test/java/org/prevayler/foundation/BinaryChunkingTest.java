@@ -0,0 +1,91 @@
+package org.prevayler.foundation;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+public class BinaryChunkingTest extends TestCase {
+
+  public void testCrc32c() throws IOException {
+    Crc32c crc = new Crc32c();
+    byte[] bytes = "123456789".getBytes("US-ASCII");
+    crc.update(bytes, 0, bytes.length);
+    assertEquals(0xE3069283L, crc.getValue());
+  }
+
+  public void testRoundtrip() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    BinaryChunking.writeChunk(output, new BinaryChunk((byte) 1, 42, 1000002, "foo".getBytes("US-ASCII")));
+    BinaryChunking.writeChunk(output, new BinaryChunk((byte) 0, 43, 1000004, new byte[0]));
+    BinaryChunking.writeChunk(output, new BinaryChunk((byte) 0, Long.MAX_VALUE, -1, new byte[300]));
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+
+    BinaryChunk first = BinaryChunking.readChunk(input);
+    assertEquals(1, first.getType());
+    assertEquals(42, first.getVersion());
+    assertEquals(1000002, first.getTimestamp());
+    assertEquals("foo", new String(first.getBytes(), "US-ASCII"));
+
+    BinaryChunk second = BinaryChunking.readChunk(input);
+    assertEquals(43, second.getVersion());
+    assertEquals(0, second.getBytes().length);
+
+    BinaryChunk third = BinaryChunking.readChunk(input);
+    assertEquals(Long.MAX_VALUE, third.getVersion());
+    assertEquals(-1, third.getTimestamp());
+    assertEquals(300, third.getBytes().length);
+
+    assertNull(BinaryChunking.readChunk(input));
+  }
+
+  public void testPreallocatedZeroesEndTheJournal() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk((byte) 0, 1, 2, "foo".getBytes("US-ASCII")));
+    output.write(new byte[100]);
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+    assertNotNull(BinaryChunking.readChunk(input));
+    assertNull(BinaryChunking.readChunk(input));
+  }
+
+  public void testTruncated() throws IOException {
+    byte[] chunk = chunkBytes();
+    for (int length = 1; length < chunk.length; length++) {
+      byte[] truncated = new byte[length];
+      System.arraycopy(chunk, 0, truncated, 0, length);
+      try {
+        BinaryChunking.readChunk(new ByteArrayInputStream(truncated));
+        fail("Should have thrown EOFException at length " + length);
+      } catch (EOFException expected) {
+      }
+    }
+  }
+
+  public void testCorrupted() throws IOException {
+    byte[] chunk = chunkBytes();
+    for (int i = 1; i < chunk.length; i++) {
+      byte[] corrupted = (byte[]) chunk.clone();
+      corrupted[i] ^= 0x40;
+      try {
+        BinaryChunking.readChunk(new ByteArrayInputStream(corrupted));
+        fail("Should have detected corruption at byte " + i);
+      } catch (StreamCorruptedException expected) {
+      } catch (EOFException expected) {
+        // Corrupting the length can make the chunk look longer than it is.
+      }
+    }
+  }
+
+  private byte[] chunkBytes() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk((byte) 0, 7, 8, "abcdefghij".getBytes("US-ASCII")));
+    return output.toByteArray();
+  }
+
+}
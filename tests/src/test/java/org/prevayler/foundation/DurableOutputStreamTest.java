@@ -76,6 +76,65 @@ public class DurableOutputStreamTest extends FileIOTest {
     }
   }
 
+  public void testGroupCommit() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+    DurableOutputStream out = new DurableOutputStream(file, true, 0, new GroupCommitPolicy(10000000, 0, 4));
+
+    Turn turn = Turn.first();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new SingleWriter(out, new DummyGuide("" + i, turn)));
+      turn = turn.next();
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].start();
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+
+    assertEquals(1, out.fileSyncCount());
+    assertEquals(1, out.batchSizes().batches());
+    assertEquals(4, out.batchSizes().largest());
+    assertEquals(1, out.batchSizes().count(2));
+    out.close();
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    for (int i = 0; i < threads.length; i++) assertEquals("" + i, reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  public void testGroupCommitWaitExpires() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+    DurableOutputStream out = new DurableOutputStream(file, true, 0, new GroupCommitPolicy(1000, 0, 100));
+
+    Turn myTurn = Turn.first();
+    out.sync(new DummyGuide("first", myTurn));
+    out.sync(new DummyGuide("second", myTurn.next()));
+    out.close();
+
+    assertEquals(2, out.fileSyncCount());
+    assertEquals(2, out.batchSizes().count(0));
+    assertEquals("2 syncs of 2 objects, mean 1.0, largest 1: 1=2", out.batchSizes().toString());
+  }
+
+  private static class SingleWriter implements Runnable {
+
+    private final DurableOutputStream _out;
+    private final Guided _guide;
+
+    SingleWriter(DurableOutputStream out, Guided guide) {
+      _out = out;
+      _guide = guide;
+    }
+
+    public void run() {
+      try {
+        _out.sync(_guide);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+  }
+
   private static class DummyGuide extends Guided {
 
     private final String _value;
@@ -0,0 +1,160 @@
+package org.prevayler.foundation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.*;
+
+public class MappedDurableOutputStreamTest extends FileIOTest {
+
+  public void testSingleThreaded() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+
+    MappedDurableOutputStream out = new MappedDurableOutputStream(file, true, 0);
+
+    Turn myTurn = Turn.first();
+    out.sync(new DummyGuide("first", myTurn));
+    out.sync(new DummyGuide("second", myTurn.next()));
+    out.close();
+
+    assertTrue(out.reallyClosed());
+    assertEquals(2, out.fileSyncCount());
+    assertEquals("first\nsecond\n".length(), file.length());
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    assertEquals("first", reader.readLine());
+    assertEquals("second", reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  public void testWritesSpanningRegions() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+
+    MappedDurableOutputStream out = new MappedDurableOutputStream(file, true, MappedDurableOutputStream.MIN_REGION_LENGTH + 1);
+
+    StringBuilder longer = new StringBuilder();
+    while (longer.length() < MappedDurableOutputStream.MIN_REGION_LENGTH * 2) longer.append("abcdefghij");
+    Turn turn = Turn.first();
+    out.sync(new DummyGuide(longer.toString(), turn));
+    turn = turn.next();
+    out.sync(new DummyGuide("klm", turn));
+    out.close();
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    assertEquals(longer.toString(), reader.readLine());
+    assertEquals("klm", reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  public void testTinyThreshold() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+
+    MappedDurableOutputStream out = new MappedDurableOutputStream(file, true, 1);
+    out.sync(new DummyGuide("first", Turn.first()));
+    out.close();
+    assertEquals("first\n".length(), file.length());
+
+    try {
+      new MappedDurableOutputStream(file, true, -1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testMultiThreaded() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+    MappedDurableOutputStream out = new MappedDurableOutputStream(file, true, 0);
+
+    Turn one = Turn.first();
+    Turn two = one.next();
+    Turn three = two.next();
+    Turn four = three.next();
+    Thread thread1 = new Thread(new Worker(out, 1, two, four));
+    Thread thread2 = new Thread(new Worker(out, 2, one, three));
+
+    thread1.start();
+    thread2.start();
+    thread1.join();
+    thread2.join();
+
+    int syncsBeforeClose = out.fileSyncCount();
+    assertTrue(syncsBeforeClose >= 2);
+    assertTrue(syncsBeforeClose <= 4);
+
+    out.close();
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    assertEquals("2.first", reader.readLine());
+    assertEquals("1.first", reader.readLine());
+    assertEquals("2.second", reader.readLine());
+    assertEquals("1.second", reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  public void testRecoveryFromMappedJournal() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    prevayler.execute(new AppendTransaction("a"));
+    prevayler.execute(new AppendTransaction("b"));
+    prevayler.execute(new AppendTransaction("c"));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals("abc", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalMemoryMapping(true);
+    factory.configureJournalFileSizeThreshold(200);
+    return factory.create();
+  }
+
+  private static class DummyGuide extends Guided {
+
+    private final String _value;
+
+    public DummyGuide(String value, Turn turn) {
+      super(turn);
+      _value = value;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      stream.write(_value.getBytes());
+      stream.write('\n');
+    }
+
+  }
+
+  private static class Worker implements Runnable {
+
+    private final DurableOutput _out;
+    private final int _id;
+    private final Turn _firstTurn;
+    private final Turn _secondTurn;
+
+    public Worker(DurableOutput out, int id, Turn firstTurn, Turn secondTurn) {
+      _out = out;
+      _id = id;
+      _firstTurn = firstTurn;
+      _secondTurn = secondTurn;
+    }
+
+    public void run() {
+      try {
+        _out.sync(new DummyGuide(_id + ".first", _firstTurn));
+        _out.sync(new DummyGuide(_id + ".second", _secondTurn));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,62 @@
+package org.prevayler.foundation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class ReadAheadInputStreamTest extends FileIOTest {
+
+  public void testReadsAcrossBlocks() throws IOException {
+    byte[] contents = new byte[1000];
+    for (int i = 0; i < contents.length; i++) contents[i] = (byte) (i * 31);
+    File file = write(contents);
+
+    ReadAheadInputStream in = new ReadAheadInputStream(file, 7);
+    assertEquals(contents[0] & 0xFF, in.read());
+    byte[] bytes = new byte[500];
+    assertEquals(500, in.read(bytes, 0, 500));
+    for (int i = 0; i < 500; i++) assertEquals(contents[i + 1], bytes[i]);
+    for (int i = 501; i < contents.length; i++) assertEquals(contents[i] & 0xFF, in.read());
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(bytes, 0, 10));
+    in.close();
+  }
+
+  public void testReadThrough() throws IOException {
+    File file = write("first line\nsecond, longer line\nunterminated".getBytes("US-ASCII"));
+
+    ReadAheadInputStream in = new ReadAheadInputStream(file, 4);
+    assertEquals("first line\n", new String(in.readThrough((byte) '\n'), "US-ASCII"));
+    assertEquals("second, longer line\n", new String(in.readThrough((byte) '\n'), "US-ASCII"));
+    try {
+      in.readThrough((byte) '\n');
+      fail();
+    } catch (EOFException expected) {
+    }
+    assertNull(in.readThrough((byte) '\n'));
+    in.close();
+  }
+
+  public void testChunksAreReadThroughSmallBlocks() throws IOException {
+    File file = new File(_testDirectory, "chunks");
+    OutputStream out = new FileOutputStream(file);
+    for (int i = 0; i < 100; i++) Chunking.writeChunk(out, new Chunk(("chunk " + i).getBytes("US-ASCII")));
+    out.close();
+
+    ReadAheadInputStream in = new ReadAheadInputStream(file, 5);
+    for (int i = 0; i < 100; i++) assertEquals("chunk " + i, new String(Chunking.readChunk(in).getBytes(), "US-ASCII"));
+    assertNull(Chunking.readChunk(in));
+    in.close();
+  }
+
+  private File write(byte[] contents) throws IOException {
+    File file = new File(_testDirectory, "contents");
+    OutputStream out = new FileOutputStream(file);
+    out.write(contents);
+    out.close();
+    return file;
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.prevayler.foundation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Compares the chain of Turns with the TurnSequencer, taking many threads through the same four-stage pipeline that
+ * CentralPublisher and PersistentJournal use, with no work done inside the stages.
+ */
+public class TurnBenchmark {
+  static final Logger LOG = Logger.getLogger(TurnBenchmark.class.getName());
+  final static int STAGES = 4;
+  final static int TRIPS_PER_THREAD = 20000;
+
+  @Test
+  public void testSingleThreaded() throws Exception {
+    compare(1);
+  }
+
+  @Test
+  public void testMultithreaded() throws Exception {
+    compare(8);
+    compare(64);
+  }
+
+  private void compare(int threads) throws Exception {
+    // Warm up both before measuring.
+    run(new TurnPipeline(), threads);
+    run(new SequencerPipeline(), threads);
+
+    long turnNanos = run(new TurnPipeline(), threads);
+    long sequencerNanos = run(new SequencerPipeline(), threads);
+
+    LOG.info(threads + " threads, " + (threads * TRIPS_PER_THREAD) + " trips: Turn " + (turnNanos / 1000000)
+        + " ms, TurnSequencer " + (sequencerNanos / 1000000) + " ms");
+  }
+
+  private long run(final Pipeline pipeline, int threadCount) throws Exception {
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int trip = 0; trip < TRIPS_PER_THREAD; trip++) {
+            pipeline.trip();
+          }
+        }
+      });
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < threadCount; i++) threads[i].start();
+    for (int i = 0; i < threadCount; i++) threads[i].join();
+    long elapsed = System.nanoTime() - start;
+
+    assertEquals(threadCount * TRIPS_PER_THREAD, pipeline.completed());
+    return elapsed;
+  }
+
+  private abstract static class Pipeline {
+    /**
+     * Only incremented in the last stage, so the stages themselves keep it consistent.
+     */
+    private int _completed = 0;
+
+    abstract void trip();
+
+    void lastStage() {
+      _completed++;
+    }
+
+    synchronized int completed() {
+      return _completed;
+    }
+  }
+
+  private static class TurnPipeline extends Pipeline {
+    private Turn _nextTurn = Turn.first();
+
+    void trip() {
+      Turn turn;
+      synchronized (this) {
+        turn = _nextTurn;
+        _nextTurn = _nextTurn.next();
+      }
+      for (int stage = 0; stage < STAGES; stage++) {
+        turn.start();
+        if (stage == STAGES - 1) lastStage();
+        turn.end();
+      }
+    }
+  }
+
+  private static class SequencerPipeline extends Pipeline {
+    private final TurnSequencer _sequencer = new TurnSequencer(STAGES);
+    private long _nextSequence = 0;
+
+    void trip() {
+      long sequence;
+      synchronized (this) {
+        sequence = _nextSequence++;
+      }
+      for (int stage = 0; stage < STAGES; stage++) {
+        _sequencer.start(sequence, stage);
+        if (stage == STAGES - 1) lastStage();
+        _sequencer.end(sequence, stage);
+      }
+    }
+  }
+
+}
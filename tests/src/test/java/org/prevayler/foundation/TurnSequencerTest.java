@@ -0,0 +1,101 @@
+package org.prevayler.foundation;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TurnSequencerTest extends TestCase {
+
+  public void testStagesAreTakenInSequenceOrder() throws Exception {
+    final TurnSequencer sequencer = new TurnSequencer(2);
+    final List<Long> firstStage = Collections.synchronizedList(new ArrayList<Long>());
+    final List<Long> secondStage = Collections.synchronizedList(new ArrayList<Long>());
+
+    Thread[] threads = new Thread[8];
+    for (int i = threads.length - 1; i >= 0; i--) {
+      final long sequence = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          sequencer.start(sequence, 0);
+          firstStage.add(sequence);
+          sequencer.end(sequence, 0);
+
+          sequencer.start(sequence, 1);
+          secondStage.add(sequence);
+          sequencer.end(sequence, 1);
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+
+    for (int i = 0; i < threads.length; i++) {
+      assertEquals(i, firstStage.get(i).longValue());
+      assertEquals(i, secondStage.get(i).longValue());
+    }
+  }
+
+  public void testManySequencesWaitingForTheSameSlot() throws Exception {
+    final TurnSequencer sequencer = new TurnSequencer(1);
+    final long[] next = new long[1];
+    final int count = 600;
+
+    Thread[] threads = new Thread[count];
+    for (int i = count - 1; i >= 0; i--) {
+      final long sequence = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          sequencer.start(sequence, 0);
+          assertEquals(sequence, next[0]);
+          next[0]++;
+          sequencer.end(sequence, 0);
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < count; i++) threads[i].join();
+
+    assertEquals(count, next[0]);
+  }
+
+  public void testAbort() throws Exception {
+    TurnSequencer sequencer = new TurnSequencer(2);
+    sequencer.start(0, 0);
+    sequencer.end(0, 0);
+    sequencer.start(1, 0);
+    try {
+      sequencer.abort(1, "Failed", new Exception());
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("Failed", expected.getMessage());
+    }
+
+    sequencer.start(0, 1); // Preceding sequences are not affected.
+    sequencer.end(0, 1);
+
+    try {
+      sequencer.start(1, 1);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      sequencer.start(2, 0);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testTooManyStages() {
+    TurnSequencer sequencer = new TurnSequencer(1);
+    sequencer.start(0, 0);
+    sequencer.end(0, 0);
+    try {
+      sequencer.start(0, 1);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+}
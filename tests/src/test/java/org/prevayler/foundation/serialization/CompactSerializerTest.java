@@ -0,0 +1,229 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class CompactSerializerTest extends FileIOTest {
+
+  private File registry() {
+    return new File(_testDirectory, "classes.registry");
+  }
+
+  public void testRoundTrips() throws Exception {
+    Serializer serializer = new CompactSerializer(registry());
+    Object[] values = {null, "text", "", "\u00e9\u4e2d", Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE, Long.MIN_VALUE,
+        123456789012L, true, false, 1.5d, 2.5f, (short) -3, (byte) 4, 'c', new Date(1234567L), Color.GREEN,
+        new BigDecimal("3.14"), new ArrayList<Object>(Arrays.asList("a", 1, null)),
+        new LinkedList<Object>(Arrays.asList(2L)), new HashSet<Object>(Arrays.asList("x", "y")),
+        new LinkedHashSet<Object>(Arrays.asList("z", "y", "x")), new TreeSet<Object>(Arrays.asList(3, 1, 2))};
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], roundTrip(serializer, values[i]));
+    }
+
+    Map<Object, Object> map = new HashMap<Object, Object>();
+    map.put("key", new TreeMap<Object, Object>(map));
+    map.put(7, Color.RED);
+    assertEquals(map, roundTrip(serializer, map));
+
+    assertTrue(Arrays.equals(new byte[]{1, -2}, (byte[]) roundTrip(serializer, new byte[]{1, -2})));
+    assertTrue(Arrays.equals(new int[]{-1, 1 << 30}, (int[]) roundTrip(serializer, new int[]{-1, 1 << 30})));
+    assertTrue(Arrays.equals(new long[]{-1, 1L << 62}, (long[]) roundTrip(serializer, new long[]{-1, 1L << 62})));
+    assertTrue(Arrays.equals(new double[]{0.1}, (double[]) roundTrip(serializer, new double[]{0.1})));
+    assertTrue(Arrays.equals(new char[]{'a'}, (char[]) roundTrip(serializer, new char[]{'a'})));
+    String[] strings = (String[]) roundTrip(serializer, new String[]{"s", null});
+    assertTrue(Arrays.equals(new String[]{"s", null}, strings));
+  }
+
+  public void testObjectsSharedReferencesAndCycles() throws Exception {
+    Serializer serializer = new CompactSerializer(registry());
+    Node first = new Node("first", 1, null);
+    Node second = new Node("second", -2, first);
+    first._next = second;
+    List<Node> nodes = new ArrayList<Node>(Arrays.asList(first, second, first));
+
+    List read = (List) roundTrip(serializer, nodes);
+    Node readFirst = (Node) read.get(0);
+    Node readSecond = (Node) read.get(1);
+    assertSame(readFirst, read.get(2));
+    assertSame(readSecond, readFirst._next);
+    assertSame(readFirst, readSecond._next);
+    assertEquals("second", readSecond._name);
+    assertEquals(-2, readSecond._weight);
+    assertEquals(0, readSecond._cache);
+    assertEquals(Node.DEFAULT_LABEL, readSecond.label());
+
+    Object[] array = new Object[1];
+    array[0] = array;
+    Object[] readArray = (Object[]) roundTrip(serializer, array);
+    assertSame(readArray, readArray[0]);
+  }
+
+  public void testFallsBackToJavaSerialization() throws Exception {
+    Serializer serializer = new CompactSerializer(registry());
+    Customized customized = (Customized) roundTrip(serializer, new Customized("value"));
+    assertEquals("value", customized._value);
+    assertTrue(customized._readThroughJava);
+
+    try {
+      roundTrip(serializer, new Node("unserializable", 0, new Object()));
+      fail();
+    } catch (NotSerializableException expected) {
+    }
+  }
+
+  public void testRegistryIsKeptAcrossInstances() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new CompactSerializer(registry()).writeObject(bytes, new Node("kept", 3, Color.BLUE));
+
+    Serializer other = new CompactSerializer(registry());
+    Node node = (Node) other.readObject(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals("kept", node._name);
+    assertSame(Color.BLUE, node._next);
+
+    ByteArrayOutputStream again = new ByteArrayOutputStream();
+    other.writeObject(again, new Node("kept", 3, Color.BLUE));
+    assertTrue(Arrays.equals(bytes.toByteArray(), again.toByteArray()));
+  }
+
+  public void testSmallerThanJavaSerialization() throws Exception {
+    ByteArrayOutputStream compact = new ByteArrayOutputStream();
+    new CompactSerializer(registry()).writeObject(compact, new AppendTransaction(" first"));
+    ByteArrayOutputStream java = new ByteArrayOutputStream();
+    new JavaSerializer().writeObject(java, new AppendTransaction(" first"));
+    assertTrue(compact.size() * 5 < java.size());
+  }
+
+  public void testJournalsAndSnapshots() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    prevayler.execute(new AppendTransaction(" first"));
+    prevayler.execute(new AppendTransaction(" second"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new AppendTransaction(" third"));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals("the system first second third", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testJournalAndSnapshotSerializersShareTheRegistry() throws Exception {
+    Prevayler<Tally> prevayler = createTallyPrevayler();
+    prevayler.execute(new Record("first"));  // Registered by the journal serializer.
+    prevayler.takeSnapshot();  // Tally registered by the snapshot serializer, which was created before.
+    prevayler.execute(new Record("second"));
+    prevayler.close();
+
+    prevayler = createTallyPrevayler();
+    assertEquals(Arrays.asList("first", "second"), prevayler.prevalentSystem()._entries);
+    prevayler.close();
+  }
+
+  private Prevayler<Tally> createTallyPrevayler() throws Exception {
+    PrevaylerFactory<Tally> factory = new PrevaylerFactory<Tally>();
+    factory.configurePrevalentSystem(new Tally());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalSerializer("journal", new CompactSerializer(registry()));
+    factory.configureSnapshotSerializer("compactsnapshot", new CompactSerializer(registry()));
+    return factory.create();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer("the system"));
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalSerializer("journal", new CompactSerializer(registry()));
+    factory.configureSnapshotSerializer("compactsnapshot", new CompactSerializer(registry()));
+    return factory.create();
+  }
+
+  private static Object roundTrip(Serializer serializer, Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, object);
+    return serializer.readObject(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  private enum Color {
+    RED, GREEN, BLUE {
+      public String toString() {
+        return "blue";
+      }
+    }
+  }
+
+  private static class Node implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final String DEFAULT_LABEL = "node";
+
+    final String _name;
+    final int _weight;
+    Object _next;
+    transient int _cache = 42;
+    private String _label;
+
+    Node(String name, int weight, Object next) {
+      _name = name;
+      _weight = weight;
+      _next = next;
+      _label = DEFAULT_LABEL;
+    }
+
+    String label() {
+      return _label;
+    }
+  }
+
+  private static class Tally implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final List<String> _entries = new ArrayList<String>();
+  }
+
+  private static class Record implements Transaction<Tally> {
+    private static final long serialVersionUID = 1L;
+    final String _entry;
+
+    Record(String entry) {
+      _entry = entry;
+    }
+
+    public void executeOn(Tally tally, Date executionTime) {
+      tally._entries.add(_entry);
+    }
+  }
+
+  private static class Customized implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final String _value;
+    transient boolean _readThroughJava;
+
+    Customized(String value) {
+      _value = value;
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      _readThroughJava = true;
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LZ4SerializerTest extends FileIOTest {
+
+  public void testBlocks() throws Exception {
+    Random random = new Random(42);
+    int[] lengths = {0, 1, 12, 13, 100, 70000, 300000};
+    for (int i = 0; i < lengths.length; i++) {
+      checkBlock(randomBytes(random, lengths[i], 256));
+      checkBlock(randomBytes(random, lengths[i], 4));
+      checkBlock(new byte[lengths[i]]);
+    }
+  }
+
+  private void checkBlock(byte[] bytes) throws Exception {
+    byte[] compressed = new byte[LZ4Block.maxCompressedLength(bytes.length)];
+    int length = LZ4Block.compress(bytes, 0, bytes.length, compressed, new int[LZ4Block.HASH_TABLE_SIZE]);
+    byte[] restored = new byte[bytes.length];
+    LZ4Block.decompress(compressed, 0, length, restored, 0, restored.length);
+    assertTrue(Arrays.equals(bytes, restored));
+  }
+
+  public void testStreams() throws Exception {
+    Random random = new Random(7);
+    byte[][] samples = {new byte[0], randomBytes(random, 10, 256), randomBytes(random, 200000, 8),
+        randomBytes(random, 100000, 256), new byte[500000]};
+    int[] blockSizes = {7, 1000, LZ4Serializer.DEFAULT_BLOCK_SIZE};
+    for (int s = 0; s < samples.length; s++) {
+      for (int b = 0; b < blockSizes.length; b++) {
+        assertRoundTrip(new LZ4Serializer(new BytesSerializer(), blockSizes[b]), samples[s]);
+        assertRoundTrip(new LZ4Serializer(new BytesSerializer(), blockSizes[b], null, 3), samples[s]);
+        assertRoundTrip(new LZ4Serializer(new BytesSerializer(), blockSizes[b], samples[1], 1), samples[s]);
+      }
+    }
+
+    byte[] zeros = new byte[500000];
+    assertTrue(write(new LZ4Serializer(new BytesSerializer()), zeros).length < zeros.length / 100);
+  }
+
+  private void assertRoundTrip(Serializer serializer, byte[] bytes) throws Exception {
+    byte[] written = write(serializer, bytes);
+    assertTrue(Arrays.equals(bytes, (byte[]) serializer.readObject(new ByteArrayInputStream(written))));
+  }
+
+  public void testDictionary() throws Exception {
+    List<AppendTransaction> samples = new ArrayList<AppendTransaction>();
+    for (int i = 0; i < 10; i++) samples.add(new AppendTransaction("sample " + i));
+    byte[] dictionary = LZ4Serializer.dictionary(new JavaSerializer(), samples, 4096);
+
+    Serializer plain = new LZ4Serializer(new JavaSerializer());
+    Serializer trained = new LZ4Serializer(new JavaSerializer(), LZ4Serializer.DEFAULT_BLOCK_SIZE, dictionary, 1);
+    AppendTransaction transaction = new AppendTransaction(" a transaction");
+    byte[] withDictionary = write(trained, transaction);
+    assertTrue(withDictionary.length * 2 < write(plain, transaction).length);
+    assertEquals(" a transaction", ((AppendTransaction) trained.readObject(new ByteArrayInputStream(withDictionary))).toAdd);
+
+    Serializer other = new LZ4Serializer(new JavaSerializer(), LZ4Serializer.DEFAULT_BLOCK_SIZE, new byte[]{1, 2, 3}, 1);
+    try {
+      other.readObject(new ByteArrayInputStream(withDictionary));
+      fail();
+    } catch (InvalidObjectException expected) {
+    }
+    try {
+      plain.readObject(new ByteArrayInputStream(withDictionary));
+      fail();
+    } catch (InvalidObjectException expected) {
+    }
+  }
+
+  public void testCorruption() throws Exception {
+    Serializer serializer = new LZ4Serializer(new BytesSerializer());
+    byte[] written = write(serializer, randomBytes(new Random(1), 10000, 4));
+    written[written.length / 2] ^= 0x55;
+    written[written.length / 2 + 1] ^= 0x55;
+    try {
+      serializer.readObject(new ByteArrayInputStream(written));
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  public void testJournalsAndSnapshots() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    prevayler.execute(new AppendTransaction(" first"));
+    prevayler.execute(new AppendTransaction(" second"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new AppendTransaction(" third"));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals("the system first second third", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    byte[] dictionary = LZ4Serializer.dictionary(new JavaSerializer(), Arrays.asList(new AppendTransaction("")), 1024);
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer("the system"));
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalSerializer("lz4journal", new LZ4Serializer(new JavaSerializer(), LZ4Serializer.DEFAULT_BLOCK_SIZE, dictionary, 1));
+    factory.configureSnapshotSerializer("lz4snapshot", new LZ4Serializer(new JavaSerializer(), 1 << 20, null, 2));
+    return factory.create();
+  }
+
+  private static byte[] write(Serializer serializer, Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, object);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] randomBytes(Random random, int length, int values) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = (byte) random.nextInt(values);
+    return bytes;
+  }
+
+  /**
+   * Writes byte arrays as they are, through single bytes and odd chunks, and reads them back up to the end of the
+   * stream.
+   */
+  private static class BytesSerializer implements Serializer {
+    public void writeObject(OutputStream stream, Object object) throws Exception {
+      byte[] bytes = (byte[]) object;
+      int i = 0;
+      while (i < bytes.length) {
+        if (i % 3 == 0) {
+          stream.write(bytes[i++]);
+        } else {
+          int chunk = Math.min(bytes.length - i, 777);
+          stream.write(bytes, i, chunk);
+          i += chunk;
+        }
+      }
+    }
+
+    public Object readObject(InputStream stream) throws Exception {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[555];
+      int n;
+      while ((n = stream.read(buffer)) != -1) bytes.write(buffer, 0, n);
+      return bytes.toByteArray();
+    }
+  }
+
+}
@@ -0,0 +1,64 @@
+package org.prevayler.foundation.serialization;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SerializationBuffersTest extends TestCase {
+
+  public void testEachArrayIsReadableOnItsOwn() throws Exception {
+    JavaSerializer serializer = new JavaSerializer();
+    List<String> shared = new ArrayList<String>(Arrays.asList("x", "y"));
+    byte[] first = SerializationBuffers.serialize(serializer, new Pair(shared, shared));
+    byte[] second = SerializationBuffers.serialize(serializer, new Pair(shared, new ArrayList<String>()));
+    byte[] third = SerializationBuffers.serialize(serializer, "just a string");
+
+    Pair pair = (Pair) serializer.readObject(new ByteArrayInputStream(second));
+    assertEquals(shared, pair._left);
+    assertTrue(pair._right.isEmpty());
+    pair = (Pair) serializer.readObject(new ByteArrayInputStream(first));
+    assertSame(pair._left, pair._right);
+    assertEquals("just a string", serializer.readObject(new ByteArrayInputStream(third)));
+  }
+
+  public void testRecoversFromFailures() throws Exception {
+    JavaSerializer serializer = new JavaSerializer();
+    try {
+      SerializationBuffers.serialize(serializer, new Pair(new ArrayList<Object>(Arrays.asList(new Object())), null));
+      fail();
+    } catch (NotSerializableException expected) {
+    }
+    byte[] bytes = SerializationBuffers.serialize(serializer, new Integer(42));
+    assertEquals(new Integer(42), serializer.readObject(new ByteArrayInputStream(bytes)));
+  }
+
+  public void testOtherSerializersAndLargeObjects() throws Exception {
+    Serializer gzip = new GZIPSerializer(new JavaSerializer());
+    byte[] large = new byte[SerializationBuffers.MAX_RETAINED_SIZE * 2];
+    large[large.length - 1] = 7;
+
+    byte[] bytes = SerializationBuffers.serialize(gzip, large);
+    assertTrue(Arrays.equals(large, (byte[]) gzip.readObject(new ByteArrayInputStream(bytes))));
+    bytes = SerializationBuffers.serialize(new JavaSerializer(), large);
+    assertTrue(Arrays.equals(large, (byte[]) new JavaSerializer().readObject(new ByteArrayInputStream(bytes))));
+    bytes = SerializationBuffers.serialize(gzip, "small");
+    assertEquals("small", gzip.readObject(new ByteArrayInputStream(bytes)));
+  }
+
+  private static class Pair implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final List _left;
+    final List _right;
+
+    Pair(List left, List right) {
+      _left = left;
+      _right = right;
+    }
+  }
+
+}
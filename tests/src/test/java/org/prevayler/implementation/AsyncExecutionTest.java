@@ -0,0 +1,131 @@
+package org.prevayler.implementation;
+
+import org.prevayler.ListenableFuture;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class AsyncExecutionTest extends FileIOTest {
+
+  public void testManyInFlight() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 500; i++) {
+      futures.add(prevayler.executeAsync(new AppendTransaction("x")));
+    }
+    for (Future<Void> future : futures) {
+      assertNull(future.get());
+    }
+    assertEquals(500, prevayler.prevalentSystem().length());
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(500, prevayler.prevalentSystem().length());
+    prevayler.close();
+  }
+
+  public void testListenersAndSynchronousExecution() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    final List<String> seen = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      final ListenableFuture<Void> future = prevayler.executeAsync(new AppendTransaction("a"));
+      future.addListener(new Runnable() {
+        public void run() {
+          synchronized (seen) {
+            seen.add(future.isDone() ? "done" : "not done");
+          }
+        }
+      });
+      prevayler.execute(new AppendTransaction("s"));
+    }
+    prevayler.executeAsync(new AppendTransaction("z")).get();
+    synchronized (seen) {
+      assertEquals(100, seen.size());
+      assertFalse(seen.contains("not done"));
+    }
+    assertEquals(201, prevayler.prevalentSystem().length());
+    assertEquals('z', prevayler.prevalentSystem().charAt(200));
+    prevayler.close();
+  }
+
+  public void testJournalWriterThread() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalWriterThread(64);
+    Prevayler<StringBuffer> prevayler = factory.create();
+
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 300; i++) {
+      futures.add(prevayler.executeAsync(new AppendTransaction("x")));
+    }
+    prevayler.execute(new AppendTransaction("y"));
+    for (Future<Void> future : futures) {
+      assertNull(future.get());
+    }
+    assertEquals(301, prevayler.prevalentSystem().length());
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(301, prevayler.prevalentSystem().length());
+    prevayler.close();
+  }
+
+  public void testTransactionWithQuery() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    prevayler.execute(new AppendTransaction("a"));
+    Future<String> result = prevayler.executeAsyncWithQuery(new AppendTransactionWithQuery("b"));
+    assertEquals("ab", result.get());
+    prevayler.close();
+  }
+
+  public void testExceptionFromTransactionWithQuery() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    Future<String> result = prevayler.executeAsyncWithQuery(new FailingTransactionWithQuery());
+    try {
+      result.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertEquals("failed on purpose", expected.getCause().getMessage());
+    }
+    prevayler.close();
+  }
+
+  public void testCloseWaitsForSubmittedTransactions() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    for (int i = 0; i < 50; i++) {
+      prevayler.executeAsync(new AppendTransaction("y"));
+    }
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(50, prevayler.prevalentSystem().length());
+    prevayler.close();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    return factory.create();
+  }
+
+  private static class FailingTransactionWithQuery implements TransactionWithQuery<StringBuffer, String> {
+
+    private static final long serialVersionUID = 1L;
+
+    public String executeAndQuery(StringBuffer prevalentSystem, Date executionTime) throws Exception {
+      throw new Exception("failed on purpose");
+    }
+
+  }
+
+}
@@ -0,0 +1,218 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Partitioned;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.foundation.serialization.JavaSerializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BackgroundSnapshotTest extends FileIOTest {
+
+  public void testTransactionsDontWaitForSnapshot() throws Exception {
+    BlockingSerializer serializer = new BlockingSerializer();
+    final Prevayler<StringBuffer> prevayler = createPrevayler(serializer);
+    prevayler.execute(new AppendTransaction("a"));
+    prevayler.execute(new AppendTransaction("b"));
+
+    serializer.block();
+    final File[] snapshot = new File[1];
+    Thread snapshotter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          snapshot[0] = prevayler.takeSnapshot();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    snapshotter.start();
+    assertTrue(serializer._writing.await(10, TimeUnit.SECONDS));
+
+    prevayler.execute(new AppendTransaction("c"));
+    assertEquals("abc", prevayler.prevalentSystem().toString());
+
+    serializer._mayFinish.countDown();
+    snapshotter.join();
+    assertEquals("ab", readSnapshot(snapshot[0]).toString());
+
+    prevayler.execute(new AppendTransaction("d"));
+    assertEquals("abcd", readSnapshot(prevayler.takeSnapshot()).toString());
+    prevayler.close();
+
+    Prevayler<StringBuffer> recovered = createPrevayler(new BlockingSerializer());
+    assertEquals("abcd", recovered.prevalentSystem().toString());
+    recovered.close();
+  }
+
+  public void testReplicaIgnoresRuntimeExceptions() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(new BlockingSerializer());
+    prevayler.execute(new AppendTransaction("x"));
+    try {
+      prevayler.execute(new ErrorInducingTransaction());
+      fail();
+    } catch (RuntimeException expected) {
+    }
+    prevayler.execute(new AppendTransaction("y"));
+    assertEquals("xy", readSnapshot(prevayler.takeSnapshot()).toString());
+    prevayler.close();
+  }
+
+  public void testDivergenceIsReported() throws Exception {
+    RecordingMonitor monitor = new RecordingMonitor();
+    PrevaylerFactory<StringBuffer> factory = factory(new BlockingSerializer());
+    factory.configureMonitor(monitor);
+    Prevayler<StringBuffer> prevayler = factory.create();
+    prevayler.execute(new FailingOnSecondExecution());
+    prevayler.takeSnapshot();
+    prevayler.close();
+
+    assertTrue(monitor._notifications.toString().indexOf("Transaction 1 threw on the replica") >= 0);
+  }
+
+  public void testPartitionedReplica() throws Exception {
+    PrevaylerFactory<Sections> factory = new PrevaylerFactory<Sections>();
+    factory.configurePrevalentSystem(new Sections());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureBackgroundSnapshots(true);
+    Prevayler<Sections> prevayler = factory.create();
+    prevayler.execute(new AddToSection(3));
+    prevayler.execute(new AddToSection(4));
+    prevayler.takeSnapshot();
+    prevayler.close();
+
+    prevayler = factory.create();  // Recovered from the snapshot, which the journal is all before.
+    assertEquals("[4]", prevayler.prevalentSystem()._sections.get(0).toString());
+    assertEquals("[3]", prevayler.prevalentSystem()._sections.get(1).toString());
+    prevayler.close();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler(BlockingSerializer serializer) throws Exception {
+    return factory(serializer).create();
+  }
+
+  private PrevaylerFactory<StringBuffer> factory(BlockingSerializer serializer) {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureSnapshotSerializer("snapshot", serializer);
+    factory.configureBackgroundSnapshots(true);
+    return factory;
+  }
+
+  private static StringBuffer readSnapshot(File snapshot) throws Exception {
+    InputStream in = new FileInputStream(snapshot);
+    try {
+      return (StringBuffer) new JavaSerializer().readObject(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Once blocked, waits for the test before writing anything.
+   */
+  private static class BlockingSerializer extends JavaSerializer {
+    private volatile boolean _blocking = false;
+    private final CountDownLatch _writing = new CountDownLatch(1);
+    private final CountDownLatch _mayFinish = new CountDownLatch(1);
+
+    void block() {
+      _blocking = true;
+    }
+
+    public void writeObject(OutputStream stream, Object object) throws IOException {
+      if (_blocking) {
+        _writing.countDown();
+        try {
+          _mayFinish.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      super.writeObject(stream, object);
+    }
+  }
+
+  private static class ErrorInducingTransaction implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      throw new RuntimeException("failed on purpose");
+    }
+  }
+
+  private static class FailingOnSecondExecution implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+    private static final AtomicInteger EXECUTIONS = new AtomicInteger();
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      if (EXECUTIONS.incrementAndGet() == 2) throw new RuntimeException("failed on the replica only");
+    }
+  }
+
+  private static class RecordingMonitor extends NullMonitor {
+    final List<String> _notifications = new CopyOnWriteArrayList<String>();
+
+    public void notify(Class clazz, String message) {
+      _notifications.add(message);
+    }
+
+    public void notify(Class clazz, String message, Exception ex) {
+      _notifications.add(message);
+    }
+  }
+
+  /**
+   * Even numbers go in the first section, odd ones in the second. The sections are transient, as Partitioned requires.
+   */
+  private static class Sections implements Partitioned, Serializable {
+    private static final long serialVersionUID = 1L;
+    transient List<List<Integer>> _sections = new ArrayList<List<Integer>>();
+
+    Sections() {
+      _sections.add(new ArrayList<Integer>());
+      _sections.add(new ArrayList<Integer>());
+    }
+
+    public Object[] sections() {
+      return _sections.toArray();
+    }
+
+    public void restoreSections(Object[] sections) {
+      _sections = new ArrayList<List<Integer>>();
+      for (int i = 0; i < sections.length; i++) _sections.add((List<Integer>) sections[i]);
+    }
+  }
+
+  private static class AddToSection implements Transaction<Sections> {
+    private static final long serialVersionUID = 1L;
+    private final int _value;
+
+    AddToSection(int value) {
+      _value = value;
+    }
+
+    public void executeOn(Sections prevalentSystem, Date executionTime) {
+      prevalentSystem._sections.get(_value % 2).add(_value);
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class BatchExecutionTest extends FileIOTest {
+
+  public void testBatchIsJournaledAsOneTransaction() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    List<AppendTransaction> batch = new ArrayList<AppendTransaction>();
+    for (int i = 0; i < 100; i++) batch.add(new AppendTransaction(" " + i));
+    prevayler.execute(batch);
+    prevayler.execute(Collections.<AppendTransaction>emptyList());
+    prevayler.execute(new AppendTransaction(" last"));
+    assertTrue(prevayler.takeSnapshot().getName().startsWith("0000000000000000002."));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(expected(100) + " last", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testRuntimeExceptionStopsTheBatch() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler();
+    List<Transaction<StringBuffer>> batch = Arrays.<Transaction<StringBuffer>>asList(
+        new AppendTransaction(" 0"), new FailingTransaction(), new AppendTransaction(" never"));
+    try {
+      prevayler.execute(batch);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    prevayler.execute(new AppendTransaction(" 1"));
+    assertEquals(expected(2), prevayler.prevalentSystem().toString());
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(expected(2), prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  private static String expected(int count) {
+    StringBuilder result = new StringBuilder("the system");
+    for (int i = 0; i < count; i++) result.append(" ").append(i);
+    return result.toString();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer("the system"));
+    factory.configurePrevalenceDirectory(_testDirectory);
+    return factory.create();
+  }
+
+  static class FailingTransaction implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      throw new IllegalStateException("Fails on purpose");
+    }
+  }
+
+}
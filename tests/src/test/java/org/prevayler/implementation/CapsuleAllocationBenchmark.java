@@ -0,0 +1,57 @@
+package org.prevayler.implementation;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+import org.prevayler.foundation.serialization.JavaSerializer;
+
+/**
+ * Compares the bytes allocated per transaction by serializing it into a fresh ByteArrayOutputStream and
+ * ObjectOutputStream, as Capsule used to, with those allocated by a Capsule using SerializationBuffers.
+ */
+public class CapsuleAllocationBenchmark {
+  static final Logger LOG = Logger.getLogger(CapsuleAllocationBenchmark.class.getName());
+  final static int NUM_TRANSACTIONS = 100000;
+
+  private final JavaSerializer _serializer = new JavaSerializer();
+
+  @Test
+  public void testBytesAllocatedPerTransaction() throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    // Warm up both before measuring.
+    freshBuffers();
+    pooledBuffers();
+
+    long start = threads.getThreadAllocatedBytes(thread);
+    freshBuffers();
+    long fresh = (threads.getThreadAllocatedBytes(thread) - start) / NUM_TRANSACTIONS;
+
+    start = threads.getThreadAllocatedBytes(thread);
+    pooledBuffers();
+    long pooled = (threads.getThreadAllocatedBytes(thread) - start) / NUM_TRANSACTIONS;
+
+    LOG.info("Bytes allocated per transaction: fresh buffers " + fresh + ", pooled buffers " + pooled);
+    assertTrue(pooled < fresh);
+  }
+
+  private void freshBuffers() throws Exception {
+    for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      _serializer.writeObject(bytes, new AppendTransaction("transaction " + i));
+      bytes.toByteArray();
+    }
+  }
+
+  private void pooledBuffers() {
+    for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+      new TransactionCapsule<StringBuffer>(new AppendTransaction("transaction " + i), _serializer, true);
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+package org.prevayler.implementation;
+
+import org.prevayler.OptimisticQuery;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrentQueryTest extends FileIOTest {
+
+  private static CountDownLatch _bothQueriesStarted;
+
+  public void testQueriesExecuteConcurrently() throws Exception {
+    final Prevayler<StringBuffer> prevayler = createPrevayler();
+    _bothQueriesStarted = new CountDownLatch(2);
+
+    final boolean[] results = new boolean[2];
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            results[index] = prevayler.execute(new WaitForOtherQuery());
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+
+    assertTrue(results[0]);
+    assertTrue(results[1]);
+    prevayler.close();
+  }
+
+  public void testOptimisticQueriesNeverSeeHalfATransaction() throws Exception {
+    final Prevayler<StringBuffer> prevayler = createPrevayler();
+    final String[] unbalanced = new String[1];
+
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          for (int i = 0; i < 2000 && unbalanced[0] == null; i++) {
+            String seen = prevayler.execute(new SnapshotQuery());
+            if (seen.length() % 2 != 0) unbalanced[0] = seen;
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 200; i++) {
+      prevayler.execute(new AppendPair());
+    }
+    reader.join();
+
+    assertNull(unbalanced[0]);
+    assertEquals(400, prevayler.prevalentSystem().length());
+    prevayler.close();
+
+    Prevayler<StringBuffer> recovered = createPrevayler();
+    assertEquals(400, recovered.prevalentSystem().length());
+    recovered.close();
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureConcurrentQueries(true);
+    return factory.create();
+  }
+
+  private static class WaitForOtherQuery implements Query<StringBuffer, Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    public Boolean query(StringBuffer prevalentSystem, Date executionTime) throws Exception {
+      _bothQueriesStarted.countDown();
+      return _bothQueriesStarted.await(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private static class AppendPair implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      prevalentSystem.append('(');
+      Thread.yield();
+      prevalentSystem.append(')');
+    }
+  }
+
+  private static class SnapshotQuery implements OptimisticQuery<StringBuffer, String> {
+    private static final long serialVersionUID = 1L;
+
+    public String query(StringBuffer prevalentSystem, Date executionTime) {
+      return prevalentSystem.toString();
+    }
+  }
+
+}
@@ -0,0 +1,173 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+import org.prevayler.RootTransaction;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ImmutablePrevalentSystemTest extends FileIOTest {
+
+  private static CountDownLatch _transactionStarted;
+  private static CountDownLatch _transactionMayFinish;
+
+  public void testRootTransactionsReplaceThePrevalentSystem() throws Exception {
+    Prevayler<Integer> prevayler = createPrevayler();
+    for (int i = 0; i < 10; i++) {
+      prevayler.executeRoot(new Add(i));
+    }
+    assertEquals(45, prevayler.prevalentSystem().intValue());
+    assertEquals(45, prevayler.execute(new Current()).intValue());
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(45, prevayler.prevalentSystem().intValue());
+    prevayler.takeSnapshot();
+    prevayler.executeRoot(new Add(5));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(50, prevayler.prevalentSystem().intValue());
+    prevayler.close();
+  }
+
+  public void testQueriesAndSnapshotsDontWaitForTransactions() throws Exception {
+    final Prevayler<Integer> prevayler = createPrevayler();
+    prevayler.executeRoot(new Add(1));
+
+    _transactionStarted = new CountDownLatch(1);
+    _transactionMayFinish = new CountDownLatch(1);
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        prevayler.executeRoot(new SlowAdd(1));
+      }
+    });
+    writer.start();
+    assertTrue(_transactionStarted.await(10, TimeUnit.SECONDS));
+
+    assertEquals(1, prevayler.execute(new Current()).intValue());
+    assertEquals(1, prevayler.prevalentSystem().intValue());
+    prevayler.takeSnapshot();
+
+    _transactionMayFinish.countDown();
+    writer.join();
+    assertEquals(2, prevayler.prevalentSystem().intValue());
+    prevayler.close();
+
+    Prevayler<Integer> recovered = createPrevayler();
+    assertEquals(2, recovered.prevalentSystem().intValue());
+    recovered.close();
+  }
+
+  public void testRuntimeExceptionKeepsThePrevalentSystem() throws Exception {
+    Prevayler<Integer> prevayler = createPrevayler();
+    prevayler.executeRoot(new Add(3));
+    try {
+      prevayler.executeRoot(new Add(-1));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(3, prevayler.prevalentSystem().intValue());
+    prevayler.executeRoot(new Add(4));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(7, prevayler.prevalentSystem().intValue());
+    prevayler.close();
+  }
+
+  public void testOtherTransactionsAreRejected() throws Exception {
+    Prevayler<Integer> prevayler = createPrevayler();
+    try {
+      prevayler.execute(new Nothing());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      prevayler.execute(new NothingWithQuery());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      prevayler.executeAsync(new Nothing());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    prevayler.executeRoot(new Add(2));
+    assertEquals(2, prevayler.prevalentSystem().intValue());
+    prevayler.close();
+  }
+
+  private Prevayler<Integer> createPrevayler() throws Exception {
+    PrevaylerFactory<Integer> factory = new PrevaylerFactory<Integer>();
+    factory.configurePrevalentSystem(0);
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureImmutablePrevalentSystem(true);
+    return factory.create();
+  }
+
+  private static class Add implements RootTransaction<Integer> {
+    private static final long serialVersionUID = 1L;
+    private final int _amount;
+
+    Add(int amount) {
+      _amount = amount;
+    }
+
+    public Integer executeOn(Integer prevalentSystem, Date executionTime) {
+      if (_amount < 0) throw new IllegalArgumentException("negative");
+      return prevalentSystem + _amount;
+    }
+  }
+
+  private static class SlowAdd extends Add {
+    private static final long serialVersionUID = 1L;
+
+    SlowAdd(int amount) {
+      super(amount);
+    }
+
+    public Integer executeOn(Integer prevalentSystem, Date executionTime) {
+      if (_transactionMayFinish != null && _transactionMayFinish.getCount() > 0) {
+        _transactionStarted.countDown();
+        try {
+          _transactionMayFinish.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return super.executeOn(prevalentSystem, executionTime);
+    }
+  }
+
+  private static class Nothing implements Transaction<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    public void executeOn(Integer prevalentSystem, Date executionTime) {
+    }
+  }
+
+  private static class NothingWithQuery implements TransactionWithQuery<Integer, Integer> {
+    private static final long serialVersionUID = 1L;
+
+    public Integer executeAndQuery(Integer prevalentSystem, Date executionTime) {
+      return prevalentSystem;
+    }
+  }
+
+  private static class Current implements Query<Integer, Integer> {
+    private static final long serialVersionUID = 1L;
+
+    public Integer query(Integer prevalentSystem, Date executionTime) {
+      return prevalentSystem;
+    }
+  }
+
+}
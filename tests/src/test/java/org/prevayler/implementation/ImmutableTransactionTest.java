@@ -0,0 +1,108 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Immutable;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ImmutableTransactionTest extends FileIOTest {
+
+  public void testImmutableTransactionsAreExecutedDirectly() throws Exception {
+    Prevayler<List<Object>> prevayler = createPrevayler();
+
+    Transaction<List<Object>> immutable = new ImmutableAddition("immutable");
+    Transaction<List<Object>> mutable = new Addition("mutable");
+    prevayler.execute(immutable);
+    prevayler.execute(mutable);
+    Transaction<List<Object>> subclass = new MutableSubclass("subclass");
+    prevayler.execute(subclass);
+    ImmutableQuery query = new ImmutableQuery();
+    assertSame(query, prevayler.execute(query));
+
+    List<Object> system = prevayler.prevalentSystem();
+    assertSame(immutable, system.get(0));
+    assertNotSame(mutable, system.get(1));
+    assertEquals("mutable", ((Addition) system.get(1))._name);
+    assertNotSame(subclass, system.get(2));
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    system = prevayler.prevalentSystem();
+    assertEquals(4, system.size());
+    assertEquals("immutable", ((ImmutableAddition) system.get(0))._name);
+    assertEquals("subclass", ((Addition) system.get(2))._name);
+    prevayler.close();
+  }
+
+  public void testRegisteredTypes() throws Exception {
+    PrevaylerFactory<List<Object>> factory = new PrevaylerFactory<List<Object>>();
+    factory.configurePrevalentSystem(new ArrayList<Object>());
+    factory.configureTransientMode(true);
+    factory.configureImmutableTransactionType(Addition.class);
+    Prevayler<List<Object>> prevayler = factory.create();
+
+    Transaction<List<Object>> registered = new Addition("registered");
+    Transaction<List<Object>> subclass = new MutableSubclass("subclass");
+    prevayler.execute(registered);
+    prevayler.execute(subclass);
+    assertSame(registered, prevayler.prevalentSystem().get(0));
+    assertNotSame(subclass, prevayler.prevalentSystem().get(1));
+  }
+
+  private Prevayler<List<Object>> createPrevayler() throws Exception {
+    PrevaylerFactory<List<Object>> factory = new PrevaylerFactory<List<Object>>();
+    factory.configurePrevalentSystem(new ArrayList<Object>());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    return factory.create();
+  }
+
+  /**
+   * Adds itself to the prevalent system, so tests can tell whether it was copied.
+   */
+  static class Addition implements Transaction<List<Object>> {
+    private static final long serialVersionUID = 1L;
+    final String _name;
+
+    Addition(String name) {
+      _name = name;
+    }
+
+    public void executeOn(List<Object> prevalentSystem, Date executionTime) {
+      prevalentSystem.add(this);
+    }
+  }
+
+  @Immutable
+  static class ImmutableAddition extends Addition {
+    private static final long serialVersionUID = 1L;
+
+    ImmutableAddition(String name) {
+      super(name);
+    }
+  }
+
+  static class MutableSubclass extends ImmutableAddition {
+    private static final long serialVersionUID = 1L;
+
+    MutableSubclass(String name) {
+      super(name);
+    }
+  }
+
+  @Immutable
+  static class ImmutableQuery implements TransactionWithQuery<List<Object>, Object> {
+    private static final long serialVersionUID = 1L;
+
+    public Object executeAndQuery(List<Object> prevalentSystem, Date executionTime) {
+      prevalentSystem.add("queried");
+      return this;
+    }
+  }
+
+}
@@ -26,6 +26,35 @@ public class JournalSerializerTest extends FileIOTest {
     recover("MyJournal", strategy);
   }
 
+  public void testBinaryJournal() throws Exception {
+    Serializer strategy = new MySerializer();
+
+    startAndCrash("binaryjournal", strategy);
+
+    String contents = journalContents("binaryjournal");
+    assertFalse(contents.indexOf("systemVersion") >= 0);
+    assertTrue(contents.indexOf(" second") >= 0);
+
+    recover("binaryjournal", strategy);
+  }
+
+  public void testSwitchToBinaryJournal() throws Exception {
+    Serializer strategy = new MySerializer();
+
+    Prevayler<StringBuffer> prevayler = createPrevayler("MyJournal", strategy);
+    prevayler.execute(new AppendTransaction(" first"));
+    prevayler.execute(new AppendTransaction(" second"));
+    prevayler.close();
+
+    prevayler = createPrevayler("binaryMyJournal", strategy);
+    assertEquals("the system first second", prevayler.prevalentSystem().toString());
+    prevayler.execute(new AppendTransaction(" third"));
+    prevayler.close();
+
+    recover("binaryMyJournal", strategy);
+    recover("MyJournal", strategy);
+  }
+
   public void testBadSuffix() {
     PrevaylerFactory factory = new PrevaylerFactory();
     try {
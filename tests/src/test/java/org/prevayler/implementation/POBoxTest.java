@@ -0,0 +1,166 @@
+package org.prevayler.implementation;
+
+import junit.framework.TestCase;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.BackpressurePolicy;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class POBoxTest extends TestCase {
+
+  private CentralPublisher _publisher;
+  private final Recorder _local = new Recorder();
+  private final Recorder _slow = new Recorder();
+
+  protected void setUp() throws Exception {
+    _publisher = new CentralPublisher(new MachineClock(), new TransientJournal());
+    _publisher.subscribe(_local, 1);
+  }
+
+  public void testDropAndResync() throws Exception {
+    POBox box = new POBox(_slow, _publisher, 2, BackpressurePolicy.DROP_AND_RESYNC);
+    _publisher.subscribe(box, 1);
+
+    publish(1);
+    assertTrue(_slow._entered.await(10, TimeUnit.SECONDS));
+    publish(9);  // Two are queued and the rest dropped, without holding up the publisher.
+    assertEquals(10, _local.versions().size());
+
+    _slow._gate.countDown();
+    _slow.awaitVersions(10);
+    assertEquals(_local.versions(), _slow.versions());
+
+    publish(5);
+    _slow.awaitVersions(15);
+    assertEquals(_local.versions(), _slow.versions());
+  }
+
+  public void testDisconnect() throws Exception {
+    POBox box = new POBox(_slow, _publisher, 2, BackpressurePolicy.DISCONNECT);
+    _publisher.subscribe(box, 1);
+
+    publish(1);
+    assertTrue(_slow._entered.await(10, TimeUnit.SECONDS));
+    publish(3);
+    assertTrue(box.isDisconnected());
+
+    _slow._gate.countDown();
+    _slow.awaitVersions(1);
+    publish(2);
+    assertEquals(6, _local.versions().size());
+    assertEquals(1, _slow.versions().size());
+  }
+
+  public void testBlock() throws Exception {
+    POBox box = new POBox(_slow, _publisher, 2, BackpressurePolicy.BLOCK);
+    _publisher.subscribe(box, 1);
+
+    publish(1);
+    assertTrue(_slow._entered.await(10, TimeUnit.SECONDS));
+    Thread publishing = new Thread() {
+      public void run() {
+        publish(5);
+      }
+    };
+    publishing.start();
+    publishing.join(200);
+    assertTrue(publishing.isAlive());  // Waiting for room in the queue.
+
+    _slow._gate.countDown();
+    publishing.join();
+    _slow.awaitVersions(6);
+    assertEquals(_local.versions(), _slow.versions());
+  }
+
+  public void testUnboundedNeverBlocks() throws Exception {
+    POBox box = new POBox(_slow);
+    _publisher.subscribe(box, 1);
+
+    publish(1);
+    assertTrue(_slow._entered.await(10, TimeUnit.SECONDS));
+    publish(POBox.DEFAULT_CAPACITY + 100);  // More than the ring holds, without holding up the publisher.
+    assertEquals(POBox.DEFAULT_CAPACITY + 100, box.queueDepth());
+
+    _slow._gate.countDown();
+    _slow.awaitVersions(POBox.DEFAULT_CAPACITY + 101);
+    assertEquals(_local.versions(), _slow.versions());
+
+    publish(5);
+    _slow.awaitVersions(POBox.DEFAULT_CAPACITY + 106);
+    assertEquals(_local.versions(), _slow.versions());
+    assertEquals(0, box.overflows());
+  }
+
+  public void testBatchesAndMetrics() throws Exception {
+    POBox box = new POBox(_slow, _publisher, 100, BackpressurePolicy.BLOCK);
+    _publisher.subscribe(box, 1);
+
+    publish(1);
+    assertTrue(_slow._entered.await(10, TimeUnit.SECONDS));
+    publish(20);
+    assertEquals(20, box.queueDepth());
+    assertEquals(21, box.lag());
+
+    _slow._gate.countDown();
+    _slow.awaitVersions(21);
+    assertEquals(_local.versions(), _slow.versions());
+    assertEquals(1, _slow._batches);
+    assertEquals(0, box.queueDepth());
+    for (int i = 0; i < 10000 && box.lag() != 0; i++) Thread.sleep(1);
+    assertEquals(0, box.lag());
+    assertEquals(0, box.overflows());
+  }
+
+  private void publish(int count) {
+    for (int i = 0; i < count; i++) {
+      _publisher.publish(new TransactionCapsule<StringBuffer>(new AppendTransaction("x"), new JavaSerializer(), false));
+    }
+  }
+
+  /**
+   * Records the versions it receives. The slow one holds up the first until its gate is opened.
+   */
+  private class Recorder implements TransactionSubscriber {
+    final CountDownLatch _entered = new CountDownLatch(1);
+    final CountDownLatch _gate = new CountDownLatch(1);
+    private final List<Long> _versions = new ArrayList<Long>();
+    volatile int _batches = 0;
+
+    public void receive(TransactionTimestamp transactionTimestamp) {
+      if (this == _slow) {
+        _entered.countDown();
+        try {
+          _gate.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      synchronized (this) {
+        _versions.add(transactionTimestamp.systemVersion());
+      }
+    }
+
+    public void receiveBatch(List<TransactionTimestamp> transactionTimestamps) {
+      _batches++;
+      for (int i = 0; i < transactionTimestamps.size(); i++) receive(transactionTimestamps.get(i));
+    }
+
+    synchronized List<Long> versions() {
+      return new ArrayList<Long>(_versions);
+    }
+
+    void awaitVersions(int count) throws InterruptedException {
+      for (int i = 0; i < 10000 && versions().size() < count; i++) Thread.sleep(1);
+      assertEquals(count, versions().size());
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.JavaSerializer;
+
+import java.util.Date;
+
+public class ParallelReplayTest extends FileIOTest {
+
+  public void testReplayAcrossManyJournalFiles() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(0, "journal");
+    StringBuffer expected = new StringBuffer();
+    for (int i = 0; i < 1000; i++) {
+      String letter = String.valueOf((char) ('a' + i % 26));
+      prevayler.execute(new AppendTransaction(letter));
+      expected.append(letter);
+    }
+    prevayler.close();
+
+    prevayler = createPrevayler(4, "journal");
+    assertEquals(expected.toString(), prevayler.prevalentSystem().toString());
+    prevayler.execute(new AppendTransaction("!"));
+    prevayler.close();
+
+    prevayler = createPrevayler(1, "journal");
+    assertEquals(expected + "!", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testReplayBinaryJournal() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(0, "binaryjournal");
+    for (int i = 0; i < 300; i++) {
+      prevayler.execute(new AppendTransaction("x"));
+    }
+    prevayler.close();
+
+    prevayler = createPrevayler(3, "binaryjournal");
+    assertEquals(300, prevayler.prevalentSystem().length());
+    prevayler.close();
+  }
+
+  public void testRuntimeExceptionsAreIgnoredDuringReplay() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(0, "journal");
+    prevayler.execute(new AppendTransaction("a"));
+    try {
+      prevayler.execute(new FailingTransaction());
+      fail();
+    } catch (RuntimeException expected) {
+    }
+    prevayler.execute(new AppendTransaction("b"));
+    prevayler.close();
+
+    prevayler = createPrevayler(2, "journal");
+    assertEquals("ab", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testReaderStopsWhenReplayFails() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(0, "journal");
+    prevayler.execute(new AppendTransaction("a"));
+    prevayler.execute(new ErrorOnReplay());
+    for (int i = 0; i < 2000; i++) {
+      prevayler.execute(new AppendTransaction("b"));
+    }
+    prevayler.close();
+
+    ErrorOnReplay._replaying = true;
+    try {
+      createPrevayler(1, "journal");
+      fail();
+    } catch (Error expected) {
+    } finally {
+      ErrorOnReplay._replaying = false;
+    }
+
+    for (int i = 0; i < 100 && readerAlive(); i++) Thread.sleep(50);
+    assertFalse(readerAlive());
+  }
+
+  private static boolean readerAlive() {
+    Thread[] threads = new Thread[Thread.activeCount() * 2];
+    int count = Thread.enumerate(threads);
+    for (int i = 0; i < count; i++) {
+      if ("Prevayler Journal Reader".equals(threads[i].getName())) return true;
+    }
+    return false;
+  }
+
+  private Prevayler<StringBuffer> createPrevayler(int replayThreads, String journalSuffix) throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureJournalFileSizeThreshold(2000);
+    factory.configureJournalSerializer(journalSuffix, new JavaSerializer());
+    factory.configureJournalReplayThreads(replayThreads);
+    return factory.create();
+  }
+
+  private static class FailingTransaction implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      throw new RuntimeException("failed on purpose");
+    }
+  }
+
+  private static class ErrorOnReplay implements Transaction<StringBuffer> {
+    private static final long serialVersionUID = 1L;
+    static volatile boolean _replaying = false;
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      if (!_replaying) return;
+      try {
+        Thread.sleep(500);  // Gives the reader time to fill the queue.
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      throw new Error("failed on purpose");
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+package org.prevayler.implementation;
+
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class PrevaylerDirectoryTest extends FileIOTest {
+
+  public void testLookups() throws IOException {
+    create("0000000000000000001.journal");
+    create("0000000000000000005.journal");
+    create("0000000000000000009.binaryjournal");
+    create("0000000000000000004.snapshot");
+    create("0000000000000000006.deltasnapshot");
+    create("0000000000000000007.deltasnapshot");
+    create("unrelated.journal");
+    PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+
+    assertNull(directory.findInitialJournalFile(0));
+    assertEquals(file("0000000000000000001.journal"), directory.findInitialJournalFile(4));
+    assertEquals(file("0000000000000000005.journal"), directory.findInitialJournalFile(5));
+    assertEquals(file("0000000000000000009.binaryjournal"), directory.findInitialJournalFile(1000));
+    assertEquals(file("0000000000000000009.binaryjournal"), directory.journalFileAfter(file("0000000000000000005.journal")));
+    assertNull(directory.journalFileAfter(file("0000000000000000009.binaryjournal")));
+
+    assertEquals(file("0000000000000000004.snapshot"), directory.latestSnapshot());
+    assertEquals(Arrays.asList(new File[]{file("0000000000000000006.deltasnapshot"), file("0000000000000000007.deltasnapshot")}),
+        Arrays.asList(directory.deltaSnapshotsAfter(4)));
+  }
+
+  public void testIndexIsKeptUpToDate() throws IOException {
+    create("0000000000000000001.journal");
+    PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+    assertNull(directory.latestSnapshot());
+
+    File snapshot = create("0000000000000000003.snapshot");
+    directory.add(snapshot);
+    assertEquals(snapshot, directory.latestSnapshot());
+    File journal = create("0000000000000000004.journal");
+    directory.add(journal);
+    assertEquals(journal, directory.findInitialJournalFile(10));
+
+    delete(journal);
+    directory.remove(journal);
+    assertEquals(file("0000000000000000001.journal"), directory.findInitialJournalFile(10));
+
+    delete(snapshot);  // Without telling the directory.
+    assertNull(directory.latestSnapshot());
+  }
+
+  public void testJournalsOfBothFormatsAtTheSameVersion() throws IOException {
+    create("0000000000000000001.journal");
+    create("0000000000000000005.journal");  // Left empty by a crash before the format was changed.
+    create("0000000000000000005.binaryjournal");
+    create("0000000000000000008.binaryjournal");
+    PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+
+    assertEquals(file("0000000000000000005.binaryjournal"), directory.findInitialJournalFile(6));
+    assertEquals(file("0000000000000000005.journal"), directory.journalFileAfter(file("0000000000000000005.binaryjournal")));
+    assertEquals(file("0000000000000000008.binaryjournal"), directory.journalFileAfter(file("0000000000000000005.journal")));
+    assertEquals(4, directory.necessaryFiles().size());
+
+    File renamed = file("0000000000000000005.journal");
+    delete(renamed);
+    directory.remove(renamed);
+    assertEquals(file("0000000000000000005.binaryjournal"), directory.findInitialJournalFile(6));
+    assertEquals(file("0000000000000000008.binaryjournal"), directory.journalFileAfter(file("0000000000000000005.binaryjournal")));
+  }
+
+  private File create(String name) throws IOException {
+    File file = file(name);
+    new FileOutputStream(file).close();
+    return file;
+  }
+
+  private File file(String name) {
+    return new File(_testDirectory, name);
+  }
+
+}
@@ -0,0 +1,104 @@
+package org.prevayler.implementation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+/**
+ * Compares how fast a journal is recovered on a single thread with how fast it is recovered by a ReplayPipeline,
+ * for transactions that take a while to deserialize compared to executing them.
+ */
+public class ReplayBenchmark {
+  static final Logger LOG = Logger.getLogger(ReplayBenchmark.class.getName());
+  final static String TEST_DATA_DIRECTORY = "target/data/replay/";
+  final static int NUM_TRANSACTIONS = 20000;
+  final static int VALUES_PER_TRANSACTION = 50;
+
+  @Before
+  public void writeJournal() throws Exception {
+    deleteDirectory();
+    Prevayler<long[]> prevayler = createPrevayler(0);
+    for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+      prevayler.execute(new AddValues(i));
+    }
+    prevayler.close();
+  }
+
+  @After
+  public void deleteDirectory() throws Exception {
+    File directory = new File(TEST_DATA_DIRECTORY);
+    if (directory.exists()) FileIOTest.delete(directory);
+  }
+
+  @Test
+  public void testReplayThroughput() throws Exception {
+    // Warm up both before measuring.
+    replay(0);
+    replay(4);
+
+    long sequentialNanos = replay(0);
+    for (int threads = 1; threads <= 8; threads *= 2) {
+      long pipelineNanos = replay(threads);
+      LOG.info(NUM_TRANSACTIONS + " transactions: sequential " + throughput(sequentialNanos) + " tx/s, pipeline with "
+          + threads + " threads " + throughput(pipelineNanos) + " tx/s");
+    }
+  }
+
+  private long replay(int replayThreads) throws Exception {
+    long start = System.nanoTime();
+    Prevayler<long[]> prevayler = createPrevayler(replayThreads);
+    long elapsed = System.nanoTime() - start;
+    assertEquals(expectedSum(), prevayler.prevalentSystem()[0]);
+    prevayler.close();
+    return elapsed;
+  }
+
+  private static long throughput(long nanos) {
+    return NUM_TRANSACTIONS * 1000000000L / nanos;
+  }
+
+  private static long expectedSum() {
+    long sum = 0;
+    for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+      for (int j = 0; j < VALUES_PER_TRANSACTION; j++) sum += (long) i * VALUES_PER_TRANSACTION + j;
+    }
+    return sum;
+  }
+
+  private static Prevayler<long[]> createPrevayler(int replayThreads) throws Exception {
+    PrevaylerFactory<long[]> factory = new PrevaylerFactory<long[]>();
+    factory.configurePrevalentSystem(new long[1]);
+    factory.configurePrevalenceDirectory(TEST_DATA_DIRECTORY);
+    factory.configureJournalDiskSync(false);
+    factory.configureJournalReplayThreads(replayThreads);
+    return factory.create();
+  }
+
+  private static class AddValues implements Transaction<long[]> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Boxed on purpose, so that deserializing them takes longer.
+     */
+    private final Long[] _values = new Long[VALUES_PER_TRANSACTION];
+
+    AddValues(long transaction) {
+      for (int i = 0; i < _values.length; i++) _values[i] = Long.valueOf(transaction * VALUES_PER_TRANSACTION + i);
+    }
+
+    public void executeOn(long[] prevalentSystem, Date executionTime) {
+      for (int i = 0; i < _values.length; i++) prevalentSystem[0] += _values[i].longValue();
+    }
+  }
+
+}
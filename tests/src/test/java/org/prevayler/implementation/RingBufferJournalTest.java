@@ -0,0 +1,86 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.File;
+
+public class RingBufferJournalTest extends FileIOTest {
+
+  public void testSingleThreaded() throws Exception {
+    Prevayler<StringBuffer> prevayler = createPrevayler(0);
+    prevayler.execute(new AppendTransaction("a"));
+    prevayler.execute(new AppendTransaction("b"));
+    prevayler.execute(new AppendTransaction("c"));
+    prevayler.close();
+
+    prevayler = createPrevayler(0);
+    assertEquals("abc", prevayler.prevalentSystem().toString());
+    prevayler.execute(new AppendTransaction("d"));
+    prevayler.close();
+
+    prevayler = createPrevayler(0);
+    assertEquals("abcd", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testManyThreadsWithSmallRing() throws Exception {
+    final Prevayler<StringBuffer> prevayler = createPrevayler(300);
+
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      final String letter = String.valueOf((char) ('a' + i));
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 25; j++) {
+            prevayler.execute(new AppendTransaction(letter));
+          }
+        }
+      });
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].start();
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+
+    String executed = prevayler.prevalentSystem().toString();
+    assertEquals(400, executed.length());
+    prevayler.close();
+
+    assertTrue(journalFileCount() > 1);
+
+    Prevayler<StringBuffer> recovered = createPrevayler(300);
+    assertEquals(executed, recovered.prevalentSystem().toString());
+    recovered.close();
+  }
+
+  public void testRingSizeMustBePowerOfTwo() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalWriterThread(6);
+    try {
+      factory.create();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private Prevayler<StringBuffer> createPrevayler(long journalSizeThreshold) throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalFileSizeThreshold(journalSizeThreshold);
+    factory.configureJournalWriterThread(4);
+    return factory.create();
+  }
+
+  private int journalFileCount() {
+    File[] files = new File(_testDirectory).listFiles();
+    int count = 0;
+    for (int i = 0; i < files.length; i++) {
+      if (files[i].getName().endsWith(".journal")) count++;
+    }
+    return count;
+  }
+
+}
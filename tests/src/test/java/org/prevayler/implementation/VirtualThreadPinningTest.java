@@ -0,0 +1,112 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs many virtual-thread clients against a journal with disk sync enabled, one of them taking a snapshot, recording
+ * the JFR events emitted when a virtual thread blocks while pinned to its carrier thread. Virtual threads and JFR are
+ * only reached through reflection, so that this compiles for older Java versions. It needs Java 21 to run, so the build
+ * leaves it out unless the jdk21 profile is active, as it is by default on Java 21 and later.
+ */
+public class VirtualThreadPinningTest extends FileIOTest {
+
+  private static final int CLIENTS = 10000;
+
+  public void testNoPinningWithDiskSync() throws Exception {
+    Method startVirtualThread;
+    try {
+      startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+    } catch (NoSuchMethodException beforeJava21) {
+      fail("Virtual threads need Java 21");
+      return;
+    }
+
+    final Prevayler<StringBuffer> prevayler = createPrevayler();
+
+    Object recording = Class.forName("jdk.jfr.Recording").newInstance();
+    Object settings = invoke(recording, "enable", String.class, "jdk.VirtualThreadPinned");
+    Class durationClass = Class.forName("java.time.Duration");
+    invoke(settings, "withThreshold", durationClass, durationClass.getField("ZERO").get(null));
+    invoke(recording, "start");
+
+    List<Thread> clients = new ArrayList<Thread>();
+    clients.add((Thread) startVirtualThread.invoke(null, new Runnable() {
+      public void run() {
+        try {
+          prevayler.takeSnapshot();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }));
+    for (int i = 0; i < CLIENTS; i++) {
+      clients.add((Thread) startVirtualThread.invoke(null, new Runnable() {
+        public void run() {
+          prevayler.execute(new AppendTransaction("x"));
+        }
+      }));
+    }
+    for (Thread client : clients) client.join();
+
+    invoke(recording, "stop");
+    File dump = new File(_testDirectory, "pinning.jfr");
+    Class pathClass = Class.forName("java.nio.file.Path");
+    Object path = File.class.getMethod("toPath").invoke(dump);
+    invoke(recording, "dump", pathClass, path);
+    invoke(recording, "close");
+
+    assertEquals(CLIENTS, prevayler.prevalentSystem().length());
+    prevayler.close();
+
+    List events = (List) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", pathClass).invoke(null, path);
+    Iterator i = events.iterator();
+    while (i.hasNext()) {
+      Object event = i.next();
+      Object eventType = invoke(event, "getEventType");
+      if ("jdk.VirtualThreadPinned".equals(invoke(eventType, "getName"))) {
+        fail("A virtual thread was pinned: " + event);
+      }
+    }
+  }
+
+  private Prevayler<StringBuffer> createPrevayler() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(true);
+    factory.configureTransactionDeepCopy(false);
+    return factory.create();
+  }
+
+  private static Object invoke(Object target, String method) throws Exception {
+    return publicMethod(target.getClass(), method).invoke(target);
+  }
+
+  private static Object invoke(Object target, String method, Class parameterType, Object argument) throws Exception {
+    return publicMethod(target.getClass(), method, parameterType).invoke(target, argument);
+  }
+
+  /**
+   * Looks the method up on a public class or interface, since the runtime class of JFR objects is often internal.
+   */
+  private static Method publicMethod(Class clazz, String name, Class... parameterTypes) throws NoSuchMethodException {
+    for (Class c = clazz; c != null; c = c.getSuperclass()) {
+      if (java.lang.reflect.Modifier.isPublic(c.getModifiers())) {
+        try {
+          return c.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException keepLooking) {
+        }
+      }
+    }
+    throw new NoSuchMethodException(name);
+  }
+
+}
@@ -0,0 +1,47 @@
+package org.prevayler.implementation.clock;
+
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+public class ClockTest extends TestCase {
+
+  public void testBrokenClock() {
+    BrokenClock clock = new BrokenClock();
+    assertEquals(0, clock.timeMillis());
+    Date time = new Date(1000);
+    clock.advanceTo(time);
+    assertSame(time, clock.time());
+    clock.advanceTo(1000);
+    assertSame(time, clock.time());
+    clock.advanceTo(2000);
+    assertEquals(2000, clock.time().getTime());
+    assertEquals(2000, clock.timeMillis());
+  }
+
+  public void testMachineClockReturnsTheSameDateWithinAMillisecond() {
+    MachineClock clock = new MachineClock();
+    long before = System.currentTimeMillis();
+    Date time = clock.time();
+    Date again = clock.time();
+    long after = System.currentTimeMillis();
+    assertTrue(time.getTime() >= before && again.getTime() <= after);
+    if (time.getTime() == again.getTime()) assertSame(time, again);
+    assertTrue(clock.timeMillis() >= again.getTime());
+  }
+
+  public void testPausableClock() {
+    BrokenClock real = new BrokenClock(new Date(5000));
+    PausableClock clock = new PausableClock(real);
+    clock.pause();
+    real.advanceTo(6000);
+    assertEquals(5000, clock.timeMillis());
+    assertEquals(6000, clock.realTimeMillis());
+    clock.advanceTo(5500);
+    assertEquals(5500, clock.time().getTime());
+    clock.resume();
+    assertEquals(6000, clock.timeMillis());
+    assertSame(real.time(), clock.time());
+  }
+
+}
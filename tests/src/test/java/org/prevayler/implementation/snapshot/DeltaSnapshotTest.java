@@ -0,0 +1,175 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.DeltaSnapshots;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+public class DeltaSnapshotTest extends FileIOTest {
+
+  public void testDeltasAfterFullSnapshot() throws Exception {
+    Prevayler<Registry> prevayler = createPrevayler(5);
+    for (int i = 0; i < 100; i++) prevayler.execute(new Put("key" + i, "value" + i));
+    File full = prevayler.takeSnapshot();
+    assertFalse(PrevaylerDirectory.isDeltaSnapshot(full));
+
+    prevayler.execute(new Put("key7", "changed"));
+    File delta = prevayler.takeSnapshot();
+    assertTrue(PrevaylerDirectory.isDeltaSnapshot(delta));
+    assertEquals("0000000000000000101.deltasnapshot", delta.getName());
+    assertTrue(delta.length() < full.length() / 4);
+
+    prevayler.execute(new Put("key8", "changed too"));
+    prevayler.takeSnapshot();
+    prevayler.close();
+    deleteJournals();
+
+    prevayler = createPrevayler(5);
+    assertEquals(100, prevayler.prevalentSystem().size());
+    assertEquals("changed", prevayler.prevalentSystem().get("key7"));
+    assertEquals("changed too", prevayler.prevalentSystem().get("key8"));
+    assertEquals("value9", prevayler.prevalentSystem().get("key9"));
+    prevayler.close();
+  }
+
+  public void testCompactionIntoFullSnapshot() throws Exception {
+    Prevayler<Registry> prevayler = createPrevayler(2);
+    prevayler.execute(new Put("a", "1"));
+    assertFalse(PrevaylerDirectory.isDeltaSnapshot(prevayler.takeSnapshot()));
+    prevayler.execute(new Put("b", "2"));
+    assertTrue(PrevaylerDirectory.isDeltaSnapshot(prevayler.takeSnapshot()));
+    prevayler.execute(new Put("c", "3"));
+    assertTrue(PrevaylerDirectory.isDeltaSnapshot(prevayler.takeSnapshot()));
+    prevayler.execute(new Put("d", "4"));
+    File compacted = prevayler.takeSnapshot();
+    assertFalse(PrevaylerDirectory.isDeltaSnapshot(compacted));
+    prevayler.execute(new Put("e", "5"));
+    File delta = prevayler.takeSnapshot();
+    assertTrue(PrevaylerDirectory.isDeltaSnapshot(delta));
+    prevayler.execute(new Put("f", "6"));
+    prevayler.close();
+
+    Set necessary = new PrevaylerDirectory(_testDirectory).necessaryFiles();
+    assertTrue(necessary.contains(compacted));
+    assertTrue(necessary.contains(delta));
+    assertEquals(3, necessary.size());  // Plus the journal with the last transaction.
+
+    prevayler = createPrevayler(2);
+    assertEquals(6, prevayler.prevalentSystem().size());
+    prevayler.close();
+  }
+
+  public void testRecoveryAcrossRestartsContinuesTheChain() throws Exception {
+    Prevayler<Registry> prevayler = createPrevayler(3);
+    prevayler.execute(new Put("a", "1"));
+    prevayler.takeSnapshot();
+    prevayler.close();
+
+    prevayler = createPrevayler(3);
+    prevayler.execute(new Put("a", "2"));
+    assertTrue(PrevaylerDirectory.isDeltaSnapshot(prevayler.takeSnapshot()));
+    prevayler.close();
+    deleteJournals();
+
+    prevayler = createPrevayler(3);
+    assertEquals("2", prevayler.prevalentSystem().get("a"));
+    prevayler.close();
+  }
+
+  public void testMissingDeltaIsDetected() throws Exception {
+    Prevayler<Registry> prevayler = createPrevayler(5);
+    prevayler.execute(new Put("a", "1"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new Put("b", "2"));
+    File first = prevayler.takeSnapshot();
+    prevayler.execute(new Put("c", "3"));
+    prevayler.takeSnapshot();
+    prevayler.close();
+    delete(first);
+
+    try {
+      createPrevayler(5);
+      fail();
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().indexOf("might have been deleted") >= 0);
+    }
+  }
+
+  private void deleteJournals() {
+    File[] files = new File(_testDirectory).listFiles();
+    for (int i = 0; i < files.length; i++) {
+      if (PrevaylerDirectory.journalVersion(files[i]) >= 0) delete(files[i]);
+    }
+  }
+
+  private Prevayler<Registry> createPrevayler(int maxDeltas) throws Exception {
+    PrevaylerFactory<Registry> factory = new PrevaylerFactory<Registry>();
+    factory.configurePrevalentSystem(new Registry());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureDeltaSnapshots(maxDeltas);
+    return factory.create();
+  }
+
+  private static class Registry implements DeltaSnapshots<HashMap<String, String>>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, String> _entries = new HashMap<String, String>();
+    private final Set<String> _changed = new HashSet<String>();
+
+    void put(String key, String value) {
+      _entries.put(key, value);
+      _changed.add(key);
+    }
+
+    String get(String key) {
+      return _entries.get(key);
+    }
+
+    int size() {
+      return _entries.size();
+    }
+
+    public HashMap<String, String> takeDelta() {
+      HashMap<String, String> delta = new HashMap<String, String>();
+      for (Iterator<String> i = _changed.iterator(); i.hasNext(); ) {
+        String key = i.next();
+        delta.put(key, _entries.get(key));
+      }
+      _changed.clear();
+      return delta;
+    }
+
+    public void applyDelta(HashMap<String, String> delta) {
+      _entries.putAll(delta);
+    }
+  }
+
+  private static class Put implements Transaction<Registry> {
+    private static final long serialVersionUID = 1L;
+    private final String _key;
+    private final String _value;
+
+    Put(String key, String value) {
+      _key = key;
+      _value = value;
+    }
+
+    public void executeOn(Registry prevalentSystem, Date executionTime) {
+      prevalentSystem.put(_key, _value);
+    }
+  }
+
+}
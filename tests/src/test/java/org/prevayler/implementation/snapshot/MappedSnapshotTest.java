@@ -0,0 +1,131 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.DeepCopier;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.RecordTable;
+import org.prevayler.foundation.serialization.MappedSnapshotSerializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.Serializable;
+import java.util.Date;
+
+public class MappedSnapshotTest extends FileIOTest {
+
+  public void testRecordTablesAreMappedBack() throws Exception {
+    Prevayler<Prices> prevayler = createPrevayler();
+    for (int i = 0; i < 1000; i++) prevayler.execute(new SetPrice(i, i * 1.5));
+    File snapshot = prevayler.takeSnapshot();
+    assertEquals("0000000000000001000.mappedsnapshot", snapshot.getName());
+    assertEquals(0, snapshot.length() % MappedSnapshotSerializer.PAGE_SIZE);
+    prevayler.close();
+    deleteJournals();
+
+    prevayler = createPrevayler();
+    Prices recovered = prevayler.prevalentSystem();
+    assertEquals("prices", recovered._name);
+    assertSame(recovered._table, recovered._sameTable);
+    assertTrue(recovered._table.blocks()[0].isDirect());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, recovered._table.getLong(i, 0));
+      assertEquals(i * 1.5, recovered._table.getDouble(i, 8), 0);
+    }
+    assertEquals(0, recovered._table.getLong(1500, 0));
+
+    prevayler.execute(new SetPrice(7, 99));
+    prevayler.close();
+
+    // The mapping is private, so the change above only reached the journal.
+    prevayler = createPrevayler();
+    assertEquals(99.0, prevayler.prevalentSystem()._table.getDouble(7, 8), 0);
+    prevayler.close();
+    deleteJournals();
+    prevayler = createPrevayler();
+    assertEquals(10.5, prevayler.prevalentSystem()._table.getDouble(7, 8), 0);
+    prevayler.close();
+  }
+
+  public void testStreamRoundtrip() throws Exception {
+    Prices prices = new Prices();
+    prices._table.putLong(3, 0, 42);
+    prices._table.putDouble(1999, 8, 0.25);
+
+    MappedSnapshotSerializer serializer = new MappedSnapshotSerializer();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, prices);
+    Prices copy = (Prices) serializer.readObject(new ByteArrayInputStream(bytes.toByteArray()));
+
+    assertSame(copy._table, copy._sameTable);
+    assertEquals(42, copy._table.getLong(3, 0));
+    assertEquals(0.25, copy._table.getDouble(1999, 8), 0);
+  }
+
+  public void testJavaSerializationCopiesContents() throws Exception {
+    RecordTable table = new RecordTable(4, 10);
+    table.putInt(9, 0, -5);
+    RecordTable copy = (RecordTable) DeepCopier.deepCopy(table);
+    assertEquals(-5, copy.getInt(9, 0));
+    copy.putInt(9, 0, 6);
+    assertEquals(-5, table.getInt(9, 0));
+  }
+
+  public void testBoundsAreChecked() {
+    RecordTable table = new RecordTable(8, 2);
+    try {
+      table.getLong(2, 0);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      table.getInt(0, 6);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  private void deleteJournals() {
+    File[] files = new File(_testDirectory).listFiles();
+    for (int i = 0; i < files.length; i++) {
+      if (PrevaylerDirectory.journalVersion(files[i]) >= 0) delete(files[i]);
+    }
+  }
+
+  private Prevayler<Prices> createPrevayler() throws Exception {
+    PrevaylerFactory<Prices> factory = new PrevaylerFactory<Prices>();
+    factory.configurePrevalentSystem(new Prices());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureSnapshotSerializer(new MappedSnapshotSerializer());
+    return factory.create();
+  }
+
+  private static class Prices implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String _name = "prices";
+    private final RecordTable _table = new RecordTable(16, 2000);  // long id, double price
+    private final RecordTable _sameTable = _table;
+  }
+
+  private static class SetPrice implements Transaction<Prices> {
+    private static final long serialVersionUID = 1L;
+    private final long _id;
+    private final double _price;
+
+    SetPrice(long id, double price) {
+      _id = id;
+      _price = price;
+    }
+
+    public void executeOn(Prices prevalentSystem, Date executionTime) {
+      prevalentSystem._table.putLong(_id, 0, _id);
+      prevalentSystem._table.putDouble(_id, 8, _price);
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Partitioned;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class PartitionedSnapshotTest extends FileIOTest {
+
+  public void testRoundtrip() throws Exception {
+    Prevayler<Shards> prevayler = createPrevayler();
+    for (int i = 0; i < 200; i++) prevayler.execute(new Add(i));
+    File snapshot = prevayler.takeSnapshot();
+    prevayler.close();
+
+    InputStream in = new BufferedInputStream(new FileInputStream(snapshot));
+    try {
+      assertTrue(PartitionedSnapshot.isPartitioned(in));
+    } finally {
+      in.close();
+    }
+    deleteJournals();
+
+    prevayler = createPrevayler();
+    Shards recovered = prevayler.prevalentSystem();
+    assertEquals("shards", recovered._name);
+    assertEquals(Shards.SECTIONS, recovered._sections.size());
+    for (int s = 0; s < Shards.SECTIONS; s++) {
+      List<Integer> section = recovered._sections.get(s);
+      assertEquals(200 / Shards.SECTIONS, section.size());
+      for (int i = 0; i < section.size(); i++) assertEquals(s + i * Shards.SECTIONS, section.get(i).intValue());
+    }
+
+    prevayler.execute(new Add(200));
+    prevayler.close();
+    prevayler = createPrevayler();
+    assertEquals(200, prevayler.prevalentSystem()._sections.get(0).get(50).intValue());
+    prevayler.close();
+  }
+
+  public void testNonPartitionedSnapshotsAreStillPlain() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer("plain"));
+    factory.configurePrevalenceDirectory(_testDirectory);
+    Prevayler<StringBuffer> prevayler = factory.create();
+    File snapshot = prevayler.takeSnapshot();
+    prevayler.close();
+
+    InputStream in = new BufferedInputStream(new FileInputStream(snapshot));
+    try {
+      assertFalse(PartitionedSnapshot.isPartitioned(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  private void deleteJournals() {
+    File[] files = new File(_testDirectory).listFiles();
+    for (int i = 0; i < files.length; i++) {
+      if (PrevaylerDirectory.journalVersion(files[i]) >= 0) delete(files[i]);
+    }
+  }
+
+  private Prevayler<Shards> createPrevayler() throws Exception {
+    PrevaylerFactory<Shards> factory = new PrevaylerFactory<Shards>();
+    factory.configurePrevalentSystem(new Shards());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    return factory.create();
+  }
+
+  private static class Shards implements Partitioned, Serializable {
+    private static final long serialVersionUID = 1L;
+    static final int SECTIONS = 4;
+
+    private final String _name = "shards";
+    private transient List<ArrayList<Integer>> _sections = new ArrayList<ArrayList<Integer>>();
+
+    Shards() {
+      for (int i = 0; i < SECTIONS; i++) _sections.add(new ArrayList<Integer>());
+    }
+
+    void add(int value) {
+      _sections.get(value % SECTIONS).add(value);
+    }
+
+    public Object[] sections() {
+      return _sections.toArray();
+    }
+
+    public void restoreSections(Object[] sections) {
+      _sections = new ArrayList<ArrayList<Integer>>();
+      for (int i = 0; i < sections.length; i++) _sections.add((ArrayList<Integer>) sections[i]);
+    }
+  }
+
+  private static class Add implements Transaction<Shards> {
+    private static final long serialVersionUID = 1L;
+    private final int _value;
+
+    Add(int value) {
+      _value = value;
+    }
+
+    public void executeOn(Shards prevalentSystem, Date executionTime) {
+      prevalentSystem.add(_value);
+    }
+  }
+
+}
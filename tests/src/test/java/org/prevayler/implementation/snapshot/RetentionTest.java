@@ -0,0 +1,97 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.implementation.AppendTransaction;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RetentionTest extends FileIOTest {
+
+  public void testObsoleteFiles() throws IOException {
+    createFiles(new String[]{
+        "0000000000000000000.journal", "0000000000000000004.journal", "0000000000000000009.journal",
+        "0000000000000000003.snapshot", "0000000000000000005.deltasnapshot", "0000000000000000007.snapshot",
+        "0000000000000000012.snapshot", "0000000000000000013.journal", "unrelated.txt"});
+    PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+
+    assertEquals(files(new String[]{"0000000000000000000.journal", "0000000000000000003.snapshot", "0000000000000000005.deltasnapshot"}),
+        directory.obsoleteFiles(2));
+    assertEquals(files(new String[]{"0000000000000000000.journal", "0000000000000000004.journal", "0000000000000000009.journal",
+            "0000000000000000003.snapshot", "0000000000000000005.deltasnapshot", "0000000000000000007.snapshot"}),
+        directory.obsoleteFiles(1));
+    assertTrue(directory.obsoleteFiles(3).isEmpty());
+  }
+
+  public void testArchivingAfterEachSnapshot() throws Exception {
+    File archive = new File(_testDirectory, "archive");
+    Prevayler<StringBuffer> prevayler = createPrevayler(archive, false);
+    prevayler.execute(new AppendTransaction("a"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new AppendTransaction("b"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new AppendTransaction("c"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new AppendTransaction("d"));
+
+    File lastRetired = new File(archive, "0000000000000000002.journal");
+    for (int i = 0; i < 100 && !lastRetired.exists(); i++) Thread.sleep(50);
+    prevayler.close();
+
+    assertTrue(lastRetired.exists());
+    assertTrue(new File(archive, "0000000000000000001.journal").exists());
+    assertTrue(new File(archive, "0000000000000000001.snapshot").exists());
+    assertFalse(new File(_testDirectory, "0000000000000000001.snapshot").exists());
+    assertTrue(new File(_testDirectory, "0000000000000000002.snapshot").exists());
+    assertTrue(new File(_testDirectory, "0000000000000000003.journal").exists());
+
+    prevayler = createPrevayler(archive, false);
+    assertEquals("abcd", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testCompressingAndDeleting() throws Exception {
+    createFiles(new String[]{"0000000000000000001.journal", "0000000000000000002.snapshot", "0000000000000000004.snapshot", "0000000000000000005.journal"});
+    PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+    File archive = new File(_testDirectory, "archive");
+
+    new RetentionManager(directory, 1, archive, true, new NullMonitor()).retire();
+    assertTrue(new File(archive, "0000000000000000001.journal.gz").exists());
+    assertTrue(new File(archive, "0000000000000000002.snapshot.gz").exists());
+    assertFalse(new File(_testDirectory, "0000000000000000002.snapshot").exists());
+
+    createFiles(new String[]{"0000000000000000006.snapshot"});
+    new RetentionManager(directory, 1, null, false, new NullMonitor()).retire();
+    assertFalse(new File(_testDirectory, "0000000000000000004.snapshot").exists());
+    assertFalse(new File(archive, "0000000000000000004.snapshot.gz").exists());
+    assertTrue(new File(_testDirectory, "0000000000000000006.snapshot").exists());
+  }
+
+  private Prevayler<StringBuffer> createPrevayler(File archive, boolean compress) throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalDiskSync(false);
+    factory.configureJournalFileSizeThreshold(50);  // A journal per transaction.
+    factory.configureFileRetention(2, archive, compress);
+    return factory.create();
+  }
+
+  private void createFiles(String[] names) throws IOException {
+    for (int i = 0; i < names.length; i++) new FileOutputStream(new File(_testDirectory, names[i])).close();
+  }
+
+  private Set files(String[] names) {
+    Set result = new HashSet();
+    for (int i = 0; i < names.length; i++) result.add(new File(_testDirectory, names[i]));
+    return result;
+  }
+
+}